@@ -22,7 +22,8 @@ public abstract class ClassComparer {
     protected static Logger logger = LoggerFactory.getLogger(ClassComparer.class);
     
     private CompareViaReflectionUtil compareViaReflectionUtil;
-    protected DebugContext context;
+    // comparers are shared by all comparisons (threads) that use the CompareViaReflectionUtil instance
+    private final ThreadLocal<DebugContext> context = new ThreadLocal<DebugContext>();
     
     public void register(Class<?> comparedClass, CompareViaReflectionUtil compareUtil) { 
        this.compareViaReflectionUtil = compareUtil;
@@ -32,11 +33,30 @@ public abstract class ClassComparer {
     public abstract boolean compare(Object objA, Object objB);
     
     public boolean executeCompare(DebugContext debugContext, Object objA, Object objB) { 
-       this.context = debugContext;
-       return compare(objA, objB);
+       DebugContext outerContext = this.context.get();
+       this.context.set(debugContext);
+       try { 
+           return compare(objA, objB);
+       }
+       finally { 
+           // the comparer may have been called by a comparison that this comparer started
+           if( outerContext != null ) { 
+               this.context.set(outerContext);
+           }
+           else { 
+               this.context.remove();
+           }
+       }
+    }
+    
+    /**
+     * @return The context of the comparison (in the current thread) that called {@link #compare(Object, Object)}.
+     */
+    protected DebugContext getContext() { 
+        return context.get();
     }
     
     public final boolean compareInstances(Object objA, Object objB, String operationIndicator) { 
-        return compareViaReflectionUtil.compareInstances(context.nestedClone(": " + operationIndicator), objA, objB);
+        return compareViaReflectionUtil.compareInstances(getContext().nestedClone(": " + operationIndicator), objA, objB);
     }
 }
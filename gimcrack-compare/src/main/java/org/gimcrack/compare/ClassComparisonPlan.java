@@ -0,0 +1,220 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A comparison plan contains everything {@link CompareViaReflectionUtil} needs to know about a class
+ * in order to compare two instances of that class: <ul>
+ * <li>How instances of the class are compared: see the <code>*_KIND</code> constants.</li>
+ * <li>For classes whose instances are compared field by field: the (accessible) fields to compare,
+ *     in the order that they're compared, and how the value of each field is compared.</li>
+ * <li>For java.* classes: whether instances are compared with equals(), as collections, maps, etc.
+ *     (see the <code>*_JAVA</code> constants), and the method used to retrieve their elements.</li>
+ * </ul>
+ * Retrieving the declared fields of a class (and all of its super classes), calling
+ * {@link Field#setAccessible(boolean)} and checking whether or not a field should be compared
+ * is expensive when it's done for every object in a large object graph. A plan is thus built once
+ * per class and then reused for every later comparison of instances of that class.
+ */
+class ClassComparisonPlan {
+
+    // How instances of the class are compared
+    final static int JAVA_KIND      = 0; // primitive based or collection object (java.* packages)
+    final static int ARRAY_KIND     = 1;
+    final static int COMPARER_KIND  = 2; // a ClassComparer has been registered for the class
+    final static int ENUM_KIND      = 3;
+    final static int OBJECT_KIND    = 4; // compared field by field (recursively)
+
+    // How instances of a java.* class are compared (JAVA_KIND)
+    final static int EQUALS_JAVA          = 0; // String, Integer, BigDecimal, Date, ..: compared with equals()
+    final static int ORDERED_JAVA         = 1; // lists, queues, ..: compared element by element (toArray())
+    final static int SET_JAVA             = 2; // sets: every element is matched to an element of the other set (toArray())
+    final static int MAP_JAVA             = 3; // maps: every entry is matched to an entry of the other map (entrySet())
+    final static int OBJECT_ARRAY_JAVA    = 4; // arrays of objects: compared element by element
+    final static int PRIMITIVE_ARRAY_JAVA = 5; // int [], byte [], ..: compared with Arrays.equals(..)
+    final static int ATOMIC_JAVA          = 6; // AtomicInteger, ..: compared by value
+    final static int ATOMIC_ARRAY_JAVA    = 7; // AtomicIntegerArray, ..: compared element by element
+
+    // How the value of a field is compared
+    final static int PRIMITIVE_FIELD = 0; // int, long, .. fields: compared by value (see FieldAccessEngine)
+    final static int VALUE_FIELD     = 1; // final java.* classes such as String or Integer: compared with equals()
+    final static int ARRAY_FIELD     = 2; // arrays of primitives: compared with Arrays.equals(..)
+    final static int ENUM_FIELD      = 3; // enums: compared by identity
+    final static int RECURSIVE_FIELD = 4; // everything else: compared via compareInstances(..)
+
+    final Class<?> planClass;
+    final int kind;
+
+    // JAVA_KIND
+    final int javaKind;
+    // toArray() or entrySet(), if the class is a collection or map
+    final Method collectionMethod;
+
+    // whether instances refer to other objects that are compared: objects, collections, maps and arrays of objects
+    final boolean composite;
+
+    final Field [] fields;
+    final FieldAccessor [] accessors;
+    final int [] fieldKinds;
+    final String [] ignoredFieldNames;
+    // the (debug) context names of the fields
+    final String [] fieldContextNames;
+    // the indexes of the RECURSIVE_FIELD fields
+    final int [] referenceFieldIndexes;
+
+    private final AtomicInteger comparisons = new AtomicInteger(0);
+    private volatile SpecializedComparator specializedComparator;
+
+    private ClassComparisonPlan(Class<?> planClass, int kind, int javaKind, Method collectionMethod, 
+            Field [] fields, FieldAccessor [] accessors, int [] fieldKinds, String [] ignoredFieldNames) {
+        this.planClass = planClass;
+        this.kind = kind;
+        this.javaKind = javaKind;
+        this.collectionMethod = collectionMethod;
+        this.composite = kind == OBJECT_KIND 
+            || (kind == JAVA_KIND && (collectionMethod != null || javaKind == OBJECT_ARRAY_JAVA));
+        this.fields = fields;
+        this.accessors = accessors;
+        this.fieldKinds = fieldKinds;
+        this.ignoredFieldNames = ignoredFieldNames;
+        this.fieldContextNames = new String[fields.length];
+        for( int i = 0; i < fields.length; ++i ) {
+            fieldContextNames[i] = ": " + fields[i].getName() + " > ";
+        }
+
+        int references = 0;
+        for( int i = 0; i < fieldKinds.length; ++i ) {
+            if( fieldKinds[i] == RECURSIVE_FIELD ) {
+                ++references;
+            }
+        }
+        this.referenceFieldIndexes = new int[references];
+        for( int i = 0, r = 0; i < fieldKinds.length; ++i ) {
+            if( fieldKinds[i] == RECURSIVE_FIELD ) {
+                referenceFieldIndexes[r++] = i;
+            }
+        }
+    }
+
+    /**
+     * Creates a plan for a class whose instances are not compared field by field.
+     */
+    static ClassComparisonPlan newPlan(Class<?> planClass, int kind) {
+        return new ClassComparisonPlan(planClass, kind, -1, null, new Field[0], new FieldAccessor[0], new int[0], new String[0]);
+    }
+
+    /**
+     * Creates a plan for a java.* class.
+     * @param planClass The class to build a plan for.
+     * @param javaKind How instances of the class are compared: one of the <code>*_JAVA</code> constants.
+     * @param collectionMethod The toArray() or entrySet() method for collections and maps, otherwise null.
+     */
+    static ClassComparisonPlan newJavaPlan(Class<?> planClass, int javaKind, Method collectionMethod) {
+        return new ClassComparisonPlan(planClass, JAVA_KIND, javaKind, collectionMethod, 
+                new Field[0], new FieldAccessor[0], new int[0], new String[0]);
+    }
+
+    /**
+     * Creates a plan for a class whose instances are compared field by field.
+     * </p>
+     * The fields are ordered in the same way as they were compared before plans existed: first the
+     * declared fields of the class itself, then those of its super class, etc. Transient fields and
+     * fields listed in the <code>gimcrack.compare.properties</code> file are left out of the plan.
+     * @param planClass The class to build a plan for.
+     * @param compareUtil The util that will use the plan (in order to classify and access the fields).
+     * @return The comparison plan for the class.
+     */
+    static ClassComparisonPlan newObjectPlan(Class<?> planClass, CompareViaReflectionUtil compareUtil) {
+        List<Field> fieldList = new ArrayList<Field>();
+        List<String> ignoredFieldNameList = new ArrayList<String>();
+
+        Class<?> objClass = planClass;
+        do {
+            Field [] declaredFields = objClass.getDeclaredFields();
+            for( int i = 0; i < declaredFields.length; ++i ) {
+                if( Modifier.isTransient(declaredFields[i].getModifiers())
+                    || ! compareUtil.isComparedField(declaredFields[i]) ) {
+                    ignoredFieldNameList.add(declaredFields[i].getName());
+                    continue;
+                }
+                declaredFields[i].setAccessible(true);
+                fieldList.add(declaredFields[i]);
+            }
+            objClass = objClass.getSuperclass();
+        } while( objClass != null );
+
+        Field [] fields = fieldList.toArray(new Field[fieldList.size()]);
+        FieldAccessor [] accessors = new FieldAccessor[fields.length];
+        int [] fieldKinds = new int[fields.length];
+        for( int i = 0; i < fields.length; ++i ) {
+            accessors[i] = FieldAccessor.newAccessor(fields[i], compareUtil.getFieldAccessEngine());
+            fieldKinds[i] = classifyField(fields[i].getType(), compareUtil);
+        }
+
+        return new ClassComparisonPlan(planClass, OBJECT_KIND, -1, null, fields, accessors, fieldKinds,
+                ignoredFieldNameList.toArray(new String[ignoredFieldNameList.size()]));
+    }
+
+    /**
+     * Counts the comparison of two instances of this class and returns the {@link SpecializedComparator} 
+     * for the class, if the class has been compared often enough to warrant one.
+     * @param threshold The number of comparisons after which a specialized comparator is created, 
+     * or a negative number if specialized comparators should not be used.
+     * @param engine The engine used to access the fields.
+     * @return The {@link SpecializedComparator} for this class, or null if there is none (yet).
+     */
+    SpecializedComparator getSpecializedComparator(int threshold, FieldAccessEngine engine) {
+        if( specializedComparator != null || threshold < 0 ) {
+            return specializedComparator;
+        }
+        if( comparisons.incrementAndGet() >= threshold ) {
+            specializedComparator = new SpecializedComparator(this, engine);
+        }
+        return specializedComparator;
+    }
+
+    /**
+     * A field can only be compared without going through {@link CompareViaReflectionUtil#compareInstances(Object, Object)}
+     * if the declared type of the field determines how the <i>value</i> of the field will be compared.
+     * @param type The declared type of the field.
+     * @param compareUtil The util that will use the plan.
+     * @return One of the <code>*_FIELD</code> constants.
+     */
+    private static int classifyField(Class<?> type, CompareViaReflectionUtil compareUtil) {
+        if( type.isPrimitive() ) {
+            return PRIMITIVE_FIELD;
+        }
+        if( compareUtil.hasClassComparer(type) ) {
+            return RECURSIVE_FIELD;
+        }
+        if( type.isArray() && type.getComponentType().isPrimitive() ) {
+            return ARRAY_FIELD;
+        }
+        if( type.isEnum() ) {
+            return ENUM_FIELD;
+        }
+        if( Modifier.isFinal(type.getModifiers()) && compareUtil.isEqualsBasedJavaClass(type) ) {
+            return VALUE_FIELD;
+        }
+        return RECURSIVE_FIELD;
+    }
+
+}
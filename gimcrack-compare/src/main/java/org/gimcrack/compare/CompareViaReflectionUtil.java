@@ -22,9 +22,12 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
@@ -42,11 +45,10 @@ public class CompareViaReflectionUtil {
 
     private static Logger logger = LoggerFactory.getLogger(CompareViaReflectionUtil.class);
 
-    public static IdentityHashMap<Object, Object> seenObjects = null;
     private static Class<?> OBJECT_ARRAY_CLASS = (new Object[0]).getClass();
 
-    private static int TO_ARRAY = 0;
-    private static int ENTRY_SET = 1;
+    final static int TO_ARRAY = 0;
+    final static int ENTRY_SET = 1;
     private static HashSet<Package> javaPackages = new HashSet<Package>();
     static { 
         // primitives ("package null")
@@ -64,20 +66,6 @@ public class CompareViaReflectionUtil {
         javaPackages.add(Long.class.getPackage());
     }
 
-    private static HashMap<Class<?>, Integer> arrClassMap = new HashMap<Class<?>, Integer>();
-    {
-        arrClassMap.put((new byte[0]).getClass(), BYTE);
-        arrClassMap.put((new short[0]).getClass(), SHORT);
-        arrClassMap.put((new int[0]).getClass(), INT);
-        arrClassMap.put((new long[0]).getClass(), LONG);
-        arrClassMap.put((new float[0]).getClass(), FLOAT);
-        arrClassMap.put((new double[0]).getClass(), DOUBLE);
-        arrClassMap.put((new boolean[0]).getClass(), BOOLEAN);
-        arrClassMap.put((new char[0]).getClass(), CHAR);
-        arrClassMap.put((new Object[0]).getClass(), OBJECT);
-    }
-
-
     private static HashSet<Field> doNotCompareFieldsMap = new HashSet<Field>();
     static {
         try {
@@ -113,6 +101,19 @@ public class CompareViaReflectionUtil {
     private final static int OBJECT  = 8;
     private final static int NULL    = 9;
 
+    private static HashMap<Class<?>, Integer> arrClassMap = new HashMap<Class<?>, Integer>();
+    static {
+        arrClassMap.put((new byte[0]).getClass(), BYTE);
+        arrClassMap.put((new short[0]).getClass(), SHORT);
+        arrClassMap.put((new int[0]).getClass(), INT);
+        arrClassMap.put((new long[0]).getClass(), LONG);
+        arrClassMap.put((new float[0]).getClass(), FLOAT);
+        arrClassMap.put((new double[0]).getClass(), DOUBLE);
+        arrClassMap.put((new boolean[0]).getClass(), BOOLEAN);
+        arrClassMap.put((new char[0]).getClass(), CHAR);
+        arrClassMap.put((new Object[0]).getClass(), OBJECT);
+    }
+
     @SuppressWarnings("rawtypes")
     private static HashSet<Class> atomicPrimitiveClasses = new HashSet<Class>();
     static { 
@@ -130,8 +131,162 @@ public class CompareViaReflectionUtil {
         atomicArrayClasses.add(AtomicReferenceArray.class);
     }
 
-    private HashMap<Class<?>, ClassComparer> classComparerMap = new HashMap<Class<?>, ClassComparer>();
+    /**
+     * The well-known java.* classes, which make up most of the objects in an object graph: 
+     * how instances of these classes are compared doesn't have to be determined by inspecting the class.
+     */
+    private static HashMap<Class<?>, Integer> javaKinds = new HashMap<Class<?>, Integer>();
+    static { 
+        Class<?> [] equalsClasses = { 
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, 
+            Float.class, Double.class, BigDecimal.class, BigInteger.class, Date.class, Locale.class, UUID.class, Class.class
+        };
+        for( Class<?> equalsClass : equalsClasses ) { 
+            javaKinds.put(equalsClass, ClassComparisonPlan.EQUALS_JAVA);
+        }
+        for( Class<?> atomicClass : atomicPrimitiveClasses ) { 
+            javaKinds.put(atomicClass, ClassComparisonPlan.ATOMIC_JAVA);
+        }
+        for( Class<?> atomicArrayClass : atomicArrayClasses ) { 
+            javaKinds.put(atomicArrayClass, ClassComparisonPlan.ATOMIC_ARRAY_JAVA);
+        }
+        for( Map.Entry<Class<?>, Integer> arrayClass : arrClassMap.entrySet() ) { 
+            javaKinds.put(arrayClass.getKey(), 
+                    arrayClass.getValue() == OBJECT ? ClassComparisonPlan.OBJECT_ARRAY_JAVA : ClassComparisonPlan.PRIMITIVE_ARRAY_JAVA);
+        }
+    }
+
+    private ConcurrentHashMap<Class<?>, ClassComparer> classComparerMap = new ConcurrentHashMap<Class<?>, ClassComparer>();
+    private ConcurrentHashMap<Class<?>, ClassComparisonPlan> comparisonPlanMap = new ConcurrentHashMap<Class<?>, ClassComparisonPlan>();
+
+    private final FieldAccessEngine fieldAccessEngine;
+
+    public final static int DEFAULT_SPECIALIZATION_THRESHOLD = 1000;
+    private volatile int specializationThreshold = DEFAULT_SPECIALIZATION_THRESHOLD;
+
+    public CompareViaReflectionUtil() { 
+        this(FieldAccessEngine.REFLECTION);
+    }
+
+    /**
+     * @param fieldAccessEngine Determines how the fields of the compared objects are read: see {@link FieldAccessEngine}.
+     */
+    public CompareViaReflectionUtil(FieldAccessEngine fieldAccessEngine) { 
+        this.fieldAccessEngine = fieldAccessEngine;
+    }
+
+    public FieldAccessEngine getFieldAccessEngine() { 
+        return fieldAccessEngine;
+    }
+
+    /**
+     * Once instances of a class have been compared field by field this many times, a comparator 
+     * specialized for that class is created and used for all further comparisons of the class.  
+     * @param threshold The number of comparisons, or a negative number to never use specialized comparators.
+     */
+    public void setSpecializationThreshold(int threshold) { 
+        this.specializationThreshold = threshold;
+    }
+
+    public int getSpecializationThreshold() { 
+        return specializationThreshold;
+    }
+
+    public final static int DEFAULT_UNORDERED_MATCHING_HASH_DEPTH = 4;
+    private volatile boolean hashedUnorderedMatching = false;
+    private volatile int unorderedMatchingHashDepth = DEFAULT_UNORDERED_MATCHING_HASH_DEPTH;
+
+    /**
+     * By default, the elements of sets (and the keys of maps) are matched by comparing every element of 
+     * the first set to the elements of the second set until a matching element is found: this is O(n<sup>2</sup>). 
+     * </p>
+     * When hashed unordered matching is turned on, the elements of the second set are first put into 
+     * buckets based on their (structural) hash, which is consistent with how elements are compared. Every
+     * element of the first set is then only compared to the elements in its own bucket, and every element of 
+     * the second set can only be matched once. Only elements whose hash went through a cycle (which is only 
+     * tracked when the hash depth is {@link StructuralHasher#UNLIMITED_DEPTH}) are compared to elements 
+     * with another hash: see {@link StructuralHasher}.
+     * @param hashedUnorderedMatching Whether or not to use hashed unordered matching.
+     */
+    public void setHashedUnorderedMatching(boolean hashedUnorderedMatching) { 
+        this.hashedUnorderedMatching = hashedUnorderedMatching;
+    }
+
+    public boolean isHashedUnorderedMatching() { 
+        return hashedUnorderedMatching;
+    }
+
+    /**
+     * @param depth How deep into the object graph of an element the hash used for hashed unordered matching goes.
+     */
+    public void setUnorderedMatchingHashDepth(int depth) { 
+        this.unorderedMatchingHashDepth = depth;
+    }
    
+    private volatile ComparisonMemo comparisonMemo = null;
+
+    /**
+     * Objects and collections that have been found to be equal are remembered by the given memo (by structural hash), 
+     * so that later comparisons of equal objects can skip them: see {@link ComparisonMemo}.
+     * The memo is not used when the comparison is split over multiple threads (see {@link #setParallelExecutor(Executor)}).
+     * @param memo The memo to use, or null (the default) to not use a memo.
+     */
+    public void setComparisonMemo(ComparisonMemo memo) { 
+        this.comparisonMemo = memo;
+    }
+
+    public ComparisonMemo getComparisonMemo() { 
+        return comparisonMemo;
+    }
+
+    public final static int DEFAULT_PARALLEL_SPLIT_THRESHOLD = 16;
+    private volatile Executor parallelExecutor = null;
+    private volatile int parallelSplitThreshold = DEFAULT_PARALLEL_SPLIT_THRESHOLD;
+
+    /**
+     * By default, a comparison is done (recursively) in the thread that calls {@link #compareInstances(Object, Object)}.
+     * </p>
+     * When a parallel executor is set, large arrays, ordered collections and objects with many (reference) fields 
+     * are split into subtasks that are executed by the executor, while the calling thread takes part in the comparison.
+     * As soon as any subtask finds a difference, all outstanding subtasks are cancelled. The results of a parallel 
+     * comparison are the same as those of a single-threaded comparison: see {@link ParallelComparisonSession}.
+     * </p>
+     * The executor is not shut down by this class. 
+     * @param executor The executor to use, or null to compare in the calling thread only. 
+     */
+    public void setParallelExecutor(Executor executor) { 
+        this.parallelExecutor = executor;
+    }
+
+    public Executor getParallelExecutor() { 
+        return parallelExecutor;
+    }
+
+    /**
+     * @param threshold The minimum number of elements (or reference fields) that are split into subtasks 
+     * when a parallel executor is used: see {@link #setParallelExecutor(Executor)}.
+     */
+    public void setParallelSplitThreshold(int threshold) { 
+        this.parallelSplitThreshold = threshold;
+    }
+
+    public int getParallelSplitThreshold() { 
+        return parallelSplitThreshold;
+    }
+
+    private ComparisonSession newSession(Object objA, Object objB) { 
+        Executor executor = parallelExecutor;
+        if( executor != null ) { 
+            return new ParallelComparisonSession(executor, parallelSplitThreshold);
+        }
+        ComparisonSession session = new ComparisonSession();
+        ComparisonMemo memo = comparisonMemo;
+        if( memo != null ) { 
+            session.useMemo(memo, new StructuralHasher(this), objA, objB);
+        }
+        return session;
+    }
+
     public void registerClassComparer(Class<?> comparedClass, ClassComparer classComparer) { 
         classComparer.register(comparedClass, this);
         internalRegisterClassComparer(comparedClass, classComparer);
@@ -139,17 +294,214 @@ public class CompareViaReflectionUtil {
     
     void internalRegisterClassComparer(Class<?> comparedClass, ClassComparer classComparer) { 
         this.classComparerMap.put(comparedClass, classComparer);
+        // existing plans might not take the new comparer into account
+        this.comparisonPlanMap.clear();
+        ComparisonMemo memo = comparisonMemo;
+        if( memo != null ) { 
+            memo.clear();
+        }
+    }
+
+    boolean hasClassComparer(Class<?> comparedClass) { 
+        return classComparerMap.containsKey(comparedClass);
+    }
+
+    boolean isComparedField(Field field) { 
+        return ! doNotCompareFieldsMap.contains(field);
+    }
+
+    /**
+     * Retrieves the (cached) {@link ClassComparisonPlan} for the given class, or builds one if this
+     * is the first time that instances of the class are compared.
+     * @param objClass The class of the objects being compared.
+     * @return The comparison plan for the class.
+     */
+    ClassComparisonPlan getComparisonPlan(Class<?> objClass) { 
+        ClassComparisonPlan plan = comparisonPlanMap.get(objClass);
+        if( plan == null ) { 
+            plan = createComparisonPlan(objClass);
+            comparisonPlanMap.put(objClass, plan);
+        }
+        return plan;
+    }
+
+    private ClassComparisonPlan createComparisonPlan(Class<?> objClass) { 
+        if( javaPackages.contains(objClass.getPackage()) ) { 
+            return createJavaComparisonPlan(objClass);
+        }
+        else if( objClass.isArray() ) { 
+            return ClassComparisonPlan.newPlan(objClass, ClassComparisonPlan.ARRAY_KIND);
+        }
+        else if( classComparerMap.containsKey(objClass) ) { 
+            return ClassComparisonPlan.newPlan(objClass, ClassComparisonPlan.COMPARER_KIND);
+        }
+        // Check if it's an enum
+        Class<?> superClass = objClass.getSuperclass();
+        while( superClass != null ) { 
+            if( superClass.equals(Enum.class) ) { 
+                return ClassComparisonPlan.newPlan(objClass, ClassComparisonPlan.ENUM_KIND);
+            }
+            superClass = superClass.getSuperclass();
+        }
+        return ClassComparisonPlan.newObjectPlan(objClass, this);
+    }
+
+    /**
+     * Determines how instances of a java.* class (or arrays) are compared. The well-known classes (see {@link #javaKinds}) 
+     * are looked up, other classes are inspected (see {@link #getMethodToRetrieveCollection(Class)}): this only
+     * happens once per class, after which the plan is used.
+     */
+    private ClassComparisonPlan createJavaComparisonPlan(Class<?> objClass) { 
+        Integer javaKind = javaKinds.get(objClass);
+        if( javaKind != null ) { 
+            return ClassComparisonPlan.newJavaPlan(objClass, javaKind, null);
+        }
+
+        Method [] methods = getMethodToRetrieveCollection(objClass);
+        if( methods[TO_ARRAY] != null ) { 
+            javaKind = isSet(objClass) ? ClassComparisonPlan.SET_JAVA : ClassComparisonPlan.ORDERED_JAVA;
+            return ClassComparisonPlan.newJavaPlan(objClass, javaKind, methods[TO_ARRAY]);
+        }
+        else if( methods[ENTRY_SET] != null ) { 
+            return ClassComparisonPlan.newJavaPlan(objClass, ClassComparisonPlan.MAP_JAVA, methods[ENTRY_SET]);
+        }
+        else if( objClass.isArray() ) { 
+            javaKind = objClass.getComponentType().isPrimitive() ? ClassComparisonPlan.PRIMITIVE_ARRAY_JAVA : ClassComparisonPlan.OBJECT_ARRAY_JAVA;
+        }
+        else if( atomicPrimitiveClasses.contains(objClass) ) { 
+            javaKind = ClassComparisonPlan.ATOMIC_JAVA;
+        }
+        else if( atomicArrayClasses.contains(objClass) ) { 
+            javaKind = ClassComparisonPlan.ATOMIC_ARRAY_JAVA;
+        }
+        else { 
+            javaKind = ClassComparisonPlan.EQUALS_JAVA;
+        }
+        return ClassComparisonPlan.newJavaPlan(objClass, javaKind, null);
+    }
+
+    /**
+     * Instances of the given class are compared using {@link Object#equals(Object)} when: <ul>
+     * <li>The class belongs to one of the java.* packages</li>
+     * <li>The class is not an array, collection, map or atomic class.</li>
+     * </ul>
+     * @param objClass The class to check.
+     * @return Whether or not instances of this class are compared using {@link Object#equals(Object)}.
+     */
+    boolean isEqualsBasedJavaClass(Class<?> objClass) { 
+        if( ! javaPackages.contains(objClass.getPackage()) || objClass.isArray() ) { 
+            return false;
+        }
+        return getComparisonPlan(objClass).javaKind == ClassComparisonPlan.EQUALS_JAVA;
     }
     
+    /**
+     * Computes a deterministic hash of the given object graph, using the same rules that are used to compare objects.
+     * Object graphs with different hashes are not equal.
+     * @see StructuralHasher
+     * @param obj The root of the object graph.
+     * @return The structural hash of the object graph.
+     */
+    public long structuralHash(Object obj) { 
+        return new StructuralHasher(this).hash(obj);
+    }
+
+    private volatile int maxReportedDifferences = ComparisonResult.DEFAULT_MAX_DIFFERENCES;
+
+    /**
+     * @param maxDifferences The maximum number of differences recorded in a {@link ComparisonResult}.
+     */
+    public void setMaxReportedDifferences(int maxDifferences) { 
+        this.maxReportedDifferences = maxDifferences;
+    }
+
+    public int getMaxReportedDifferences() { 
+        return maxReportedDifferences;
+    }
+
+    /**
+     * Compares two objects in the same way as {@link #compareInstances(Object, Object)}, but also records
+     * where the objects differ (without needing TRACE logging).
+     * @param objA The object to be compared to objB.
+     * @param objB The object to be compared to objA. 
+     * @return The {@link ComparisonResult}.
+     */
+    public ComparisonResult compare(Object objA, Object objB) { 
+        return compare(objA, objB, new ComparisonResult(maxReportedDifferences), false);
+    }
+
+    public final static int DEFAULT_MAX_COLLECTED_DIFFERENCES = 1000;
+    private volatile int maxCollectedDifferences = DEFAULT_MAX_COLLECTED_DIFFERENCES;
+
+    /**
+     * @param maxDifferences The number of differences after which {@link #compareAll(Object, Object, DifferenceSink)} stops.
+     */
+    public void setMaxCollectedDifferences(int maxDifferences) { 
+        this.maxCollectedDifferences = maxDifferences;
+    }
+
+    public int getMaxCollectedDifferences() { 
+        return maxCollectedDifferences;
+    }
+
+    /**
+     * @see #compareAll(Object, Object, DifferenceSink)
+     */
+    public ComparisonResult compareAll(Object objA, Object objB) { 
+        return compareAll(objA, objB, null);
+    }
+
+    /**
+     * Compares two objects in the same way as {@link #compare(Object, Object)}, except that the comparison doesn't stop 
+     * at the first difference: the whole object graph is compared (until {@link #getMaxCollectedDifferences()} differences
+     * have been found), so that all differences can be fixed at once. 
+     * </p>
+     * Only the first {@link #getMaxReportedDifferences()} differences are kept in the {@link ComparisonResult}: 
+     * all differences are passed to the given sink as soon as they are found. A difference within a subtree 
+     * that has already been found to be different is not reported again.
+     * @param objA The object to be compared to objB.
+     * @param objB The object to be compared to objA. 
+     * @param sink The sink that receives every difference, or null.
+     * @return The {@link ComparisonResult}.
+     */
+    public ComparisonResult compareAll(Object objA, Object objB, DifferenceSink sink) { 
+        return compare(objA, objB, new ComparisonResult(maxReportedDifferences, maxCollectedDifferences, sink), true);
+    }
+
+    private ComparisonResult compare(Object objA, Object objB, ComparisonResult result, boolean collectAllDifferences) { 
+        DebugContext context = new DebugContext(0, "", true);
+        context.session = newSession(objA, objB);
+        context.session.result = result;
+        context.session.collectAllDifferences = collectAllDifferences;
+
+        try { 
+            result.setSame(compareInstances(context, objA, objB));
+            result.setComparedObjects(context.session.getComparedObjects());
+        }
+        finally { 
+            context.session.close();
+        }
+        return result;
+    }
+
+    private void reportDifference(DebugContext context, String description, Object valueA, Object valueB) { 
+        ComparisonSession session = context.session;
+        if( session != null && session.isRecordingDifferences() ) { 
+            session.result.addDifference(context.getPath(), description, valueA, valueB);
+        }
+    }
+
     /**
      * This method compares two objects recursively. 
+     * </p>
+     * Every call starts a new {@link ComparisonSession}, which means that this method can be called 
+     * concurrently (from different threads) on the same instance, as well as from within a {@link ClassComparer}.
      * @see #compareInstances(DebugContext, Object, Object)
      * @param objA The object to be compared to objB.
      * @param objB The object to be compared to objA. 
      * @return Whether or not the two objects are equal.
      */
     public boolean compareInstances(Object objA, Object objB  ) { 
-        seenObjects = new IdentityHashMap<Object, Object>();
         return compareInstances(null, objA, objB); 
     }
     
@@ -188,7 +540,7 @@ public class CompareViaReflectionUtil {
      *  ==  : objA and objB are the <i>same</i> instance (of the same object)
      *  (=) : objA and objB are class objects and thus both equal and the same
      *  %   : objA and objB are not being compared
-     *  !   : objA has already been compared and will not be compared again 
+     *  !   : objA has already been compared to objB and will not be compared again 
      *         in order to avoid cycles in the object tree</pre>
      * <b>Note</b>: This method has a few weaknesses:<ul>
      * <li>If the object tree contains objects that <i>extend</i> collection objects (HashMap, List, etc.), this method might not compare them 
@@ -213,77 +565,396 @@ public class CompareViaReflectionUtil {
         if( context == null ) { 
             context = new DebugContext(0, "", true);
         }
+        ComparisonSession newSession = null;
+        if( context.session == null ) { 
+            newSession = newSession(objA, objB);
+            context.session = newSession;
+        }
+
+        ComparisonStack stack = ComparisonStack.forCurrentThread();
+        // this comparison might have been started by another comparison that is using the stack
+        int base = stack.size();
+        try { 
+            int state = startComparison(context, objA, objB, stack);
+            if( state == PENDING ) { 
+                return walk(stack, base);
+            }
+            return state == SAME;
+        }
+        finally { 
+            stack.popTo(base);
+            if( newSession != null ) { 
+                newSession.close();
+                context.session = null;
+            }
+        }
+    }
+
+    // The state of a comparison started by startComparison(..)
+    private final static int SAME      = 0;
+    private final static int DIFFERENT = 1;
+    private final static int PENDING   = 2; // a frame has been pushed on the comparison stack
+
+    /**
+     * Compares two objects as far as possible without descending into their fields or elements: 
+     * if that is needed, a {@link ComparisonStack.Frame} is pushed onto the stack instead. 
+     * @param context This contains logging information (recursive level, position in object tree of objA/objB)
+     * @param objA The first instantiation to be compared.
+     * @param objB The second instantiation to be compared.
+     * @param stack The comparison stack of the current thread.
+     * @return {@link #SAME}, {@link #DIFFERENT}, or {@link #PENDING} if a frame has been pushed.
+     */
+    private int startComparison(DebugContext context, Object objA, Object objB, ComparisonStack stack) { 
+        if( context.session.isCancelled() ) { 
+            // a difference has already been found elsewhere in the object graph
+            return DIFFERENT;
+        }
+        context.session.countComparison();
 
         boolean same = false; 
+        // names are only built when they're logged
+        boolean trace = isTraced(context);
 
         if( objA == null && objB == null ) { 
-            context.name += "0";
+            if( trace ) { 
+                context.appendToName("0");
+            }
             same = true;
         }
         else if( objA == null || objB == null ) { 
-            context.name += "X (null)";
+            if( trace ) { 
+                context.appendToName("X (null)");
+            }
+            reportDifference(context, "null", objA, objB);
             same = false;
         }
         else if( objA == objB ) {
-            context.name += objA.getClass().getSimpleName() + " ";
-            String stateSymbol = "==";
-            if( objA instanceof Class<?> | objA instanceof Class) {
-                stateSymbol = "(=)";
+            if( trace ) { 
+                String stateSymbol = "==";
+                if( objA instanceof Class<?> | objA instanceof Class) {
+                    stateSymbol = "(=)";
+                }
+                context.appendToName(objA.getClass().getSimpleName() + " " + stateSymbol);
             }
-            context.name += stateSymbol;
             same = true;
         }
-        else if( objA.getClass().getName().equals(objB.getClass().getName()) ) { 
+        else if( objA.getClass() == objB.getClass() || objA.getClass().getName().equals(objB.getClass().getName()) ) { 
             Class<?> objClass = objA.getClass();
-            context.name += "|" + context.level + "| " + objClass.getSimpleName();
-
-            boolean primitiveBasedObjectOrCollection = false;
-            if( javaPackages.contains(objClass.getPackage()) ) { 
-                primitiveBasedObjectOrCollection = true;
-                same = comparePrimitiveBasedOrCollectionInstances(context, objA, objB);
+            if( trace ) { 
+                context.appendToName("|" + context.level + "| " + objClass.getSimpleName());
             }
-            else if( objClass.isArray() ) { 
-                primitiveBasedObjectOrCollection = true;
-                same = compareArrays(context, objA, objB);
+
+            ClassComparisonPlan plan = getComparisonPlan(objClass);
+            int state;
+            boolean remember = plan.composite && context.session.isUsingMemo();
+
+            if( remember && context.session.isKnownEqual(objA, objB) ) { 
+                if( trace ) { 
+                    context.appendToName(": = (memo)");
+                }
+                remember = false;
+                same = true;
             }
-            else if( classComparerMap.containsKey(objClass) ) { 
-                primitiveBasedObjectOrCollection = true;
-                same = classComparerMap.get(objClass).executeCompare(context, objA, objB);
-            }
-            else {
-                // Check if it's an enum
-                Class<?> superClass = objClass.getSuperclass();
-                while( superClass != null ) { 
-                    if( superClass.equals(Enum.class) ) { 
-                        same = objA.equals(objB);
-                        primitiveBasedObjectOrCollection = true;
-                        break; 
+            else { 
+                switch( plan.kind ) { 
+                case ClassComparisonPlan.JAVA_KIND:
+                    if( plan.javaKind == ClassComparisonPlan.OBJECT_ARRAY_JAVA ) { 
+                        state = startOrderedElements(context, ComparisonStack.COLLECTION_FRAME, objA, objB, (Object []) objA, (Object []) objB, true, stack);
+                    }
+                    else if( plan.javaKind == ClassComparisonPlan.ORDERED_JAVA ) { 
+                        Object [] arrayA = null;
+                        Object [] arrayB = null;
+                        try {
+                            arrayA = (Object []) plan.collectionMethod.invoke(objA, (Object []) null);
+                            arrayB = (Object []) plan.collectionMethod.invoke(objB, (Object []) null);
+                        }
+                        catch( Exception e ) { 
+                            e.printStackTrace();
+                            Assert.fail(e.getClass().getSimpleName() + ": " + e.getMessage() );
+                        }
+                        state = startOrderedElements(context, ComparisonStack.COLLECTION_FRAME, objA, objB, arrayA, arrayB, false, stack);
+                    }
+                    else { 
+                        same = comparePrimitiveBasedOrCollectionInstances(context, plan, objA, objB);
+                        break;
+                    }
+                    if( state == PENDING ) { 
+                        return PENDING;
+                    }
+                    same = state == SAME;
+                    if( trace ) { 
+                        appendCollectionState(context, same, objA, objB);
+                    }
+                    break;
+                case ClassComparisonPlan.ARRAY_KIND:
+                    if( ! objClass.getComponentType().isPrimitive() ) { 
+                        state = startOrderedElements(context, ComparisonStack.ARRAY_FRAME, objA, objB, (Object []) objA, (Object []) objB, true, stack);
+                        if( state == PENDING ) { 
+                            return PENDING;
+                        }
+                        same = state == SAME;
+                    }
+                    else { 
+                        same = compareArrays(context, objA, objB);
+                    }
+                    break;
+                case ClassComparisonPlan.COMPARER_KIND:
+                    // we don't know what the comparer does (with the results of the comparisons that it starts) 
+                    ClassComparer classComparer = classComparerMap.get(objClass);
+                    same = compareTrial(context, classComparer, objA, objB);
+                    if( ! same ) { 
+                        reportDifference(context, classComparer.getClass().getSimpleName(), objA, objB);
+                    }
+                    break;
+                case ClassComparisonPlan.ENUM_KIND:
+                    same = objA.equals(objB);
+                    if( ! same ) { 
+                        reportDifference(context, "value", objA, objB);
+                    }
+                    break;
+                default:
+                    if( context.session.isKnownDifferent(objA, objB) ) { 
+                        // (the difference has already been reported)
+                        if( trace ) { 
+                            context.appendToName(": X (!)");
+                        }
+                        same = false;
+                    }
+                    else if( context.session.markSeen(objA, objB) ) { 
+                        if( trace ) { 
+                            for( int i = 0; i < plan.ignoredFieldNames.length; ++i ) { 
+                                logger.trace( context.getName() + ": " + plan.ignoredFieldNames[i] + " %" );
+                            }
+                        }
+                        state = startInstancesOfSameClass(context, plan, objA, objB, stack, trace);
+                        if( state == PENDING ) { 
+                            return PENDING;
+                        }
+                        same = state == SAME;
+                        if( !same ) { 
+                            context.session.markDifferent(objA, objB);
+                        }
+                        if( trace ) { 
+                            context.appendToName(same ? ": =" : ": X");
+                        }
+                    }
+                    else { 
+                        if( trace ) { 
+                            context.appendToName(": !");
+                        }
+                        // (still being compared, or already found to be equal)
+                        remember = false;
+                        same = true;
                     }
-                    superClass = superClass.getSuperclass();
                 }
             }
+            if( remember && same ) { 
+                context.session.markEqual(objA, objB);
+            }
+        }
+        else { 
+            if( trace ) { 
+                context.appendToName(": X (class)");
+            }
+            reportDifference(context, "class", objA.getClass().getName(), objB.getClass().getName());
+        }
+
+        if( trace ) { 
+            logger.trace( context.getName() );
+        }
+        return same ? SAME : DIFFERENT;
+    }
 
-            if( ! primitiveBasedObjectOrCollection ) { 
-                if( seenObjects.put(objA, objA) == null ) { 
-                    same = compareInstancesOfSameClass(context, objA, objB);
-                    if( !same ) { 
-                        seenObjects.remove(objA);
+    /**
+     * Walks through the object graph: the frame on top of the stack compares its next field or element, 
+     * until a nested frame is pushed or all fields or elements have been compared. When a frame is done, 
+     * it's popped and its result is used by the frame below it. 
+     * </p>
+     * Fields and elements are compared in the same order (and with the same result) as they would be 
+     * when comparing recursively: when a field or element is different, all frames (of this comparison) are done, 
+     * unless all differences are being collected, in which case the frame below continues with its next field or element.
+     * @param stack The comparison stack of the current thread.
+     * @param base The size of the stack before this comparison started.
+     * @return Whether or not the objects of the first frame of this comparison are equal.
+     */
+    private boolean walk(ComparisonStack stack, int base) { 
+        boolean same = true;
+        while( stack.size() > base ) { 
+            ComparisonStack.Frame frame = stack.peek();
+            int state = DIFFERENT;
+            if( ! same && frame.context.session.isCollectingAllDifferences() ) { 
+                frame.same = false;
+                same = true;
+            }
+            if( same ) { 
+                try { 
+                    state = continueFrame(frame, stack);
+                }
+                catch( IllegalAccessException iae ) { 
+                    iae.printStackTrace();
+                    fail(iae.getClass().getSimpleName() + ": " + iae.getMessage() );
+                }
+                if( state == PENDING ) { 
+                    continue;
+                }
+            }
+            same = state == SAME;
+            completeFrame(frame, same);
+            stack.pop();
+        }
+        return same;
+    }
+
+    /**
+     * @return {@link #SAME} or {@link #DIFFERENT} if all fields or elements of the frame have been compared,
+     *  {@link #PENDING} if a nested frame was pushed (after which the comparison of this frame will be continued). 
+     */
+    private int continueFrame(ComparisonStack.Frame frame, ComparisonStack stack) throws IllegalAccessException { 
+        DebugContext context = frame.context;
+        if( frame.kind != ComparisonStack.OBJECT_FRAME ) { 
+            Object [] arrayA = frame.arrayA;
+            Object [] arrayB = frame.arrayB;
+            while( frame.next < arrayA.length ) { 
+                int i = frame.next++;
+                DebugContext subContext = frame.indexed ? context.nestedIndexClone(i) : context.nestedClone(": <elem> ");
+                int state = startComparison(subContext, arrayA[i], arrayB[i], stack);
+                if( state != SAME && ! continueAfter(frame, state) ) { 
+                    return state;
+                }
+            }
+            return frame.same ? SAME : DIFFERENT;
+        }
+
+        SpecializedComparator specializedComparator = frame.specializedComparator;
+        if( specializedComparator != null ) { 
+            // the primitive and leaf fields have already been compared 
+            FieldAccessor [] accessors = specializedComparator.referenceAccessors;
+            while( frame.next < accessors.length ) { 
+                int i = frame.next++;
+                DebugContext subContext = context.nestedClone(specializedComparator.referenceContextNames[i]);
+                int state = startComparison(subContext, accessors[i].get(frame.objA), accessors[i].get(frame.objB), stack);
+                if( state != SAME && ! continueAfter(frame, state) ) { 
+                    return state;
+                }
+            }
+            return frame.same ? SAME : DIFFERENT;
+        }
+
+        ClassComparisonPlan plan = frame.plan;
+        boolean trace = isTraced(context);
+        while( frame.next < plan.fields.length ) { 
+            int i = frame.next++;
+            int fieldKind = plan.fieldKinds[i];
+            FieldAccessor accessor = plan.accessors[i];
+            if( fieldKind == ClassComparisonPlan.PRIMITIVE_FIELD && ! trace ) { 
+                if( ! accessor.samePrimitiveValue(frame.objA, frame.objB) ) { 
+                    reportDifference(context.nestedClone(plan.fieldContextNames[i]), "value", accessor.get(frame.objA), accessor.get(frame.objB));
+                    if( ! continueAfter(frame, DIFFERENT) ) { 
+                        return DIFFERENT;
                     }
                 }
-                else { 
-                    context.name += ": !";
-                    same = true;
+                continue;
+            }
+            DebugContext subContext = context.nestedClone(plan.fieldContextNames[i]);
+            Object subObjA = accessor.get(frame.objA);
+            Object subObjB = accessor.get(frame.objB);
+            if( fieldKind == ClassComparisonPlan.RECURSIVE_FIELD || subObjA == null || subObjB == null || subObjA == subObjB ) { 
+                int state = startComparison(subContext, subObjA, subObjB, stack);
+                if( state != SAME && ! continueAfter(frame, state) ) { 
+                    return state;
                 }
             }
+            else if( ! compareFieldValues(subContext, fieldKind, subObjA, subObjB) && ! continueAfter(frame, DIFFERENT) ) { 
+                return DIFFERENT;
+            }
         }
-        else { 
-            context.name += ": X (class)";
+        return frame.same ? SAME : DIFFERENT;
+    }
+
+    /**
+     * @param state The state of the comparison of a field or element of the frame: {@link #DIFFERENT} or {@link #PENDING}.
+     * @return Whether or not the frame continues with its next field or element: only if the field or element 
+     * is different and all differences are being collected.
+     */
+    private static boolean continueAfter(ComparisonStack.Frame frame, int state) { 
+        if( state == DIFFERENT && frame.context.session.isCollectingAllDifferences() ) { 
+            frame.same = false;
+            return true;
         }
+        return false;
+    }
 
-        if( context.print ) { 
-            logger.trace( context.name );
+    /**
+     * Does what {@link #startComparison(DebugContext, Object, Object, ComparisonStack)} would have done 
+     * once the fields or elements of the objects have been compared. 
+     */
+    private void completeFrame(ComparisonStack.Frame frame, boolean same) { 
+        DebugContext context = frame.context;
+        boolean trace = isTraced(context);
+        if( same ) { 
+            context.session.markEqual(frame.objA, frame.objB);
         }
-        return same;
+        switch( frame.kind ) { 
+        case ComparisonStack.OBJECT_FRAME:
+            if( ! same ) { 
+                context.session.markDifferent(frame.objA, frame.objB);
+            }
+            if( trace ) { 
+                context.appendToName(same ? ": =" : ": X");
+            }
+            break;
+        case ComparisonStack.COLLECTION_FRAME:
+            if( trace ) { 
+                appendCollectionState(context, same, frame.objA, frame.objB);
+            }
+            break;
+        default:
+            // no-op
+        }
+        if( trace ) { 
+            logger.trace( context.getName() );
+        }
+    }
+
+    private void appendCollectionState(DebugContext context, boolean same, Object objA, Object objB) { 
+        context.appendToName(": " + (same ? "=" : "X (" + objA.toString() + "/" + objB.toString() + ")"));
+    }
+
+    /**
+     * Compares the elements of two ordered arrays (or collections), pushing a frame if the elements have to be compared. 
+     * @return {@link #SAME}, {@link #DIFFERENT}, or {@link #PENDING} if a frame has been pushed.
+     */
+    private int startOrderedElements(DebugContext context, int frameKind, Object objA, Object objB, Object [] arrayA, Object [] arrayB, 
+            boolean indexed, ComparisonStack stack) { 
+        if( arrayA == null || arrayB == null ) { 
+            if( arrayA == arrayB ) { 
+                return SAME;
+            }
+            reportDifference(context, "null", arrayA, arrayB);
+            return DIFFERENT;
+        }
+        if( arrayA.length != arrayB.length ) { 
+            reportDifference(context, "size", arrayA.length, arrayB.length);
+            return DIFFERENT;
+        }
+        if( arrayA.length == 0 ) { 
+            return SAME;
+        }
+        if( context.session.isSplit(arrayA.length) ) { 
+            return compareOrderedElements(context, arrayA, arrayB, indexed) ? SAME : DIFFERENT;
+        }
+
+        ComparisonStack.Frame frame = stack.push();
+        frame.kind = frameKind;
+        frame.context = context;
+        frame.objA = objA;
+        frame.objB = objB;
+        frame.arrayA = arrayA;
+        frame.arrayB = arrayB;
+        frame.indexed = indexed;
+        frame.next = 0;
+        frame.same = true;
+        return PENDING;
     }
 
     public boolean compareArrays(DebugContext context, Object objA, Object objB) { 
@@ -302,6 +973,49 @@ public class CompareViaReflectionUtil {
         }
 
         // Check Sameness
+        boolean same = false;
+        switch(classType) { 
+        case OBJECT:
+            int lengthA = Array.getLength(objA);
+            int lengthB = Array.getLength(objB);
+            if( lengthA != lengthB ) { 
+                reportDifference(context, "size", lengthA, lengthB);
+                same = false;
+            }
+            else if( lengthA == 0 ) { 
+                same = true;
+            }
+            else { 
+                same = compareOrderedElements(context, (Object []) objA, (Object []) objB, true);
+            }
+            break;
+        case NULL:
+            same = objA == objB;
+            break;
+        default: 
+            same = comparePrimitiveArrays(classType, objA, objB);
+        }
+
+        if( ! same && classType != OBJECT ) { 
+            reportDifference(context, "value", objA, objB);
+        }
+        return same;
+    }
+
+    /**
+     * Compares two arrays of primitives (of the same class) without reporting the difference: 
+     * see {@link SpecializedComparator}.
+     * @return Whether or not objA and objB are equal.
+     */
+    static boolean comparePrimitiveArrays(Object objA, Object objB) { 
+        Integer classType = arrClassMap.get(objA.getClass());
+        if( classType == null ) { 
+            fail( "Unable to determine class of array [" + objA.getClass().getName() + "]");
+        }
+        return comparePrimitiveArrays(classType, objA, objB);
+    }
+
+    private static boolean comparePrimitiveArrays(int classType, Object objA, Object objB) { 
         boolean same = false;
         switch(classType) { 
         case BYTE:
@@ -328,30 +1042,9 @@ public class CompareViaReflectionUtil {
         case CHAR:
             same = Arrays.equals((char []) objB,(char [])objA);
             break;
-        case OBJECT:
-            int lengthA = Array.getLength(objA);
-            int lengthB = Array.getLength(objB);
-            if( lengthA != lengthB ) { 
-                same = false;
-            }
-            else if( lengthA == 0 ) { 
-                same = true;
-            }
-            else { 
-                same = true;
-                for( int i = 0; same && i < lengthA; ++i ) { 
-                    DebugContext subContext = context.nestedClone(": (" + i + ") ");
-                    same = compareInstances(subContext, Array.get(objA, i), Array.get(objB, i));
-                }
-            }
-            break;
-        case NULL:
-            same = objA == objB;
-            break;
         default: 
             fail( "Unable to determine class of array [" +  classType + "]");
         }
-
         return same;
     }
 
@@ -360,50 +1053,192 @@ public class CompareViaReflectionUtil {
      * <li>Neither of the objects are null</li>
      * <li>Both of the objects belong to the same class</li>
      * </ul>
-     * In this method, we go through <i>all</i> fields of the object and compare them (recursively).
+     * The fields of the objects (and how they should be compared) are retrieved from the {@link ClassComparisonPlan} 
+     * for the class of the objects. Primitive and leaf fields might be compared right away (see {@link SpecializedComparator}), 
+     * after which a frame is pushed to compare the (remaining) fields one by one: see {@link #walk(ComparisonStack, int)}.
      * <br/>
      * @param context This contains logging information (recursive level, position in object tree of objA/objB)
+     * @param plan The comparison plan for the class of objA and objB.
      * @param objA The first instantiation to be compared.
      * @param objB The first instantiation to be compared.
-     * @return Whether or not objA and objB are equal.
+     * @param stack The comparison stack of the current thread.
+     * @param trace Whether or not TRACE logging is enabled for this comparison.
+     * @return {@link #SAME}, {@link #DIFFERENT}, or {@link #PENDING} if a frame has been pushed.
      */
-    private boolean compareInstancesOfSameClass(DebugContext context, Object objA, Object objB) { 
-        boolean same = false;
+    private int startInstancesOfSameClass(DebugContext context, ClassComparisonPlan plan, Object objA, Object objB, 
+            ComparisonStack stack, boolean trace) { 
+        SpecializedComparator specializedComparator = null;
         try { 
-            Class<?> objClass = objA.getClass();
-            do {
-                Field [] fields = objClass.getDeclaredFields();
-                if( fields.length == 0 ) { 
-                    same = true;
-                }
-                else { 
-                    same = true;
-                    for( int i = 0; same && i < fields.length; ++i ) { 
-                        DebugContext subContext = context.nestedClone(": " + fields[i].getName() + " > ");
-
-                        if( Modifier.isTransient(fields[i].getModifiers()) ||
-                            doNotCompareFieldsMap.contains(fields[i]) ) {   
-                            if( context.print ) { 
-                                logger.trace( context.name + ": " + fields[i].getName() + " %" );
-                            }
-                            continue; 
-                        }
+            if( context.session.isSplit(plan.referenceFieldIndexes.length) ) { 
+                return compareWideInstances(context, plan, objA, objB, trace) ? SAME : DIFFERENT;
+            }
 
-                        fields[i].setAccessible(true);
-                        Object subObjA = fields[i].get(objA);
-                        Object subObjB = fields[i].get(objB);
-                        same = compareInstances(subContext, subObjA, subObjB);
+            specializedComparator = plan.getSpecializedComparator(specializationThreshold, fieldAccessEngine);
+            if( trace ) { 
+                specializedComparator = null;
+            }
+            if( specializedComparator != null ) { 
+                if( ! specializedComparator.compareLeaves(objA, objB) ) { 
+                    if( ! context.session.isRecordingDifferences() ) { 
+                        return DIFFERENT;
                     }
+                    // compare field by field (again), to find out which field is different
+                    specializedComparator = null;
                 }
-                objClass = objClass.getSuperclass();
-            } while( objClass != null && same);
-            context.name += ": " + (same ? "=" : "X");
+                else if( specializedComparator.referenceAccessors.length == 0 ) { 
+                    return SAME;
+                }
+            }
+            else if( plan.fields.length == 0 ) { 
+                return SAME;
+            }
         }
         catch( Exception e ) { 
-            same = false;
             e.printStackTrace();
             fail(e.getClass().getSimpleName() + ": " + e.getMessage() );
         }
+
+        ComparisonStack.Frame frame = stack.push();
+        frame.kind = ComparisonStack.OBJECT_FRAME;
+        frame.context = context;
+        frame.objA = objA;
+        frame.objB = objB;
+        frame.plan = plan;
+        frame.specializedComparator = specializedComparator;
+        frame.next = 0;
+        frame.same = true;
+        return PENDING;
+    }
+
+    private boolean compareField(DebugContext context, ClassComparisonPlan plan, int i, Object objA, Object objB, boolean trace) 
+        throws IllegalAccessException { 
+        FieldAccessor accessor = plan.accessors[i];
+        if( plan.fieldKinds[i] == ClassComparisonPlan.PRIMITIVE_FIELD && ! trace ) { 
+            if( ! accessor.samePrimitiveValue(objA, objB) ) { 
+                reportDifference(context.nestedClone(plan.fieldContextNames[i]), "value", accessor.get(objA), accessor.get(objB));
+                return false;
+            }
+            return true;
+        }
+        DebugContext subContext = context.nestedClone(plan.fieldContextNames[i]);
+        return compareFieldValues(subContext, plan.fieldKinds[i], accessor.get(objA), accessor.get(objB));
+    }
+
+    /**
+     * Compares the fields of two objects in a parallel comparison: the fields that are not compared recursively
+     * are compared first, after which the comparison of the reference fields may be split into subtasks.
+     */
+    private boolean compareWideInstances(final DebugContext context, final ClassComparisonPlan plan, final Object objA, final Object objB, 
+            final boolean trace) throws IllegalAccessException { 
+        boolean same = true;
+        for( int i = 0; i < plan.fields.length; ++i ) { 
+            if( plan.fieldKinds[i] != ClassComparisonPlan.RECURSIVE_FIELD && ! compareField(context, plan, i, objA, objB, trace) ) { 
+                same = false;
+                if( ! context.session.isCollectingAllDifferences() ) { 
+                    return false;
+                }
+            }
+        }
+        return context.session.compareRange(new ComparisonSession.IndexedComparison() {
+            boolean compare(int index) {
+                try { 
+                    return compareField(context, plan, plan.referenceFieldIndexes[index], objA, objB, trace);
+                }
+                catch( IllegalAccessException iae ) { 
+                    fail(iae.getClass().getSimpleName() + ": " + iae.getMessage() );
+                    return false;
+                }
+            }
+        }, 0, plan.referenceFieldIndexes.length) && same;
+    }
+
+    /**
+     * Compares the elements of two (ordered) arrays of the same length, element by element.
+     * @param context This contains logging information (recursive level, position in object tree of objA/objB)
+     * @param arrayA The first array.
+     * @param arrayB The second array.
+     * @param indexed Whether the elements are logged with their index (arrays) or not (collections).
+     * @return Whether or not all elements are equal.
+     */
+    private boolean compareOrderedElements(final DebugContext context, final Object [] arrayA, final Object [] arrayB, final boolean indexed) { 
+        return context.session.compareRange(new ComparisonSession.IndexedComparison() {
+            boolean compare(int i) {
+                DebugContext subContext = indexed ? context.nestedIndexClone(i) : context.nestedClone(": <elem> ");
+                return compareInstances(subContext, arrayA[i], arrayB[i]);
+            }
+        }, 0, arrayA.length);
+    }
+
+    /**
+     * Compares two objects in a trial: a comparison whose negative outcome does not necessarily mean 
+     * that the object graphs being compared are different, such as when looking for the matching element of a set. 
+     * @see ComparisonSession#startTrial()
+     * @param subContext The (nested) context for the trial.
+     * @param classComparer The comparer to use, or null to use {@link #compareInstances(DebugContext, Object, Object)}.
+     * @return Whether or not objA and objB are equal.
+     */
+    private boolean compareTrial(DebugContext subContext, ClassComparer classComparer, Object objA, Object objB) { 
+        ComparisonSession session = subContext.session;
+        subContext.session = session.startTrial();
+        boolean same = false;
+        try { 
+            if( classComparer != null ) { 
+                same = classComparer.executeCompare(subContext, objA, objB);
+            }
+            else { 
+                same = compareInstances(subContext, objA, objB);
+            }
+        }
+        finally { 
+            session.endTrial(subContext.session, same);
+            subContext.session = session;
+        }
+        return same;
+    }
+
+    private static boolean isTraced(DebugContext context) { 
+        return context.print && logger.isTraceEnabled();
+    }
+
+    /**
+     * Compares the values of a field, using the field kind from the {@link ClassComparisonPlan}
+     * to skip the class checks in {@link #compareInstances(DebugContext, Object, Object)} when possible.
+     * @param context This contains logging information (recursive level, position in object tree of objA/objB)
+     * @param fieldKind How the values of this field are compared (see {@link ClassComparisonPlan}).
+     * @param objA The value of the field in the first object.
+     * @param objB The value of the field in the second object.
+     * @return Whether or not objA and objB are equal.
+     */
+    private boolean compareFieldValues(DebugContext context, int fieldKind, Object objA, Object objB) { 
+        if( fieldKind == ClassComparisonPlan.RECURSIVE_FIELD || objA == null || objB == null || objA == objB ) { 
+            return compareInstances(context, objA, objB);
+        }
+
+        boolean same;
+        switch( fieldKind ) { 
+        case ClassComparisonPlan.PRIMITIVE_FIELD:
+        case ClassComparisonPlan.VALUE_FIELD:
+            same = objA.equals(objB);
+            break;
+        case ClassComparisonPlan.ARRAY_FIELD:
+            same = compareArrays(context, objA, objB);
+            break;
+        case ClassComparisonPlan.ENUM_FIELD:
+            // different (non-null) enum instances are never equal
+            same = false;
+            break;
+        default: 
+            return compareInstances(context, objA, objB);
+        }
+
+        if( ! same && fieldKind != ClassComparisonPlan.ARRAY_FIELD ) { 
+            // (compareArrays() reports its own differences)
+            reportDifference(context, "value", objA, objB);
+        }
+        if( isTraced(context) ) { 
+            logger.trace( context.getName() + "|" + context.level + "| " + objA.getClass().getSimpleName() 
+                    + ": " + (same ? "=" : "X (" + objA.toString() + "/" + objB.toString() + ")") );
+        }
         return same;
     }
 
@@ -418,31 +1253,39 @@ public class CompareViaReflectionUtil {
      * @param objB The first instantiation to be compared.
      * @return Whether or not objA and objB are equal.
      */
-    private boolean comparePrimitiveBasedOrCollectionInstances(DebugContext context, Object objA, Object objB) { 
+    private boolean comparePrimitiveBasedOrCollectionInstances(DebugContext context, ClassComparisonPlan plan, Object objA, Object objB) { 
         boolean same = false;
 
-        Class<?> objClass = objA.getClass();
-        Method [] methods = getMethodToRetrieveCollection(objClass);
         try { 
-            if( methods[TO_ARRAY] != null ) { 
-                same = compareArrayBasedObjects(context, methods[TO_ARRAY], objA, objB);
-            }
-            else if( methods[ENTRY_SET] != null) {
-                same = compareEntrySetBasedObjects(context, methods[ENTRY_SET], objA, objB);
-            }
-            else if( objClass.isArray() ) { 
-                same = compareArrays(context, objA, objB);
-            }
-            else if( atomicPrimitiveClasses.contains(objClass) ) { 
+            switch( plan.javaKind ) { 
+            case ClassComparisonPlan.EQUALS_JAVA:
+                same = objA.equals(objB);
+                if( ! same ) { 
+                    reportDifference(context, "value", objA, objB);
+                }
+                break;
+            case ClassComparisonPlan.ORDERED_JAVA:
+            case ClassComparisonPlan.SET_JAVA:
+                same = compareArrayBasedObjects(context, plan.collectionMethod, plan.javaKind == ClassComparisonPlan.SET_JAVA, objA, objB);
+                break;
+            case ClassComparisonPlan.MAP_JAVA:
+                same = compareEntrySetBasedObjects(context, plan.collectionMethod, objA, objB);
+                break;
+            case ClassComparisonPlan.ATOMIC_JAVA:
                 same = compareAtomicPrimitives(objA, objB);
-            }
-            else if( atomicArrayClasses.contains(objClass) ) { 
+                if( ! same ) { 
+                    reportDifference(context, "value", objA, objB);
+                }
+                break;
+            case ClassComparisonPlan.ATOMIC_ARRAY_JAVA:
                 same = compareAtomicArrays(context, objA, objB);
+                break;
+            default:
+                same = compareArrays(context, objA, objB);
             }
-            else {
-                same = objA.equals(objB);
+            if( isTraced(context) ) { 
+                context.appendToName(": " + (same ? "=" : "X (" + objA.toString() + "/" + objB.toString() + ")"));
             }
-            context.name += ": " + (same ? "=" : "X (" + objA.toString() + "/" + objB.toString() + ")");
         }
         catch( Exception e ) { 
             e.printStackTrace();
@@ -483,6 +1326,7 @@ public class CompareViaReflectionUtil {
                 length = (Integer) valA;
             }
             else { 
+                reportDifference(context, "size", valA, valB);
                 return false;
             }
         }
@@ -493,7 +1337,7 @@ public class CompareViaReflectionUtil {
 
         try {
             Method getMethod = objA.getClass().getMethod("get", new Class[] { int.class } );
-            for( int i = 0; i < length && same; ++i ) { 
+            for( int i = 0; i < length && (same || context.session.isCollectingAllDifferences()); ++i ) { 
                 Object subObjA = getMethod.invoke(objA, i);
                 Object subObjB = getMethod.invoke(objB, i);
 
@@ -501,8 +1345,8 @@ public class CompareViaReflectionUtil {
                     continue;
                 }
 
-                DebugContext subContext = context.nestedClone(": (" + i + ") ");
-                same = compareInstances(subContext, subObjA, subObjB);
+                DebugContext subContext = context.nestedIndexClone(i);
+                same = compareInstances(subContext, subObjA, subObjB) && same;
             }
         } catch (Exception e) {
             same = false;
@@ -524,7 +1368,7 @@ public class CompareViaReflectionUtil {
      * @param objA The object that we want to retrieve this method for.
      * @return The requested Method.
      */
-    private Method [] getMethodToRetrieveCollection(Class<?> objClass) { 
+    Method [] getMethodToRetrieveCollection(Class<?> objClass) { 
         Method [] methods = new Method[2];
 
         do { 
@@ -551,7 +1395,7 @@ public class CompareViaReflectionUtil {
         return methods;
     }
 
-    private boolean compareArrayBasedObjects(DebugContext context, Method toArrayMethod, Object objA, Object objB) throws Exception { 
+    private boolean compareArrayBasedObjects(DebugContext context, Method toArrayMethod, boolean isSet, Object objA, Object objB) throws Exception { 
         boolean same = true; 
 
         Object [] arrayA = (Object []) toArrayMethod.invoke(objA, (Object []) null);
@@ -562,10 +1406,12 @@ public class CompareViaReflectionUtil {
             return true;
         }
         else if( arrayA == null || arrayB == null ) { 
+            reportDifference(context, "null", arrayA, arrayB);
             return false;
         }
         else { 
             if( arrayA.length != arrayB.length ) { 
+                reportDifference(context, "size", arrayA.length, arrayB.length);
                 return false;
             }
             if( arrayA.length == 0 ) { 
@@ -573,39 +1419,31 @@ public class CompareViaReflectionUtil {
             }
 
             // Check whether order matters
-            Class<?> superClass = objA.getClass().getSuperclass();
-            boolean isSet = false;
-            while( superClass != null ) { 
-                if( superClass.equals(AbstractSet.class) ) { 
-                    isSet = true; 
-                }
-                superClass = superClass.getSuperclass();
+            if( isSet && hashedUnorderedMatching ) { 
+                return compareUnorderedElements(context, arrayA, arrayB);
+            }
+
+            if( ! isSet ) { 
+                // order matters, compare element a from both arrays
+                return compareOrderedElements(context, arrayA, arrayB, false);
             }
 
             // Check content
-            for( int a = 0; same && a < arrayA.length; ++a ) { 
+            for( int a = 0; (same || context.session.isCollectingAllDifferences()) && a < arrayA.length; ++a ) { 
                 Object subObjA = arrayA[a];
 
-                if( ! isSet ) { 
-                    // order matters, compare element a from both arrays
-                    Object subObjB = arrayB[a];
-                    
+                // order doesn't matter, check if a matching element exists in arrayB
+                boolean elementIsSame = false;
+                for( int b = 0; ! elementIsSame && b < arrayB.length; ++b ) { 
+                    Object subObjB = arrayB[b];
+
                     DebugContext subContext = context.nestedClone(": <elem> ");
-                    same = compareInstances(subContext, subObjA, subObjB);
-                }
-                else { 
-                    // order doesn't matter, check if a matching element exists in arrayB
-                    boolean elementIsSame = false;
-                    for( int b = 0; ! elementIsSame && b < arrayB.length; ++b ) { 
-                        Object subObjB = arrayB[b];
-                        
-                        DebugContext subContext = context.nestedClone(": <elem> ");
-                        elementIsSame = compareInstances(subContext, subObjA, subObjB);
-                    }
-                    if( elementIsSame == false ) { 
-                       same = false; 
-                    }
-                } 
+                    elementIsSame = compareTrial(subContext, null, subObjA, subObjB);
+                }
+                if( elementIsSame == false ) { 
+                    reportDifference(context, "no matching element", subObjA, null);
+                    same = false; 
+                }
             }
                 
         }
@@ -613,6 +1451,153 @@ public class CompareViaReflectionUtil {
         return same;
     }
 
+    static boolean isSet(Class<?> objClass) { 
+        Class<?> superClass = objClass.getSuperclass();
+        while( superClass != null ) { 
+            if( superClass.equals(AbstractSet.class) ) { 
+                return true;
+            }
+            superClass = superClass.getSuperclass();
+        }
+        return false;
+    }
+
+    /**
+     * The elements of a set (or the keys of a map), put into buckets based on their structural hash.
+     * @see #setHashedUnorderedMatching(boolean)
+     */
+    private class HashBuckets { 
+
+        private final StructuralHasher hasher = new StructuralHasher(CompareViaReflectionUtil.this, unorderedMatchingHashDepth);
+        private final HashMap<Long, List<Integer>> buckets = new HashMap<Long, List<Integer>>();
+        // the elements whose hash went through a cycle: they can be equal to an element with another hash
+        private final List<Integer> unhashedElements = new ArrayList<Integer>(0);
+        private final boolean [] matched;
+
+        HashBuckets(Object [] elements) { 
+            matched = new boolean[elements.length];
+            for( int i = 0; i < elements.length; ++i ) { 
+                Long hash = hasher.hash(elements[i]);
+                if( hasher.isLastHashFollowedCycle() ) { 
+                    unhashedElements.add(i);
+                    continue;
+                }
+                List<Integer> bucket = buckets.get(hash);
+                if( bucket == null ) { 
+                    bucket = new ArrayList<Integer>(1);
+                    buckets.put(hash, bucket);
+                }
+                bucket.add(i);
+            }
+        }
+
+        /**
+         * @return The indexes of the elements that can be equal to the given element: the elements with the same hash,
+         * followed by the elements whose hash can't be trusted (or, if the hash of the given element can't be trusted,
+         * all other elements).
+         */
+        List<Integer> getCandidates(Object element) { 
+            long hash = hasher.hash(element);
+            if( hasher.isLastHashFollowedCycle() ) { 
+                List<Integer> candidates = new ArrayList<Integer>(matched.length);
+                for( int i = 0; i < matched.length; ++i ) { 
+                    candidates.add(i);
+                }
+                return candidates;
+            }
+            List<Integer> bucket = buckets.get(hash);
+            if( unhashedElements.isEmpty() ) { 
+                return bucket != null ? bucket : unhashedElements;
+            }
+            List<Integer> candidates = new ArrayList<Integer>(unhashedElements);
+            if( bucket != null ) { 
+                candidates.addAll(0, bucket);
+            }
+            return candidates;
+        }
+    }
+
+    /**
+     * Compares the elements of two sets using hashed unordered matching.
+     * @see #setHashedUnorderedMatching(boolean)
+     */
+    private boolean compareUnorderedElements(DebugContext context, Object [] arrayA, Object [] arrayB) { 
+        HashBuckets bucketsB = new HashBuckets(arrayB);
+
+        boolean same = true;
+        for( int a = 0; a < arrayA.length; ++a ) { 
+            Object subObjA = arrayA[a];
+            int match = -1;
+
+            List<Integer> candidates = bucketsB.getCandidates(subObjA);
+            for( int i = 0; match < 0 && i < candidates.size(); ++i ) { 
+                int b = candidates.get(i);
+                if( ! bucketsB.matched[b] && compareTrial(context.nestedClone(": <elem> "), null, subObjA, arrayB[b]) ) { 
+                    match = b;
+                }
+            }
+
+            if( match < 0 ) { 
+                // a matching element was not found in arrayB
+                reportDifference(context, "no matching element", subObjA, null);
+                same = false;
+                if( ! context.session.isCollectingAllDifferences() ) { 
+                    break;
+                }
+                continue;
+            }
+            bucketsB.matched[match] = true;
+        }
+        return same;
+    }
+
+    /**
+     * Compares the entries of two maps using hashed unordered matching of the keys.
+     * @see #setHashedUnorderedMatching(boolean)
+     */
+    private boolean compareUnorderedEntries(DebugContext context, Set<Map.Entry<?,?>> entrySetA, Set<Map.Entry<?,?>> entrySetB) { 
+        Map.Entry<?, ?> [] entriesB = entrySetB.toArray(new Map.Entry<?, ?>[entrySetB.size()]);
+        Object [] keysB = new Object[entriesB.length];
+        for( int b = 0; b < entriesB.length; ++b ) { 
+            keysB[b] = entriesB[b].getKey();
+        }
+        HashBuckets bucketsB = new HashBuckets(keysB);
+
+        boolean same = true;
+        for( Entry<?, ?> entryA : entrySetA ) { 
+            Object keyA = entryA.getKey();
+            int match = -1;
+
+            List<Integer> candidates = bucketsB.getCandidates(keyA);
+            for( int i = 0; match < 0 && i < candidates.size(); ++i ) { 
+                int b = candidates.get(i);
+                if( ! bucketsB.matched[b] && compareKeys(context, keyA, keysB[b]) ) { 
+                    match = b;
+                }
+            }
+
+            if( match < 0 ) { 
+                reportDifference(context, "no matching key", keyA, null);
+                same = false;
+            }
+            else { 
+                bucketsB.matched[match] = true;
+                DebugContext entryContext = context.nestedClone(": " + "<entry> ");
+                same = compareInstances(entryContext, entryA.getValue(), entriesB[match].getValue()) && same;
+            }
+            if( ! same && ! context.session.isCollectingAllDifferences() ) { 
+                break;
+            }
+        }
+        return same;
+    }
+
+    private boolean compareKeys(DebugContext context, Object keyA, Object keyB) { 
+        DebugContext keyContext = context.nestedClone(": " + "<key> ");
+        keyContext.print = false;
+        return compareTrial(keyContext, null, keyA, keyB);
+    }
+
     private boolean compareEntrySetBasedObjects(DebugContext context, Method entrySetMethod, Object objA, Object objB) throws Exception { 
         boolean same = true; 
 
@@ -626,19 +1611,25 @@ public class CompareViaReflectionUtil {
             return true;
         }
         else if( entrySetA == null || entrySetB == null ) { 
+            reportDifference(context, "null", entrySetA, entrySetB);
             return false;
         }
         
         if( entrySetA.size() != entrySetB.size() ) { 
+            reportDifference(context, "size", entrySetA.size(), entrySetB.size());
             return false;
         }
         if( entrySetA.size() == 0 ) { 
             return true;
         }
+        if( hashedUnorderedMatching ) { 
+            return compareUnorderedEntries(context, entrySetA, entrySetB);
+        }
 
         // Check content
         for( Entry<?, ?> entryA : entrySetA ) { 
             boolean elementIsSame = false;
+            boolean keyFound = false;
 
             Object keyA = entryA.getKey();
             for( Entry<?, ?> entryB : entrySetB ) { 
@@ -646,49 +1637,148 @@ public class CompareViaReflectionUtil {
                 DebugContext entryContext = context.nestedClone(": " + "<key> ");
                 entryContext.print = false;
                 
-                if( compareInstances(entryContext, keyA, keyB) ) { 
-                    logger.trace( entryContext.name );
-                    entryContext.name = context.name + ": " + "<entry> ";
-                    entryContext.print = true;
+                if( compareTrial(entryContext, null, keyA, keyB) ) { 
+                    if( isTraced(context) ) { 
+                        logger.trace( entryContext.getName() );
+                    }
+                    entryContext = context.nestedClone(": " + "<entry> ");
+                    keyFound = true;
                     elementIsSame = compareInstances(entryContext, entryA.getValue(), entryB.getValue());
                     break;
                 }
             }
 
+            if( ! keyFound ) { 
+                reportDifference(context, "no matching key", keyA, null);
+            }
             if( ! elementIsSame ) { 
                 // a matching element was not found in arrayB
                 same = false;
-                break;
+                if( ! context.session.isCollectingAllDifferences() ) { 
+                    break;
+                }
             }
         }
 
         return same;
     } 
 
+    /**
+     * The position of a comparison in the object graph, used for (TRACE) logging. 
+     * </p>
+     * A context only refers to the context that it was (nested) cloned from: its name (the path from the root of 
+     * the object graph) is only built when it's needed, which is when TRACE logging is enabled or when 
+     * {@link #getName()} is called. 
+     */
     public class DebugContext { 
        private int level;
        private String name;
        public boolean print;
+       private ComparisonSession session;
+
+       private DebugContext parent;
+       private String appendedToParentName;
+       private int index = -1;
       
        public DebugContext(int level, String name, boolean print) {
            this.level = level;
            this.name = name;
            this.print = print;
        }
+
+       private DebugContext(DebugContext parent, String appendToName, int index) {
+           this.level = parent.level + 1;
+           this.print = parent.print;
+           this.session = parent.session;
+           this.parent = parent;
+           this.appendedToParentName = appendToName;
+           this.index = index;
+           if( isTraced(this) ) { 
+               // the name of the parent will change once its comparison is done
+               this.name = buildName();
+           }
+       }
        
        public DebugContext clone() { 
-          DebugContext newDebugContext = new DebugContext(this.level, this.name, this.print);
+          DebugContext newDebugContext = new DebugContext(this.level, getName(), this.print);
+          newDebugContext.session = this.session;
           return newDebugContext;
        }
        
        public DebugContext nestedClone(String appendToName) { 
-          DebugContext newDebugContext = new DebugContext(this.level+1, this.name + appendToName, this.print);
-          return newDebugContext;
+          return new DebugContext(this, appendToName, -1);
+       }
+
+       /**
+        * Same as <code>nestedClone(": (" + index + ") ")</code>, without building the string.
+        */
+       DebugContext nestedIndexClone(int index) { 
+          return new DebugContext(this, null, index);
+       }
+
+       void appendToName(String append) { 
+           this.name = getName() + append;
        }
        
        public String getName() { 
+           if( name == null ) { 
+               name = buildName();
+           }
            return name;
        }
+
+       private String buildName() { 
+           // not recursive: the object graph (and thus the chain of contexts) can be very deep
+           ArrayList<DebugContext> contexts = new ArrayList<DebugContext>();
+           DebugContext context = this;
+           while( context.name == null && context.parent != null ) { 
+               contexts.add(context);
+               context = context.parent;
+           }
+           StringBuilder builder = new StringBuilder(context.name == null ? "" : context.name);
+           for( int i = contexts.size() - 1; i >= 0; --i ) { 
+               context = contexts.get(i);
+               if( context.index >= 0 ) { 
+                   builder.append(": (").append(context.index).append(") ");
+               }
+               else { 
+                   builder.append(context.appendedToParentName);
+               }
+           }
+           return builder.toString();
+       }
+
+       /**
+        * @return The path of the fields and elements from the root of the object graph to this context, 
+        * for example <code>next.elements[3].name</code>.
+        */
+       String getPath() { 
+           ArrayList<DebugContext> contexts = new ArrayList<DebugContext>();
+           for( DebugContext context = this; context.parent != null; context = context.parent ) { 
+               contexts.add(context);
+           }
+           StringBuilder path = new StringBuilder();
+           for( int i = contexts.size() - 1; i >= 0; --i ) { 
+               DebugContext context = contexts.get(i);
+               if( context.index >= 0 ) { 
+                   path.append('[').append(context.index).append(']');
+                   continue;
+               }
+               // ": name > " -> "name"
+               String element = context.appendedToParentName.trim();
+               if( element.startsWith(":") ) { 
+                   element = element.substring(1).trim();
+               }
+               if( element.endsWith(" >") ) { 
+                   element = element.substring(0, element.length() - 2);
+               }
+               if( path.length() > 0 ) { 
+                   path.append('.');
+               }
+               path.append(element);
+           }
+           return path.toString();
+       }
     }
 
 }
@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which object graphs have been found to be equal, so that comparing equal object graphs again skips them:
+ * see {@link CompareViaReflectionUtil#setComparisonMemo(ComparisonMemo)}. This is meant for comparing many versions 
+ * of the same data, for example a series of snapshots that are unmarshalled (into new objects) and compared to the 
+ * same base data: the subtrees that did not change between the snapshots are only compared once.
+ * </p>
+ * Pairs are identified by the structural hash of both objects (see {@link StructuralHasher}): when a comparison 
+ * with a memo starts, both object graphs are hashed, which costs about as much as walking both graphs once. 
+ * Only objects whose hash identifies their object graph are remembered (see {@link StructuralHasher#hashSubgraphs(Object)}):
+ * for example, objects that are part of a cycle, or that refer to objects that are compared by a {@link ClassComparer}, 
+ * are always compared. A pair of objects is skipped when both objects have the same class and the same hash, 
+ * and a pair of objects with that class and those hashes has been found to be equal before. A pair is only 
+ * remembered when it was not compared in a trial (for example, while looking for the match of a set element).
+ * </p>
+ * Since pairs are identified by the contents of the objects, objects that are modified after they have been compared 
+ * are simply compared again. The memo should be cleared (see {@link #clear()}) when the comparison rules change:
+ * registering a {@link ClassComparer} does that.
+ * </p>
+ * The memo holds at most the given number of pairs, evicting the least recently used pair when it's full. 
+ * Every pair takes roughly 100 bytes (with compressed references: a 40 byte map entry, a 48 byte key that holds both 
+ * hashes and a weak reference to the class, and its slot in the hash table of the map). The class is only referenced 
+ * weakly, so that the memo does not keep class loaders alive: pairs whose class has been garbage collected are removed.
+ */
+public class ComparisonMemo {
+
+    public final static int DEFAULT_MAX_ENTRIES = 100000;
+
+    private final int maxEntries;
+    private final LinkedHashMap<HashPair, HashPair> equalPairs;
+    // the pairs whose class has been garbage collected
+    private final ReferenceQueue<Class<?>> collectedClasses = new ReferenceQueue<Class<?>>();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public ComparisonMemo() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries The maximum number of pairs remembered.
+     */
+    public ComparisonMemo(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.equalPairs = new LinkedHashMap<HashPair, HashPair>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HashPair, HashPair> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param objA An object from object graph A.
+     * @param hashA The structural hash of objA, or null if the object can not be skipped.
+     * @param objB The object from object graph B that objA is compared to.
+     * @param hashB The structural hash of objB, or null if the object can not be skipped.
+     * @return Whether or not the given objects are known to be equal.
+     */
+    boolean isEqual(Object objA, Long hashA, Object objB, Long hashB) {
+        boolean equal = false;
+        if( hashA != null && hashB != null && hashA.longValue() == hashB.longValue() && objA.getClass() == objB.getClass() ) {
+            HashPair pair = new HashPair(hashA, hashB, null, null);
+            synchronized( equalPairs ) {
+                purgeCollected();
+                HashPair remembered = equalPairs.get(pair);
+                equal = remembered != null && remembered.get() == objA.getClass();
+            }
+        }
+        if( equal ) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+        }
+        return equal;
+    }
+
+    /**
+     * Remembers that the given objects have been found to be equal.
+     * @param objA An object from object graph A.
+     * @param hashA The structural hash of objA, or null if the object can not be skipped.
+     * @param objB The object from object graph B that objA has been compared to.
+     * @param hashB The structural hash of objB, or null if the object can not be skipped.
+     */
+    void putEqual(Object objA, Long hashA, Object objB, Long hashB) {
+        if( hashA == null || hashB == null || hashA.longValue() != hashB.longValue() || objA.getClass() != objB.getClass() ) {
+            return;
+        }
+        HashPair pair = new HashPair(hashA, hashB, objA.getClass(), collectedClasses);
+        synchronized( equalPairs ) {
+            purgeCollected();
+            equalPairs.put(pair, pair);
+        }
+    }
+
+    /**
+     * Removes the pairs whose class has been garbage collected (while holding the lock on {@link #equalPairs}).
+     */
+    private void purgeCollected() {
+        Reference<? extends Class<?>> collected;
+        while( (collected = collectedClasses.poll()) != null ) {
+            HashPair pair = (HashPair) collected;
+            // the pair might have been replaced by a pair with the same hashes (or evicted)
+            if( equalPairs.get(pair) == pair ) {
+                equalPairs.remove(pair);
+            }
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int size() {
+        synchronized( equalPairs ) {
+            purgeCollected();
+            return equalPairs.size();
+        }
+    }
+
+    /**
+     * @return The number of comparisons that were skipped because the objects were known to be equal.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of comparisons that were not skipped, because the pair of objects had not been found 
+     * to be equal yet (or had been evicted), or could not be skipped.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Forgets all pairs: this should be called when the comparison rules (for example, the registered 
+     * {@link ClassComparer}s) change.
+     */
+    public void clear() {
+        synchronized( equalPairs ) {
+            equalPairs.clear();
+            while( collectedClasses.poll() != null ) {
+                // (the pairs have already been removed)
+            }
+        }
+    }
+
+    /**
+     * The structural hashes of a pair of objects that have been found to be equal, which refers weakly to the class 
+     * of the objects. The pairs used to look up a pair have no class.
+     */
+    private static class HashPair extends WeakReference<Class<?>> {
+
+        private final long hashA;
+        private final long hashB;
+
+        HashPair(long hashA, long hashB, Class<?> objClass, ReferenceQueue<Class<?>> queue) {
+            super(objClass, queue);
+            this.hashA = hashA;
+            this.hashB = hashB;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hashA ^ (hashA >>> 32)) * 31 + (int) (hashB ^ (hashB >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if( ! (obj instanceof HashPair) ) {
+                return false;
+            }
+            HashPair other = (HashPair) obj;
+            return hashA == other.hashA && hashB == other.hashB;
+        }
+    }
+
+}
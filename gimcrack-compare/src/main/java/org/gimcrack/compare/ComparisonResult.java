@@ -0,0 +1,236 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The result of {@link CompareViaReflectionUtil#compare(Object, Object)}: whether or not the two object graphs
+ * are equal, and if not, where they differ.
+ * </p>
+ * A difference is recorded where it is found: the path of the field (or element) that differs, and the values of
+ * that field in both object graphs. Differences found while looking for the matching element of a set (or key of a map),
+ * or by the comparisons started by a {@link ClassComparer}, are not recorded, since those don't necessarily mean that the
+ * object graphs differ: instead, the set, map or object compared by the {@link ClassComparer} is recorded as different.
+ * </p>
+ * None of this requires TRACE logging.
+ * </p>
+ * A difference within a subtree of the object graph that has already been recorded as different (for example,
+ * "elements[3].name" after "elements[3]") is not recorded again, so that one differing subtree is only reported once.
+ */
+public class ComparisonResult {
+
+    public final static int DEFAULT_MAX_DIFFERENCES = 10;
+
+    private final int maxDifferences;
+    private final int limit;
+    private final DifferenceSink sink;
+
+    private final List<Difference> differences = new ArrayList<Difference>();
+    private final HashSet<String> differingPaths = new HashSet<String>();
+    private volatile int differenceCount = 0;
+    private boolean same = true;
+    private long comparedObjects = 0;
+
+    ComparisonResult(int maxDifferences) {
+        this(maxDifferences, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * @param maxDifferences The maximum number of differences kept in this result.
+     * @param limit The number of differences after which the comparison stops.
+     * @param sink The sink that receives every difference, or null.
+     */
+    ComparisonResult(int maxDifferences, int limit, DifferenceSink sink) {
+        this.maxDifferences = maxDifferences;
+        this.limit = limit;
+        this.sink = sink;
+    }
+
+    synchronized void addDifference(String path, String description, Object valueA, Object valueB) {
+        if( differenceCount >= limit || isWithinDifferingPath(path) ) {
+            return;
+        }
+        differingPaths.add(path);
+        ++differenceCount;
+
+        Difference difference = null;
+        if( differences.size() < maxDifferences ) {
+            difference = new Difference(path, description, valueA, valueB);
+            differences.add(difference);
+        }
+        if( sink != null ) {
+            if( difference == null ) {
+                difference = new Difference(path, description, valueA, valueB);
+            }
+            sink.addDifference(difference);
+        }
+    }
+
+    /**
+     * @return Whether or not the given path is (within) a path that has already been recorded as different.
+     */
+    private boolean isWithinDifferingPath(String path) {
+        if( differingPaths.isEmpty() ) {
+            return false;
+        }
+        if( differingPaths.contains(path) || differingPaths.contains("") ) {
+            return true;
+        }
+        for( int i = 1; i < path.length(); ++i ) {
+            char c = path.charAt(i);
+            if( (c == '.' || c == '[') && differingPaths.contains(path.substring(0, i)) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether or not the number of differences has reached the limit, after which the comparison stops.
+     */
+    boolean isLimitReached() {
+        return differenceCount >= limit;
+    }
+
+    void setSame(boolean same) {
+        this.same = same;
+    }
+
+    void setComparedObjects(long comparedObjects) {
+        this.comparedObjects = comparedObjects;
+    }
+
+    /**
+     * @return Whether or not the two object graphs are equal.
+     */
+    public boolean isSame() {
+        return same;
+    }
+
+    /**
+     * @return The (first) recorded differences: at most {@link #getMaxDifferences()}.
+     */
+    public synchronized List<Difference> getDifferences() {
+        return Collections.unmodifiableList(new ArrayList<Difference>(differences));
+    }
+
+    /**
+     * @return The number of differences found, including those that were not kept (see {@link #getMaxDifferences()}).
+     */
+    public int getDifferenceCount() {
+        return differenceCount;
+    }
+
+    public int getMaxDifferences() {
+        return maxDifferences;
+    }
+
+    /**
+     * @return Whether or not the comparison stopped before the whole object graph was compared, because the 
+     * maximum number of differences was found: see {@link CompareViaReflectionUtil#setMaxCollectedDifferences(int)}.
+     */
+    public boolean isTruncated() {
+        return limit < Integer.MAX_VALUE && isLimitReached();
+    }
+
+    /**
+     * @return The number of pairs of objects that were compared (visited).
+     */
+    public long getComparedObjects() {
+        return comparedObjects;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(same ? "Equal" : "Not equal").append(" (").append(comparedObjects).append(" objects compared)");
+        for( Difference difference : differences ) {
+            report.append("\n  ").append(difference);
+        }
+        if( differenceCount > differences.size() ) {
+            report.append("\n  .. and ").append(differenceCount - differences.size()).append(" more difference(s)");
+        }
+        if( isTruncated() ) {
+            report.append("\n  (the comparison stopped after ").append(differenceCount).append(" differences)");
+        }
+        return report.toString();
+    }
+
+    /**
+     * A difference between the two object graphs.
+     */
+    public static class Difference {
+
+        private final String path;
+        private final String description;
+        private final Object valueA;
+        private final Object valueB;
+
+        Difference(String path, String description, Object valueA, Object valueB) {
+            this.path = path;
+            this.description = description;
+            this.valueA = valueA;
+            this.valueB = valueB;
+        }
+
+        /**
+         * @return The path (from the root objects) of the field or element that differs, for example
+         * <code>next.bytes</code> or <code>elements[3].name</code>; an empty string for the root objects.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return What is different: for example, "value", "class" or "size".
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        public Object getValueA() {
+            return valueA;
+        }
+
+        public Object getValueB() {
+            return valueB;
+        }
+
+        @Override
+        public String toString() {
+            return (path.length() == 0 ? "(root)" : path) + ": " + description + " [" + toString(valueA) + " / " + toString(valueB) + "]";
+        }
+
+        private static String toString(Object value) {
+            if( value == null ) {
+                return "null";
+            }
+            try {
+                if( value.getClass().isArray() ) {
+                    return value.getClass().getComponentType().getSimpleName() + "[" + java.lang.reflect.Array.getLength(value) + "]";
+                }
+                return String.valueOf(value);
+            }
+            catch( RuntimeException re ) {
+                // toString() of an (unmarshalled) object can fail
+                return value.getClass().getName();
+            }
+        }
+    }
+
+}
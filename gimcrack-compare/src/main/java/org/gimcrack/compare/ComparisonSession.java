@@ -0,0 +1,249 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import java.util.IdentityHashMap;
+
+/**
+ * The state of one comparison of two object graphs.
+ * </p>
+ * A session is created for every call to {@link CompareViaReflectionUtil#compareInstances(Object, Object)} and
+ * is passed along (via the {@link CompareViaReflectionUtil.DebugContext}) to every nested comparison. Since
+ * the state of a comparison is not kept in the {@link CompareViaReflectionUtil} instance itself, one instance
+ * can be used to run many comparisons at the same time (in different threads), and a {@link ClassComparer}
+ * can start a new comparison without corrupting the state of the comparison that called it.
+ * </p>
+ * This session is only used by one thread at a time: see {@link ParallelComparisonSession} for the session
+ * that is used when a comparison is split over multiple threads.
+ */
+class ComparisonSession {
+
+    /**
+     * The pairs of objects (from object graph A and B) that are being compared or have been found to be equal:
+     * used to avoid cycles in the object graph, and to avoid comparing the same pair of objects more than once.
+     */
+    final IdentityPairSet seenPairs = IdentityPairSet.acquire();
+
+    /**
+     * Where the differences are recorded: null if differences are not recorded.
+     */
+    ComparisonResult result = null;
+
+    /**
+     * Whether or not the comparison continues after a difference has been found: 
+     * see {@link CompareViaReflectionUtil#compareAll(Object, Object, DifferenceSink)}.
+     */
+    boolean collectAllDifferences = false;
+
+    /**
+     * The pairs of objects that have been found to be different when collecting all differences.
+     */
+    private IdentityPairSet differentPairs = null;
+
+    /**
+     * The memo used to skip the comparison of objects that are known to be equal, or null: see {@link ComparisonMemo}.
+     */
+    private ComparisonMemo memo = null;
+    // the structural hashes of the objects of object graph A and B that the memo can be used for
+    private IdentityHashMap<Object, Long> hashesA = null;
+    private IdentityHashMap<Object, Long> hashesB = null;
+
+    private int trials = 0;
+    private long comparedObjects = 0;
+
+    /**
+     * Objects are seen as a pair: an object from object graph A is only skipped if it's encountered again
+     * together with the same object from object graph B. When object graph A refers to the same object twice
+     * where object graph B refers to two different (copies of the) objects, or vice versa, both pairs are 
+     * compared: a shared object in A is thus never assumed to be equal to an object in B that it hasn't been compared to.
+     * @param objA An object from object graph A.
+     * @param objB The object from object graph B that objA is compared to.
+     * @return True if the pair had not been seen yet (and is now marked as seen), false if it had already been seen.
+     */
+    boolean markSeen(Object objA, Object objB) {
+        return seenPairs.add(objA, objB);
+    }
+
+    /**
+     * Called when a pair of objects turns out to be different, so that it will be compared again if it's encountered again.
+     */
+    void unmarkSeen(Object objA, Object objB) {
+        seenPairs.remove(objA, objB);
+    }
+
+    boolean isSeen(Object objA, Object objB) {
+        return seenPairs.contains(objA, objB);
+    }
+
+    /**
+     * Called when two objects turn out to be different: the pair is unmarked (see {@link #unmarkSeen(Object, Object)}),
+     * so that it will be compared again if it's encountered again.
+     * </p>
+     * When collecting all differences, the pair of objects is remembered instead (see {@link #isKnownDifferent(Object, Object)}): 
+     * an object graph with many different subtrees that refer to each other would otherwise be compared over and over again.
+     * @param objA An object from object graph A.
+     * @param objB The object from object graph B that objA was compared to.
+     */
+    void markDifferent(Object objA, Object objB) {
+        unmarkSeen(objA, objB);
+        if( isCollectingAllDifferences() ) {
+            if( differentPairs == null ) {
+                differentPairs = new IdentityPairSet();
+            }
+            differentPairs.add(objA, objB);
+        }
+    }
+
+    /**
+     * @return Whether or not this pair of objects has already been found to be different (and reported).
+     */
+    boolean isKnownDifferent(Object objA, Object objB) {
+        return differentPairs != null && ! isInTrial() && differentPairs.contains(objA, objB);
+    }
+
+    /**
+     * Uses the given memo to skip the comparison of objects that are known to be equal: the object graphs that 
+     * are compared in this session are hashed first.
+     * @param memo The memo (see {@link ComparisonMemo}).
+     * @param hasher The (unlimited) hasher that uses the comparison rules of this comparison.
+     * @param objA The root of object graph A.
+     * @param objB The root of object graph B.
+     */
+    void useMemo(ComparisonMemo memo, StructuralHasher hasher, Object objA, Object objB) {
+        this.memo = memo;
+        this.hashesA = hasher.hashSubgraphs(objA);
+        this.hashesB = hasher.hashSubgraphs(objB);
+    }
+
+    boolean isUsingMemo() {
+        return memo != null;
+    }
+
+    /**
+     * @return Whether or not the {@link #memo} knows that the given objects are equal.
+     */
+    boolean isKnownEqual(Object objA, Object objB) {
+        return memo != null && memo.isEqual(objA, hashesA.get(objA), objB, hashesB.get(objB));
+    }
+
+    /**
+     * Called when two objects (that refer to other objects) have been found to be equal: outside of trials, 
+     * the pair is remembered by the {@link #memo}.
+     */
+    void markEqual(Object objA, Object objB) {
+        if( memo != null && ! isInTrial() ) {
+            memo.putEqual(objA, hashesA.get(objA), objB, hashesB.get(objB));
+        }
+    }
+
+    /**
+     * Called when the comparison is done: the session should not be used afterwards.
+     */
+    void close() {
+        seenPairs.release();
+    }
+
+    /**
+     * A trial is a comparison whose negative outcome does not mean that the compared object graphs are different:
+     * for example, when an element of a set is compared to the elements of the other set in order to find its match.
+     * @return The session to use for the trial.
+     */
+    ComparisonSession startTrial() {
+        ++trials;
+        return this;
+    }
+
+    /**
+     * @param trial The session returned by {@link #startTrial()}.
+     * @param same The outcome of the trial.
+     */
+    void endTrial(ComparisonSession trial, boolean same) {
+        // the trial used this session
+        --trials;
+    }
+
+    boolean isInTrial() {
+        return trials > 0;
+    }
+
+    /**
+     * @return Whether or not a difference found at this point of the comparison should be recorded.
+     */
+    boolean isRecordingDifferences() {
+        return result != null && ! isInTrial();
+    }
+
+    /**
+     * @return Whether or not the comparison should continue after a difference has been found at this point of the comparison.
+     */
+    boolean isCollectingAllDifferences() {
+        return collectAllDifferences && ! isInTrial() && ! isCancelled();
+    }
+
+    /**
+     * Called for every pair of objects that is compared.
+     */
+    void countComparison() {
+        ++comparedObjects;
+    }
+
+    long getComparedObjects() {
+        return comparedObjects;
+    }
+
+    /**
+     * @return Whether or not a difference has already been found (and the comparison can thus stop), or, when 
+     * collecting all differences, whether the maximum number of differences has been found.
+     */
+    boolean isCancelled() {
+        return collectAllDifferences && result.isLimitReached();
+    }
+
+    /**
+     * @param size The number of pairs of objects in a range.
+     * @return Whether or not the comparison of the range would be split over multiple threads.
+     */
+    boolean isSplit(int size) {
+        return false;
+    }
+
+    /**
+     * Compares the pairs of objects with an index in the given range, until a difference is found 
+     * (unless all differences are being collected).
+     * @param comparison Compares the pair of objects with the given index.
+     * @param from The first index (inclusive).
+     * @param to The last index (exclusive).
+     * @return Whether or not all pairs of objects in the range are equal.
+     */
+    boolean compareRange(IndexedComparison comparison, int from, int to) {
+        boolean same = true;
+        for( int i = from; i < to; ++i ) {
+            if( ! comparison.compare(i) ) {
+                same = false;
+                if( ! isCollectingAllDifferences() ) {
+                    break;
+                }
+            }
+        }
+        return same;
+    }
+
+    /**
+     * The comparison of (for example) the elements of two arrays, or the reference fields of two objects.
+     */
+    static abstract class IndexedComparison {
+        abstract boolean compare(int index);
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import org.gimcrack.compare.CompareViaReflectionUtil.DebugContext;
+
+/**
+ * The explicit work stack that {@link CompareViaReflectionUtil} uses to walk through object graphs.
+ * </p>
+ * Instead of recursing (compareInstances -> field -> compareInstances -> ..), every pair of objects
+ * whose fields or elements still have to be compared is a {@link Frame} on this stack. The depth of the
+ * object graph is thus limited by the heap instead of by the size of the thread stack.
+ * </p>
+ * There is one stack per thread, which is reused by every comparison in that thread. A comparison that is
+ * started while another comparison is in progress (for example, by a {@link ClassComparer}, or to find
+ * the matching element of a set) uses the part of the stack above the frames of the comparison that started it.
+ * Frames are reused as well: popping a frame only clears its references.
+ */
+class ComparisonStack {
+
+    // The kinds of frames
+    final static int OBJECT_FRAME     = 0; // the fields of two objects (see ClassComparisonPlan)
+    final static int ARRAY_FRAME      = 1; // the elements of two Object arrays
+    final static int COLLECTION_FRAME = 2; // the elements of two ordered java.* collections (or arrays)
+
+    private final static ThreadLocal<ComparisonStack> threadStacks = new ThreadLocal<ComparisonStack>() {
+        protected ComparisonStack initialValue() {
+            return new ComparisonStack();
+        }
+    };
+
+    private final static int MAX_RETAINED_FRAMES = 1024;
+
+    private Frame [] frames = new Frame[32];
+    private int size = 0;
+
+    static ComparisonStack forCurrentThread() {
+        return threadStacks.get();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The (reused) frame on top of the stack, which still needs to be initialized.
+     */
+    Frame push() {
+        if( size == frames.length ) {
+            Frame [] newFrames = new Frame[frames.length * 2];
+            System.arraycopy(frames, 0, newFrames, 0, size);
+            frames = newFrames;
+        }
+        Frame frame = frames[size];
+        if( frame == null ) {
+            frame = new Frame();
+            frames[size] = frame;
+        }
+        ++size;
+        return frame;
+    }
+
+    Frame peek() {
+        return frames[size - 1];
+    }
+
+    void pop() {
+        frames[--size].clear();
+    }
+
+    /**
+     * Pops frames until the stack has the given size.
+     */
+    void popTo(int base) {
+        while( size > base ) {
+            pop();
+        }
+        if( size == 0 && frames.length > MAX_RETAINED_FRAMES ) {
+            // don't hold on to the frames of one very deep object graph
+            frames = new Frame[MAX_RETAINED_FRAMES];
+        }
+    }
+
+    /**
+     * The comparison of the fields or elements of two objects, which is done one field or element at a time.
+     */
+    static class Frame {
+
+        int kind;
+        DebugContext context;
+        Object objA;
+        Object objB;
+
+        // OBJECT_FRAME
+        ClassComparisonPlan plan;
+        SpecializedComparator specializedComparator;
+
+        // ARRAY_FRAME, COLLECTION_FRAME
+        Object [] arrayA;
+        Object [] arrayB;
+        boolean indexed;
+
+        // the next field or element to compare
+        int next;
+        // false if a field or element has been found to be different (when collecting all differences)
+        boolean same;
+
+        void clear() {
+            context = null;
+            objA = null;
+            objB = null;
+            plan = null;
+            specializedComparator = null;
+            arrayA = null;
+            arrayB = null;
+        }
+    }
+
+}
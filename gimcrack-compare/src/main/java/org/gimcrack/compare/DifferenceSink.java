@@ -0,0 +1,28 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import org.gimcrack.compare.ComparisonResult.Difference;
+
+/**
+ * Receives the differences found by {@link CompareViaReflectionUtil#compareAll(Object, Object, DifferenceSink)}
+ * as soon as they are found, so that they don't all have to be kept in memory until the comparison is done.
+ * </p>
+ * A sink is never called concurrently, not even when the comparison is split over multiple threads.
+ */
+public interface DifferenceSink {
+
+    void addDifference(Difference difference);
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+/**
+ * The way in which {@link CompareViaReflectionUtil} reads the fields of the objects it compares.
+ * <ul>
+ * <li>{@link #REFLECTION}: all fields are read with {@link java.lang.reflect.Field#get(Object)}, which means that
+ *     the value of every primitive field is boxed before it's compared using {@link Object#equals(Object)}.</li>
+ * <li>{@link #UNBOXED}: primitive fields are read with the accessor for their specific type
+ *     ({@link java.lang.reflect.Field#getInt(Object)}, {@link java.lang.reflect.Field#getLong(Object)}, etc.) and
+ *     compared as primitives, so that no wrapper objects are created.</li>
+ * </ul>
+ * Both engines give the same results: <code>float</code> and <code>double</code> fields are compared by
+ * their bits, in the same way that {@link Float#equals(Object)} and {@link Double#equals(Object)} do.
+ */
+public enum FieldAccessEngine {
+
+    REFLECTION,
+    UNBOXED;
+
+}
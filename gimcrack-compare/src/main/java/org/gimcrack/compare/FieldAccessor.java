@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import java.lang.reflect.Field;
+
+/**
+ * Reads (and, for primitive fields, compares) the value of a field for the {@link FieldAccessEngine}
+ * used by a {@link CompareViaReflectionUtil} instance.
+ * </p>
+ * Accessors are created once per field when the {@link ClassComparisonPlan} of a class is built.
+ */
+abstract class FieldAccessor {
+
+    final Field field;
+
+    FieldAccessor(Field field) {
+        this.field = field;
+    }
+
+    /**
+     * @param obj The object containing the field.
+     * @return The (boxed, if primitive) value of the field.
+     */
+    Object get(Object obj) throws IllegalAccessException {
+        return field.get(obj);
+    }
+
+    /**
+     * Only called for primitive fields.
+     * @param objA The first object containing the field.
+     * @param objB The second object containing the field.
+     * @return Whether or not the value of the field is the same in both objects.
+     */
+    boolean samePrimitiveValue(Object objA, Object objB) throws IllegalAccessException {
+        return field.get(objA).equals(field.get(objB));
+    }
+
+    /**
+     * Creates the accessor for the given field.
+     * @param field The (accessible) field.
+     * @param engine The engine used to access the fields.
+     * @return A {@link FieldAccessor} instance.
+     */
+    static FieldAccessor newAccessor(Field field, FieldAccessEngine engine) {
+        Class<?> type = field.getType();
+        if( engine == FieldAccessEngine.REFLECTION || ! type.isPrimitive() ) {
+            return new ReflectionFieldAccessor(field);
+        }
+        if( type == int.class ) {
+            return new IntFieldAccessor(field);
+        }
+        else if( type == long.class ) {
+            return new LongFieldAccessor(field);
+        }
+        else if( type == boolean.class ) {
+            return new BooleanFieldAccessor(field);
+        }
+        else if( type == double.class ) {
+            return new DoubleFieldAccessor(field);
+        }
+        else if( type == float.class ) {
+            return new FloatFieldAccessor(field);
+        }
+        else if( type == short.class ) {
+            return new ShortFieldAccessor(field);
+        }
+        else if( type == byte.class ) {
+            return new ByteFieldAccessor(field);
+        }
+        else if( type == char.class ) {
+            return new CharFieldAccessor(field);
+        }
+        return new ReflectionFieldAccessor(field);
+    }
+
+    private static class ReflectionFieldAccessor extends FieldAccessor {
+        ReflectionFieldAccessor(Field field) {
+            super(field);
+        }
+    }
+
+    private static class IntFieldAccessor extends FieldAccessor {
+        IntFieldAccessor(Field field) {
+            super(field);
+        }
+
+        boolean samePrimitiveValue(Object objA, Object objB) throws IllegalAccessException {
+            return field.getInt(objA) == field.getInt(objB);
+        }
+    }
+
+    private static class LongFieldAccessor extends FieldAccessor {
+        LongFieldAccessor(Field field) {
+            super(field);
+        }
+
+        boolean samePrimitiveValue(Object objA, Object objB) throws IllegalAccessException {
+            return field.getLong(objA) == field.getLong(objB);
+        }
+    }
+
+    private static class BooleanFieldAccessor extends FieldAccessor {
+        BooleanFieldAccessor(Field field) {
+            super(field);
+        }
+
+        boolean samePrimitiveValue(Object objA, Object objB) throws IllegalAccessException {
+            return field.getBoolean(objA) == field.getBoolean(objB);
+        }
+    }
+
+    private static class DoubleFieldAccessor extends FieldAccessor {
+        DoubleFieldAccessor(Field field) {
+            super(field);
+        }
+
+        boolean samePrimitiveValue(Object objA, Object objB) throws IllegalAccessException {
+            // same semantics as Double.equals(): NaN equals NaN, 0.0 does not equal -0.0
+            return Double.doubleToLongBits(field.getDouble(objA)) == Double.doubleToLongBits(field.getDouble(objB));
+        }
+    }
+
+    private static class FloatFieldAccessor extends FieldAccessor {
+        FloatFieldAccessor(Field field) {
+            super(field);
+        }
+
+        boolean samePrimitiveValue(Object objA, Object objB) throws IllegalAccessException {
+            // same semantics as Float.equals(): NaN equals NaN, 0.0 does not equal -0.0
+            return Float.floatToIntBits(field.getFloat(objA)) == Float.floatToIntBits(field.getFloat(objB));
+        }
+    }
+
+    private static class ShortFieldAccessor extends FieldAccessor {
+        ShortFieldAccessor(Field field) {
+            super(field);
+        }
+
+        boolean samePrimitiveValue(Object objA, Object objB) throws IllegalAccessException {
+            return field.getShort(objA) == field.getShort(objB);
+        }
+    }
+
+    private static class ByteFieldAccessor extends FieldAccessor {
+        ByteFieldAccessor(Field field) {
+            super(field);
+        }
+
+        boolean samePrimitiveValue(Object objA, Object objB) throws IllegalAccessException {
+            return field.getByte(objA) == field.getByte(objB);
+        }
+    }
+
+    private static class CharFieldAccessor extends FieldAccessor {
+        CharFieldAccessor(Field field) {
+            super(field);
+        }
+
+        boolean samePrimitiveValue(Object objA, Object objB) throws IllegalAccessException {
+            return field.getChar(objA) == field.getChar(objB);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import java.util.Arrays;
+
+/**
+ * A set of pairs of objects (an object from object graph A and the object from object graph B that it's compared to),
+ * in which objects are identified by identity: see {@link ComparisonSession#markSeen(Object, Object)}.
+ * </p>
+ * The pairs are kept in parallel arrays (open addressing with linear probing), together with the combined
+ * {@link System#identityHashCode(Object)} of the pair, so that adding or looking up a pair doesn't create any objects:
+ * no entries and no boxed hash codes.
+ * </p>
+ * Sets are reused: {@link #acquire()} returns the (cleared) set that was last {@link #release()}'d by the current thread,
+ * so that comparing many (small) object graphs doesn't allocate a new set for every comparison.
+ */
+final class IdentityPairSet {
+
+    private final static int INITIAL_CAPACITY = 64;
+    // a released set that has grown beyond this capacity is not kept
+    private final static int MAX_RETAINED_CAPACITY = 1 << 16;
+
+    private final static ThreadLocal<IdentityPairSet> spareSets = new ThreadLocal<IdentityPairSet>();
+
+    private Object [] objectsA;
+    private Object [] objectsB;
+    private int [] hashes;
+    private int mask;
+    private int size = 0;
+
+    IdentityPairSet() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return An empty set: the spare set of the current thread, if there is one.
+     */
+    static IdentityPairSet acquire() {
+        IdentityPairSet set = spareSets.get();
+        if( set == null ) {
+            return new IdentityPairSet();
+        }
+        spareSets.set(null);
+        return set;
+    }
+
+    /**
+     * Clears this set and keeps it as the spare set of the current thread: this set should not be used afterwards.
+     */
+    void release() {
+        if( objectsA.length > MAX_RETAINED_CAPACITY ) {
+            return;
+        }
+        clear();
+        spareSets.set(this);
+    }
+
+    private void allocate(int capacity) {
+        objectsA = new Object[capacity];
+        objectsB = new Object[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    static int hash(Object objA, Object objB) {
+        int hash = System.identityHashCode(objA) * 0x9E3779B9 + System.identityHashCode(objB);
+        return hash ^ (hash >>> 16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param objA An object from object graph A (not null).
+     * @param objB An object from object graph B.
+     * @return True if the pair was added, false if the set already contained the pair.
+     */
+    boolean add(Object objA, Object objB) {
+        int hash = hash(objA, objB);
+        int slot = hash & mask;
+        while( objectsA[slot] != null ) {
+            if( hashes[slot] == hash && objectsA[slot] == objA && objectsB[slot] == objB ) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        objectsA[slot] = objA;
+        objectsB[slot] = objB;
+        hashes[slot] = hash;
+        if( ++size * 4 > objectsA.length * 3 ) {
+            resize(objectsA.length * 2);
+        }
+        return true;
+    }
+
+    boolean contains(Object objA, Object objB) {
+        return find(objA, objB) >= 0;
+    }
+
+    /**
+     * @return True if the pair was removed, false if the set didn't contain the pair.
+     */
+    boolean remove(Object objA, Object objB) {
+        int slot = find(objA, objB);
+        if( slot < 0 ) {
+            return false;
+        }
+        // move the pairs after the removed pair back, so that they can still be found
+        int free = slot;
+        int next = slot;
+        while( true ) {
+            next = (next + 1) & mask;
+            if( objectsA[next] == null ) {
+                break;
+            }
+            int home = hashes[next] & mask;
+            boolean reachable = free <= next ? (free < home && home <= next) : (free < home || home <= next);
+            if( ! reachable ) {
+                objectsA[free] = objectsA[next];
+                objectsB[free] = objectsB[next];
+                hashes[free] = hashes[next];
+                free = next;
+            }
+        }
+        objectsA[free] = null;
+        objectsB[free] = null;
+        --size;
+        return true;
+    }
+
+    void clear() {
+        if( size == 0 ) {
+            return;
+        }
+        Arrays.fill(objectsA, null);
+        Arrays.fill(objectsB, null);
+        size = 0;
+    }
+
+    /**
+     * Marks all pairs of this set as seen in the given session.
+     */
+    void addAllTo(ComparisonSession session) {
+        for( int slot = 0; slot < objectsA.length; ++slot ) {
+            if( objectsA[slot] != null ) {
+                session.markSeen(objectsA[slot], objectsB[slot]);
+            }
+        }
+    }
+
+    private int find(Object objA, Object objB) {
+        int hash = hash(objA, objB);
+        int slot = hash & mask;
+        while( objectsA[slot] != null ) {
+            if( hashes[slot] == hash && objectsA[slot] == objA && objectsB[slot] == objB ) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        Object [] oldObjectsA = objectsA;
+        Object [] oldObjectsB = objectsB;
+        int [] oldHashes = hashes;
+        allocate(capacity);
+        for( int i = 0; i < oldObjectsA.length; ++i ) {
+            if( oldObjectsA[i] != null ) {
+                int slot = oldHashes[i] & mask;
+                while( objectsA[slot] != null ) {
+                    slot = (slot + 1) & mask;
+                }
+                objectsA[slot] = oldObjectsA[i];
+                objectsB[slot] = oldObjectsB[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of a comparison that is split over multiple threads: see
+ * {@link CompareViaReflectionUtil#setParallelExecutor(Executor)}.
+ * </p>
+ * Large ranges (the elements of arrays and ordered collections, the reference fields of wide objects) are
+ * split in two halves, fork/join style: one half is handed to the executor while the current thread compares
+ * the other half. A thread that has to wait for a half that has not been started yet compares that half itself,
+ * which means that a thread only ever waits for a task that is being executed by another thread. The comparison
+ * can thus not deadlock, regardless of the size of the thread pool of the executor.
+ * </p>
+ * As soon as any part of the comparison finds a difference, the session is cancelled: all outstanding
+ * (and new) comparisons then immediately return false. When all differences are being collected, the session
+ * is only cancelled once the maximum number of differences has been found.
+ * </p>
+ * Cycle detection works in the same way as in a single-threaded comparison, except that the seen pairs of objects are
+ * shared by all threads. Trials (see {@link ComparisonSession#startTrial()}) are never split: they use
+ * a separate, single-threaded, session whose seen pairs are only added to the shared seen pairs if the
+ * trial succeeds, so that other threads never skip a pair of objects because of a trial that failed.
+ */
+class ParallelComparisonSession extends ComparisonSession {
+
+    private final static int SEEN_STRIPES = 64;
+
+    private final Executor executor;
+    private final int splitThreshold;
+
+    private final IdentityPairSet [] seenStripes;
+    private volatile boolean cancelled = false;
+    private final AtomicLong comparedObjects = new AtomicLong(0);
+
+    ParallelComparisonSession(Executor executor, int splitThreshold) {
+        this.executor = executor;
+        this.splitThreshold = Math.max(2, splitThreshold);
+        this.seenStripes = new IdentityPairSet[SEEN_STRIPES];
+        for( int i = 0; i < SEEN_STRIPES; ++i ) {
+            seenStripes[i] = new IdentityPairSet();
+        }
+    }
+
+    private IdentityPairSet getSeenStripe(Object objA, Object objB) {
+        // (the high bits of the hash, the low bits determine the slot within the stripe)
+        return seenStripes[(IdentityPairSet.hash(objA, objB) >>> 26) & (SEEN_STRIPES - 1)];
+    }
+
+    @Override
+    boolean markSeen(Object objA, Object objB) {
+        IdentityPairSet stripe = getSeenStripe(objA, objB);
+        synchronized( stripe ) {
+            return stripe.add(objA, objB);
+        }
+    }
+
+    @Override
+    void unmarkSeen(Object objA, Object objB) {
+        IdentityPairSet stripe = getSeenStripe(objA, objB);
+        synchronized( stripe ) {
+            stripe.remove(objA, objB);
+        }
+    }
+
+    @Override
+    boolean isSeen(Object objA, Object objB) {
+        IdentityPairSet stripe = getSeenStripe(objA, objB);
+        synchronized( stripe ) {
+            return stripe.contains(objA, objB);
+        }
+    }
+
+    @Override
+    synchronized void markDifferent(Object objA, Object objB) {
+        super.markDifferent(objA, objB);
+    }
+
+    @Override
+    synchronized boolean isKnownDifferent(Object objA, Object objB) {
+        return super.isKnownDifferent(objA, objB);
+    }
+
+    @Override
+    ComparisonSession startTrial() {
+        return new TrialSession(this);
+    }
+
+    @Override
+    void endTrial(ComparisonSession trial, boolean same) {
+        if( same ) {
+            trial.seenPairs.addAllTo(this);
+        }
+        trial.close();
+    }
+
+    @Override
+    boolean isCancelled() {
+        return cancelled || super.isCancelled();
+    }
+
+    @Override
+    boolean isInTrial() {
+        return false;
+    }
+
+    @Override
+    void countComparison() {
+        comparedObjects.incrementAndGet();
+    }
+
+    @Override
+    long getComparedObjects() {
+        return comparedObjects.get();
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    boolean isSplit(int size) {
+        return size >= splitThreshold && ! cancelled;
+    }
+
+    @Override
+    boolean compareRange(IndexedComparison comparison, int from, int to) {
+        if( ! isSplit(to - from) ) {
+            return super.compareRange(comparison, from, to);
+        }
+
+        int middle = (from + to) >>> 1;
+        RangeTask secondHalf = new RangeTask(comparison, middle, to);
+        try {
+            executor.execute(secondHalf);
+        }
+        catch( RejectedExecutionException ree ) {
+            // the second half will be compared by this thread
+        }
+
+        boolean same = false;
+        boolean completed = false;
+        try {
+            same = compareRange(comparison, from, middle);
+            completed = true;
+        }
+        finally {
+            if( ! completed || ! (same || isCollectingAllDifferences()) ) {
+                cancel();
+                // don't start the second half if it hasn't been started yet
+                secondHalf.claim();
+            }
+        }
+        if( ! same && ! isCollectingAllDifferences() ) {
+            return false;
+        }
+        return secondHalf.join() && same;
+    }
+
+    /**
+     * Compares a range of pairs of objects, either in a thread of the executor, or in the thread that waits for it.
+     */
+    private class RangeTask implements Runnable {
+
+        private final IndexedComparison comparison;
+        private final int from;
+        private final int to;
+
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean same = false;
+        private Throwable failure = null;
+
+        RangeTask(IndexedComparison comparison, int from, int to) {
+            this.comparison = comparison;
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        public void run() {
+            if( ! claim() ) {
+                return;
+            }
+            try {
+                same = ! isCancelled() && compareRange(comparison, from, to);
+            }
+            catch( Throwable t ) {
+                failure = t;
+            }
+            finally {
+                if( failure != null || ! (same || isCollectingAllDifferences()) ) {
+                    cancel();
+                }
+                done.countDown();
+            }
+        }
+
+        /**
+         * Compares the range in this thread if it hasn't been started yet, otherwise waits for it to finish.
+         * @return Whether or not all pairs of objects in the range are equal.
+         */
+        boolean join() {
+            run();
+            try {
+                done.await();
+            }
+            catch( InterruptedException ie ) {
+                Thread.currentThread().interrupt();
+                cancel();
+                fail("Interrupted while waiting for a parallel comparison to finish.");
+            }
+            if( failure instanceof RuntimeException ) {
+                throw (RuntimeException) failure;
+            }
+            else if( failure instanceof Error ) {
+                throw (Error) failure;
+            }
+            else if( failure != null ) {
+                throw new RuntimeException(failure);
+            }
+            return same;
+        }
+    }
+
+    /**
+     * The (single-threaded) session used for a trial in a parallel comparison.
+     */
+    private static class TrialSession extends ComparisonSession {
+
+        private final ParallelComparisonSession parent;
+
+        TrialSession(ParallelComparisonSession parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        boolean markSeen(Object objA, Object objB) {
+            if( parent.isSeen(objA, objB) ) {
+                return false;
+            }
+            return super.markSeen(objA, objB);
+        }
+
+        @Override
+        boolean isSeen(Object objA, Object objB) {
+            return parent.isSeen(objA, objB) || super.isSeen(objA, objB);
+        }
+
+        @Override
+        boolean isCancelled() {
+            return parent.isCancelled();
+        }
+
+        @Override
+        boolean isInTrial() {
+            return true;
+        }
+
+        @Override
+        void countComparison() {
+            parent.countComparison();
+        }
+    }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compares two protobuf encoded messages field by field, using only the wire format: no (generated) message classes
+ * are needed, and no objects are created for the fields of the messages.
+ * </p>
+ * Fields are identified by their field number: the path of a difference is the list of field numbers leading to it,
+ * for example "10.2". Fields that occur more than once (repeated fields) are compared in order, and the index is
+ * added to the path: "10.2[3]". The order of the (different) fields in a message doesn't matter.
+ * </p>
+ * The wire format does not say whether a length-delimited field is a message, a string or a byte array. By default,
+ * the contents of differing length-delimited fields that are both valid messages are compared as messages (so that a
+ * message within a bytes field, like the payload of a header message, is compared as well). This can be overridden
+ * with the field paths of the descriptors: see {@link #addMessageField(String)} and {@link #addBytesField(String)}.
+ * Groups (which are deprecated) are not supported: a message containing a group is compared as a byte array.
+ */
+public class ProtobufWireComparer {
+
+    private final static int VARINT = 0;
+    private final static int FIXED64 = 1;
+    private final static int LENGTH_DELIMITED = 2;
+    private final static int FIXED32 = 5;
+
+    private final static int MAX_FIELD_NUMBER = (1 << 29) - 1;
+
+    private final Set<String> messageFields = new HashSet<String>();
+    private final Set<String> bytesFields = new HashSet<String>();
+    private volatile boolean detectNestedMessages = true;
+
+    private volatile int maxReportedDifferences = ComparisonResult.DEFAULT_MAX_DIFFERENCES;
+    private volatile int maxCollectedDifferences = CompareViaReflectionUtil.DEFAULT_MAX_COLLECTED_DIFFERENCES;
+
+    /**
+     * @param fieldPath The field numbers (without indexes) of a length-delimited field that is always a message,
+     * for example "10" or "10.3".
+     */
+    public synchronized void addMessageField(String fieldPath) {
+        messageFields.add(fieldPath);
+    }
+
+    /**
+     * @param fieldPath The field numbers (without indexes) of a length-delimited field that is never a message
+     * (a string or byte array), for example "4.2".
+     */
+    public synchronized void addBytesField(String fieldPath) {
+        bytesFields.add(fieldPath);
+    }
+
+    /**
+     * @param detect Whether or not length-delimited fields that are not registered as message or bytes fields are
+     * compared as messages if they can be parsed as messages. True by default.
+     */
+    public void setDetectNestedMessages(boolean detect) {
+        this.detectNestedMessages = detect;
+    }
+
+    public void setMaxReportedDifferences(int maxDifferences) {
+        this.maxReportedDifferences = maxDifferences;
+    }
+
+    public void setMaxCollectedDifferences(int maxDifferences) {
+        this.maxCollectedDifferences = maxDifferences;
+    }
+
+    /**
+     * @param messageA A protobuf encoded message.
+     * @param messageB A protobuf encoded message.
+     * @return The result of the comparison, containing the differing fields.
+     */
+    public ComparisonResult compare(byte [] messageA, byte [] messageB) {
+        ComparisonResult result = new ComparisonResult(maxReportedDifferences, maxCollectedDifferences, null);
+        boolean same;
+        if( messageA == null || messageB == null ) {
+            same = messageA == messageB;
+            if( ! same ) {
+                result.addDifference("", "one of the messages is null", messageA, messageB);
+            }
+        }
+        else if( Arrays.equals(messageA, messageB) ) {
+            same = true;
+        }
+        else {
+            Fields fieldsA = Fields.parse(messageA, 0, messageA.length);
+            Fields fieldsB = Fields.parse(messageB, 0, messageB.length);
+            if( fieldsA == null || fieldsB == null ) {
+                result.addDifference("", "not a valid protobuf message", messageA, messageB);
+                same = false;
+            }
+            else {
+                same = compareMessages("", "", fieldsA, fieldsB, result);
+            }
+        }
+        result.setSame(same);
+        return result;
+    }
+
+    /**
+     * @param path The path of the messages, including the indexes of repeated fields.
+     * @param fieldPath The path of the messages, without indexes (as used in the descriptors).
+     */
+    private boolean compareMessages(String path, String fieldPath, Fields fieldsA, Fields fieldsB, ComparisonResult result) {
+        boolean same = true;
+        int a = 0;
+        int b = 0;
+        while( (a < fieldsA.size || b < fieldsB.size) && ! result.isLimitReached() ) {
+            int number = Math.min(
+                    a < fieldsA.size ? fieldsA.numberAt(a) : Integer.MAX_VALUE,
+                    b < fieldsB.size ? fieldsB.numberAt(b) : Integer.MAX_VALUE);
+            int endA = a;
+            while( endA < fieldsA.size && fieldsA.numberAt(endA) == number ) {
+                ++endA;
+            }
+            int endB = b;
+            while( endB < fieldsB.size && fieldsB.numberAt(endB) == number ) {
+                ++endB;
+            }
+
+            String numberPath = path.length() == 0 ? String.valueOf(number) : path + "." + number;
+            String numberFieldPath = fieldPath.length() == 0 ? String.valueOf(number) : fieldPath + "." + number;
+            int occurrences = Math.max(endA - a, endB - b);
+            for( int i = 0; i < occurrences; ++i ) {
+                String elementPath = occurrences > 1 ? numberPath + "[" + i + "]" : numberPath;
+                if( a + i >= endA ) {
+                    result.addDifference(elementPath, "field is missing in A", null, fieldsB.valueAt(b + i));
+                    same = false;
+                }
+                else if( b + i >= endB ) {
+                    result.addDifference(elementPath, "field is missing in B", fieldsA.valueAt(a + i), null);
+                    same = false;
+                }
+                else if( ! compareFields(elementPath, numberFieldPath, fieldsA, a + i, fieldsB, b + i, result) ) {
+                    same = false;
+                }
+            }
+            a = endA;
+            b = endB;
+        }
+        return same;
+    }
+
+    private boolean compareFields(String path, String fieldPath, Fields fieldsA, int a, Fields fieldsB, int b, ComparisonResult result) {
+        int wireType = fieldsA.wireTypeAt(a);
+        if( wireType != fieldsB.wireTypeAt(b) ) {
+            result.addDifference(path, "wire types differ", fieldsA.valueAt(a), fieldsB.valueAt(b));
+            return false;
+        }
+        if( wireType != LENGTH_DELIMITED ) {
+            if( fieldsA.values[fieldsA.order[a]] != fieldsB.values[fieldsB.order[b]] ) {
+                result.addDifference(path, "values differ", fieldsA.valueAt(a), fieldsB.valueAt(b));
+                return false;
+            }
+            return true;
+        }
+
+        int offsetA = (int) fieldsA.values[fieldsA.order[a]];
+        int lengthA = fieldsA.lengths[fieldsA.order[a]];
+        int offsetB = (int) fieldsB.values[fieldsB.order[b]];
+        int lengthB = fieldsB.lengths[fieldsB.order[b]];
+        if( rangeEquals(fieldsA.data, offsetA, lengthA, fieldsB.data, offsetB, lengthB) ) {
+            return true;
+        }
+
+        if( isMessageField(fieldPath) ) {
+            Fields nestedA = Fields.parse(fieldsA.data, offsetA, offsetA + lengthA);
+            Fields nestedB = Fields.parse(fieldsB.data, offsetB, offsetB + lengthB);
+            if( nestedA != null && nestedB != null ) {
+                return compareMessages(path, fieldPath, nestedA, nestedB, result);
+            }
+        }
+        result.addDifference(path, "values differ", fieldsA.valueAt(a), fieldsB.valueAt(b));
+        return false;
+    }
+
+    private synchronized boolean isMessageField(String fieldPath) {
+        if( messageFields.contains(fieldPath) ) {
+            return true;
+        }
+        return detectNestedMessages && ! bytesFields.contains(fieldPath);
+    }
+
+    private static boolean rangeEquals(byte [] dataA, int offsetA, int lengthA, byte [] dataB, int offsetB, int lengthB) {
+        if( lengthA != lengthB ) {
+            return false;
+        }
+        for( int i = 0; i < lengthA; ++i ) {
+            if( dataA[offsetA + i] != dataB[offsetB + i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The fields of a message: for every field, the field number, the wire type and the value (or, for
+     * length-delimited fields, the offset and length of the value within the data), ordered by field number.
+     */
+    private static class Fields {
+
+        private final byte [] data;
+        private int position;
+        private final int end;
+
+        private int size = 0;
+        private int [] numbers = new int[8];
+        private int [] wireTypes = new int[8];
+        private long [] values = new long[8];
+        private int [] lengths = new int[8];
+        // the indexes of the fields, ordered by field number (and then by position)
+        private int [] order;
+
+        private Fields(byte [] data, int offset, int end) {
+            this.data = data;
+            this.position = offset;
+            this.end = end;
+        }
+
+        /**
+         * @return The fields of the message, or null if the data is not a valid message.
+         */
+        static Fields parse(byte [] data, int offset, int end) {
+            Fields fields = new Fields(data, offset, end);
+            while( fields.position < end ) {
+                long tag = fields.readVarint();
+                if( tag < 0 ) {
+                    return null;
+                }
+                int wireType = (int) (tag & 7);
+                long number = tag >>> 3;
+                if( number < 1 || number > MAX_FIELD_NUMBER ) {
+                    return null;
+                }
+
+                long value;
+                int length = 0;
+                switch( wireType ) {
+                case VARINT:
+                    value = fields.readVarint();
+                    break;
+                case FIXED64:
+                    value = fields.readFixed(8);
+                    break;
+                case FIXED32:
+                    value = fields.readFixed(4);
+                    break;
+                case LENGTH_DELIMITED:
+                    long longLength = fields.readVarint();
+                    if( longLength < 0 || longLength > end - fields.position ) {
+                        return null;
+                    }
+                    length = (int) longLength;
+                    value = fields.position;
+                    fields.position += length;
+                    break;
+                default:
+                    // groups or invalid wire types
+                    return null;
+                }
+                if( fields.position < 0 ) {
+                    return null;
+                }
+                fields.add((int) number, wireType, value, length);
+            }
+            fields.sort();
+            return fields;
+        }
+
+        /**
+         * @return The varint, or -1 with a negative position if the data ends before the varint does.
+         */
+        private long readVarint() {
+            long value = 0;
+            for( int shift = 0; shift < 64; shift += 7 ) {
+                if( position >= end ) {
+                    position = -1;
+                    return -1;
+                }
+                byte b = data[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if( (b & 0x80) == 0 ) {
+                    return value;
+                }
+            }
+            position = -1;
+            return -1;
+        }
+
+        private long readFixed(int bytes) {
+            if( end - position < bytes ) {
+                position = -1;
+                return 0;
+            }
+            long value = 0;
+            for( int i = 0; i < bytes; ++i ) {
+                value |= (long) (data[position++] & 0xff) << (8 * i);
+            }
+            return value;
+        }
+
+        private void add(int number, int wireType, long value, int length) {
+            if( size == numbers.length ) {
+                int capacity = size * 2;
+                numbers = Arrays.copyOf(numbers, capacity);
+                wireTypes = Arrays.copyOf(wireTypes, capacity);
+                values = Arrays.copyOf(values, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            numbers[size] = number;
+            wireTypes[size] = wireType;
+            values[size] = value;
+            lengths[size] = length;
+            ++size;
+        }
+
+        private void sort() {
+            order = new int[size];
+            for( int i = 0; i < size; ++i ) {
+                // fields are (almost always) written in order: insertion sort
+                int j = i;
+                while( j > 0 && numbers[order[j - 1]] > numbers[i] ) {
+                    order[j] = order[j - 1];
+                    --j;
+                }
+                order[j] = i;
+            }
+        }
+
+        int numberAt(int index) {
+            return numbers[order[index]];
+        }
+
+        int wireTypeAt(int index) {
+            return wireTypes[order[index]];
+        }
+
+        /**
+         * @return The value of the field, for reporting: a Long, or a byte array for length-delimited fields.
+         */
+        Object valueAt(int index) {
+            int field = order[index];
+            if( wireTypes[field] == LENGTH_DELIMITED ) {
+                int offset = (int) values[field];
+                return Arrays.copyOfRange(data, offset, offset + lengths[field]);
+            }
+            return values[field];
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A comparator that is specialized for one (frequently compared) class.
+ * </p>
+ * Where the {@link ClassComparisonPlan} loop has to check the kind of every field of the class, the
+ * specialized comparator has already split the fields into straight-line groups: <ol>
+ * <li>The primitive fields, per primitive type, which are read and compared without boxing
+ *     (when the {@link FieldAccessEngine#UNBOXED} engine is used).</li>
+ * <li>The "leaf" fields: final java.* value fields (String, Integer, ..), primitive arrays and enums.</li>
+ * <li>The reference fields, which are compared by {@link CompareViaReflectionUtil} (one at a time, 
+ *     see {@link ComparisonStack}) once the primitive and leaf fields are found to be equal.</li>
+ * </ol>
+ * Comparing the primitive and leaf fields first means that a difference is found without descending
+ * into the object graph when possible. Since the primitive and leaf fields never touch the cycle detection
+ * state, changing the order in which they're compared does not change the result of the comparison.
+ * </p>
+ * Specialized comparators are created by {@link CompareViaReflectionUtil} once a class has been compared
+ * a configurable number of times: see {@link CompareViaReflectionUtil#setSpecializationThreshold(int)}.
+ */
+class SpecializedComparator {
+
+    private final Field [] intFields;
+    private final Field [] longFields;
+    private final Field [] booleanFields;
+    private final Field [] doubleFields;
+    private final Field [] floatFields;
+    private final Field [] shortFields;
+    private final Field [] byteFields;
+    private final Field [] charFields;
+    private final FieldAccessor [] boxedPrimitiveAccessors;
+
+    private final FieldAccessor [] leafAccessors;
+    private final int [] leafKinds;
+
+    final FieldAccessor [] referenceAccessors;
+    final String [] referenceContextNames;
+
+    SpecializedComparator(ClassComparisonPlan plan, FieldAccessEngine engine) {
+        List<Field> ints = new ArrayList<Field>();
+        List<Field> longs = new ArrayList<Field>();
+        List<Field> booleans = new ArrayList<Field>();
+        List<Field> doubles = new ArrayList<Field>();
+        List<Field> floats = new ArrayList<Field>();
+        List<Field> shorts = new ArrayList<Field>();
+        List<Field> bytes = new ArrayList<Field>();
+        List<Field> chars = new ArrayList<Field>();
+        List<FieldAccessor> boxed = new ArrayList<FieldAccessor>();
+        List<FieldAccessor> leaves = new ArrayList<FieldAccessor>();
+        List<Integer> leafKindList = new ArrayList<Integer>();
+        List<FieldAccessor> references = new ArrayList<FieldAccessor>();
+        List<String> referenceNames = new ArrayList<String>();
+
+        for( int i = 0; i < plan.fields.length; ++i ) {
+            Field field = plan.fields[i];
+            switch( plan.fieldKinds[i] ) {
+            case ClassComparisonPlan.PRIMITIVE_FIELD:
+                Class<?> type = field.getType();
+                if( engine == FieldAccessEngine.REFLECTION ) {
+                    boxed.add(plan.accessors[i]);
+                }
+                else if( type == int.class ) {
+                    ints.add(field);
+                }
+                else if( type == long.class ) {
+                    longs.add(field);
+                }
+                else if( type == boolean.class ) {
+                    booleans.add(field);
+                }
+                else if( type == double.class ) {
+                    doubles.add(field);
+                }
+                else if( type == float.class ) {
+                    floats.add(field);
+                }
+                else if( type == short.class ) {
+                    shorts.add(field);
+                }
+                else if( type == byte.class ) {
+                    bytes.add(field);
+                }
+                else if( type == char.class ) {
+                    chars.add(field);
+                }
+                else {
+                    boxed.add(plan.accessors[i]);
+                }
+                break;
+            case ClassComparisonPlan.VALUE_FIELD:
+            case ClassComparisonPlan.ARRAY_FIELD:
+            case ClassComparisonPlan.ENUM_FIELD:
+                leaves.add(plan.accessors[i]);
+                leafKindList.add(plan.fieldKinds[i]);
+                break;
+            default:
+                references.add(plan.accessors[i]);
+                referenceNames.add(plan.fieldContextNames[i]);
+            }
+        }
+
+        this.intFields = ints.toArray(new Field[ints.size()]);
+        this.longFields = longs.toArray(new Field[longs.size()]);
+        this.booleanFields = booleans.toArray(new Field[booleans.size()]);
+        this.doubleFields = doubles.toArray(new Field[doubles.size()]);
+        this.floatFields = floats.toArray(new Field[floats.size()]);
+        this.shortFields = shorts.toArray(new Field[shorts.size()]);
+        this.byteFields = bytes.toArray(new Field[bytes.size()]);
+        this.charFields = chars.toArray(new Field[chars.size()]);
+        this.boxedPrimitiveAccessors = boxed.toArray(new FieldAccessor[boxed.size()]);
+
+        this.leafAccessors = leaves.toArray(new FieldAccessor[leaves.size()]);
+        this.leafKinds = new int[leafKindList.size()];
+        for( int i = 0; i < leafKinds.length; ++i ) {
+            leafKinds[i] = leafKindList.get(i);
+        }
+
+        this.referenceAccessors = references.toArray(new FieldAccessor[references.size()]);
+        this.referenceContextNames = referenceNames.toArray(new String[referenceNames.size()]);
+    }
+
+    /**
+     * Compares the primitive and leaf fields of two (non-null) instances of the class that this comparator 
+     * was specialized for: the reference fields are compared by the caller.
+     * </p>
+     * Differences are not reported: the caller compares the fields one by one (again) to find out which field differs.
+     * @param objA The first instantiation to be compared.
+     * @param objB The second instantiation to be compared.
+     * @return Whether or not the primitive and leaf fields of objA and objB are equal.
+     */
+    boolean compareLeaves(Object objA, Object objB) throws IllegalAccessException {
+        return comparePrimitiveFields(objA, objB) && compareLeafFields(objA, objB);
+    }
+
+    private boolean comparePrimitiveFields(Object objA, Object objB) throws IllegalAccessException {
+        for( int i = 0; i < intFields.length; ++i ) {
+            if( intFields[i].getInt(objA) != intFields[i].getInt(objB) ) {
+                return false;
+            }
+        }
+        for( int i = 0; i < longFields.length; ++i ) {
+            if( longFields[i].getLong(objA) != longFields[i].getLong(objB) ) {
+                return false;
+            }
+        }
+        for( int i = 0; i < booleanFields.length; ++i ) {
+            if( booleanFields[i].getBoolean(objA) != booleanFields[i].getBoolean(objB) ) {
+                return false;
+            }
+        }
+        for( int i = 0; i < doubleFields.length; ++i ) {
+            if( Double.doubleToLongBits(doubleFields[i].getDouble(objA))
+                    != Double.doubleToLongBits(doubleFields[i].getDouble(objB)) ) {
+                return false;
+            }
+        }
+        for( int i = 0; i < floatFields.length; ++i ) {
+            if( Float.floatToIntBits(floatFields[i].getFloat(objA)) != Float.floatToIntBits(floatFields[i].getFloat(objB)) ) {
+                return false;
+            }
+        }
+        for( int i = 0; i < shortFields.length; ++i ) {
+            if( shortFields[i].getShort(objA) != shortFields[i].getShort(objB) ) {
+                return false;
+            }
+        }
+        for( int i = 0; i < byteFields.length; ++i ) {
+            if( byteFields[i].getByte(objA) != byteFields[i].getByte(objB) ) {
+                return false;
+            }
+        }
+        for( int i = 0; i < charFields.length; ++i ) {
+            if( charFields[i].getChar(objA) != charFields[i].getChar(objB) ) {
+                return false;
+            }
+        }
+        for( int i = 0; i < boxedPrimitiveAccessors.length; ++i ) {
+            if( ! boxedPrimitiveAccessors[i].samePrimitiveValue(objA, objB) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean compareLeafFields(Object objA, Object objB) throws IllegalAccessException {
+        for( int i = 0; i < leafAccessors.length; ++i ) {
+            Object subObjA = leafAccessors[i].get(objA);
+            Object subObjB = leafAccessors[i].get(objB);
+            if( subObjA == subObjB ) {
+                continue;
+            }
+            if( subObjA == null || subObjB == null ) {
+                return false;
+            }
+            switch( leafKinds[i] ) {
+            case ClassComparisonPlan.VALUE_FIELD:
+                if( ! subObjA.equals(subObjB) ) {
+                    return false;
+                }
+                break;
+            case ClassComparisonPlan.ARRAY_FIELD:
+                if( ! CompareViaReflectionUtil.comparePrimitiveArrays(subObjA, subObjB) ) {
+                    return false;
+                }
+                break;
+            default:
+                // different (non-null) enum instances are never equal
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
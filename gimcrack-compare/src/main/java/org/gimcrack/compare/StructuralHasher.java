@@ -0,0 +1,584 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computes a deterministic 64-bit hash of an object graph. The hash is consistent with {@link CompareViaReflectionUtil}:
+ * it walks the object graph in the same way that the graph is compared, which means that: <ul>
+ * <li>Objects are hashed field by field, using the {@link ClassComparisonPlan} of their class: transient fields
+ *     and the fields listed in the <code>gimcrack.compare.properties</code> file are skipped.</li>
+ * <li>Arrays, lists and other ordered collections are hashed in order.</li>
+ * <li>Sets and maps are hashed independently of the order of their elements.</li>
+ * <li>Primitive based objects are hashed using {@link Object#hashCode()}, unless their class does not override
+ *     {@link Object#hashCode()}, in which case only the class name is hashed. Strings, longs and doubles are 
+ *     hashed with 64 bits, enums by name and classes by class name.</li>
+ * <li>Objects compared by a registered {@link ClassComparer} are only hashed by class name, since we
+ *     can't know which parts of the object the comparer looks at.</li>
+ * </ul>
+ * The hash is deterministic: it does not depend on identity hash codes or on the order in which the JVM returns
+ * the elements of a set or map, so the same object graph has the same hash in every JVM run.
+ * <p/>
+ * When a maximum depth is given, the walk stops at that depth (objects beyond it are only hashed by class name),
+ * so that hashing an element of a collection does not walk the entire object graph that the element refers to.
+ * Cycles are then simply followed until the maximum depth is reached: the object graph is hashed as if it were 
+ * a tree, which means that equal object graphs always have the same hash.
+ * <p/>
+ * Without a maximum depth, cycles are detected by keeping track of the objects on the path from the root of the graph 
+ * to the object being hashed: a reference back to one of those objects is hashed by its distance (the number of 
+ * levels) to that object. The hash of a completed object is remembered during a {@link #hash(Object)} call if the 
+ * object is not part of a cycle, so that an object that is referred to many times is only walked once: a shared 
+ * reference contributes the same hash as an equal, duplicated object. (The objects of a cycle are walked again 
+ * every time that the cycle is entered.) Equal object graphs 
+ * with cycles of the same shape have the same hash; a cycle that is equal to a cycle that is repeated in the other 
+ * object graph (a ring of 3 objects compared to a ring of 6 objects with the same values) does not.
+ * <p/>
+ * The object graph is walked with an explicit stack, so that deep object graphs (long chains) can be hashed.
+ * <p/>
+ * Two objects with a different hash are different; two objects with the same hash are very probably,
+ * but not necessarily, equal: see {@link #hashSubgraphs(Object)} for the object graphs whose hash identifies them.
+ */
+public class StructuralHasher {
+
+    private final static long NULL_HASH = 0x51ED270B27B3FC2DL;
+    private final static long CYCLE_HASH = 0x2545F4914F6CDD1DL;
+
+    public final static int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+
+    private static ConcurrentHashMap<Class<?>, Boolean> identityHashCodeClasses = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    private final CompareViaReflectionUtil compareUtil;
+    private final int maxDepth;
+
+    /**
+     * Creates a hasher that walks the entire object graph.
+     * @param compareUtil The util whose comparison rules (exclusions, registered {@link ClassComparer}s) are used.
+     */
+    public StructuralHasher(CompareViaReflectionUtil compareUtil) {
+        this(compareUtil, UNLIMITED_DEPTH);
+    }
+
+    /**
+     * @param compareUtil The util whose comparison rules (exclusions, registered {@link ClassComparer}s) are used.
+     * @param maxDepth The maximum depth of the walk through the object graph.
+     */
+    public StructuralHasher(CompareViaReflectionUtil compareUtil, int maxDepth) {
+        this.compareUtil = compareUtil;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Computes the hash of the given object graph.
+     * @param obj The root of the object graph (may be null).
+     * @return The hash.
+     */
+    public long hash(Object obj) {
+        try {
+            HashWalk walk = new HashWalk(null);
+            long hash = walk.walk(obj);
+            lastHashFollowedCycle = walk.followedCycle;
+            return hash;
+        }
+        catch( Exception e ) {
+            e.printStackTrace();
+            fail(e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+        return NULL_HASH;
+    }
+
+    private boolean lastHashFollowedCycle = false;
+
+    /**
+     * Hashes the given object graph, and returns the hash of every object in it whose hash identifies its 
+     * object graph: an object graph with the same hash is equal to it, except for a 64-bit hash collision. 
+     * That is not the case (and the object is left out) when the object graph of the object: <ul>
+     * <li>contains an object that is compared by a registered {@link ClassComparer}, since those are only hashed 
+     *     by class name,</li>
+     * <li>contains a primitive based value other than a string, boxed primitive or enum: the {@link Object#hashCode()} 
+     *     of, for example, a {@link java.math.BigDecimal} is only 32 bits, and {@link Class} objects are hashed by name, 
+     *     while classes with the same name from different class loaders are not equal,</li>
+     * <li>is part of a cycle: the hash then depends on where the cycle was entered,</li>
+     * <li>goes beyond the maximum depth of this hasher.</li>
+     * </ul>
+     * @param root The root of the object graph (may be null).
+     * @return The hash of every object that is left in, by identity. 
+     */
+    IdentityHashMap<Object, Long> hashSubgraphs(Object root) {
+        IdentityHashMap<Object, Long> hashes = new IdentityHashMap<Object, Long>();
+        try {
+            HashWalk walk = new HashWalk(hashes);
+            walk.walk(root);
+        }
+        catch( Exception e ) {
+            e.printStackTrace();
+            fail(e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+        return hashes;
+    }
+
+    /**
+     * Equal object graphs with cycles that are not of the same shape can have different hashes (see above): 
+     * elements whose hash went through a cycle can thus not be matched by hash only. 
+     * (This method should only be used when this hasher is not shared between threads.)
+     * @return Whether or not the object graph hashed by the last call to {@link #hash(Object)} contained a cycle.
+     */
+    boolean isLastHashFollowedCycle() {
+        return lastHashFollowedCycle;
+    }
+
+    // how the hashes of the fields or elements of a frame are combined
+    private final static int OBJECT_FRAME    = 0; // in order, with the hashes of the primitive fields
+    private final static int ORDERED_FRAME   = 1; // in order
+    private final static int UNORDERED_FRAME = 2; // independent of the order
+    private final static int MAP_FRAME       = 3; // (key, value) pairs, independent of the order
+
+    /**
+     * An object whose fields or elements are being hashed.
+     */
+    private static class Frame {
+
+        final Object obj;
+        final int depth;
+        final int kind;
+        final long classHash;
+        final ClassComparisonPlan plan;
+        // the elements (or, for maps, the keys and values) for all frames but object frames
+        final Object [] elements;
+
+        int index = 0;
+        long hash;
+        long keyHash;
+        // the lowest depth of the objects on the path that the object graph of this frame refers back to
+        int lowestReferencedDepth = Integer.MAX_VALUE;
+        // whether or not the hash identifies the object graph of this frame: see hashSubgraphs(..)
+        boolean precise = true;
+
+        Frame(Object obj, int depth, int kind, long classHash, ClassComparisonPlan plan, Object [] elements) {
+            this.obj = obj;
+            this.depth = depth;
+            this.kind = kind;
+            this.classHash = classHash;
+            this.plan = plan;
+            this.elements = elements;
+            if( kind == OBJECT_FRAME ) {
+                this.hash = classHash;
+            }
+            else {
+                this.hash = kind == MAP_FRAME ? elements.length / 2 : elements.length;
+            }
+        }
+
+        void add(long valueHash) {
+            switch( kind ) {
+            case UNORDERED_FRAME:
+                // addition is commutative: the order of the elements does not matter
+                hash += mix(valueHash);
+                break;
+            case MAP_FRAME:
+                if( index % 2 == 1 ) {
+                    keyHash = valueHash;
+                }
+                else {
+                    hash += mix(combine(keyHash, valueHash));
+                }
+                break;
+            default:
+                hash = combine(hash, valueHash);
+            }
+        }
+
+        long complete() {
+            return kind == OBJECT_FRAME ? hash : combine(classHash, hash);
+        }
+    }
+
+    /**
+     * The state of one {@link StructuralHasher#hash(Object)} call.
+     */
+    private class HashWalk {
+
+        private final ArrayList<Frame> stack = new ArrayList<Frame>();
+        // the objects on the path from the root to the object being hashed, with their depth
+        private final IdentityHashMap<Object, Integer> path = maxDepth == UNLIMITED_DEPTH ? new IdentityHashMap<Object, Integer>() : null;
+        private final IdentityHashMap<Object, Long> completed = maxDepth == UNLIMITED_DEPTH ? new IdentityHashMap<Object, Long>() : null;
+        // the hashes that identify the object graphs of their objects, or null if not requested 
+        private final IdentityHashMap<Object, Long> preciseHashes;
+
+        // the hash computed by start(..), if no frame was pushed, and whether it identifies the object graph
+        private long startedHash;
+        private boolean startedPrecise;
+        private boolean followedCycle = false;
+
+        HashWalk(IdentityHashMap<Object, Long> preciseHashes) {
+            this.preciseHashes = preciseHashes;
+        }
+
+        long walk(Object root) throws Exception {
+            if( start(root, 0, null) ) {
+                if( preciseHashes != null && startedPrecise && root != null ) {
+                    preciseHashes.put(root, startedHash);
+                }
+                return startedHash;
+            }
+            while( true ) {
+                Frame frame = stack.get(stack.size() - 1);
+                if( next(frame) ) {
+                    // a frame has been pushed
+                    continue;
+                }
+
+                stack.remove(stack.size() - 1);
+                long hash = frame.complete();
+                if( path != null ) {
+                    path.remove(frame.obj);
+                    if( frame.lowestReferencedDepth > frame.depth ) {
+                        // the object is not part of a cycle: the hash does not depend on the path to this object
+                        completed.put(frame.obj, hash);
+                        if( preciseHashes != null && frame.precise ) {
+                            preciseHashes.put(frame.obj, hash);
+                        }
+                    }
+                }
+                if( stack.isEmpty() ) {
+                    return hash;
+                }
+                Frame parent = stack.get(stack.size() - 1);
+                parent.lowestReferencedDepth = Math.min(parent.lowestReferencedDepth, frame.lowestReferencedDepth);
+                parent.precise &= frame.precise;
+                parent.add(hash);
+            }
+        }
+
+        /**
+         * Hashes the next fields or elements of the frame, until a frame is pushed or all fields or elements have been hashed.
+         * @return True if a frame has been pushed, false if the frame is done.
+         */
+        private boolean next(Frame frame) throws Exception {
+            if( frame.kind == OBJECT_FRAME ) {
+                ClassComparisonPlan plan = frame.plan;
+                while( frame.index < plan.fields.length ) {
+                    int i = frame.index++;
+                    Object value = plan.accessors[i].get(frame.obj);
+                    switch( plan.fieldKinds[i] ) {
+                    case ClassComparisonPlan.PRIMITIVE_FIELD:
+                        frame.add(valueHash(value));
+                        break;
+                    case ClassComparisonPlan.VALUE_FIELD:
+                        frame.add(valueHash(value));
+                        frame.precise &= isPreciseValue(value);
+                        break;
+                    case ClassComparisonPlan.ENUM_FIELD:
+                        frame.add(value == null ? NULL_HASH : stringHash(((Enum<?>) value).name()));
+                        break;
+                    default:
+                        if( ! start(value, frame.depth + 1, frame) ) {
+                            return true;
+                        }
+                        frame.add(startedHash);
+                        frame.precise &= startedPrecise;
+                    }
+                }
+                return false;
+            }
+            while( frame.index < frame.elements.length ) {
+                Object element = frame.elements[frame.index++];
+                if( ! start(element, frame.depth + 1, frame) ) {
+                    return true;
+                }
+                frame.add(startedHash);
+                frame.precise &= startedPrecise;
+            }
+            return false;
+        }
+
+        /**
+         * Hashes the given object if that can be done without walking its fields or elements: 
+         * otherwise, a frame is pushed.
+         * @param parent The frame of the object that refers to the given object, or null.
+         * @return True if the hash has been computed (see {@link #startedHash}), false if a frame has been pushed.
+         */
+        private boolean start(Object obj, int depth, Frame parent) throws Exception {
+            startedPrecise = true;
+            if( obj == null ) {
+                startedHash = NULL_HASH;
+                return true;
+            }
+            Class<?> objClass = obj.getClass();
+            long hash = mix(objClass.getName().hashCode());
+            startedHash = hash;
+            if( depth >= maxDepth ) {
+                startedPrecise = false;
+                return true;
+            }
+
+            ClassComparisonPlan plan = compareUtil.getComparisonPlan(objClass);
+            int kind;
+            switch( plan.kind ) {
+            case ClassComparisonPlan.COMPARER_KIND:
+                // we don't know what the comparer compares
+                startedPrecise = false;
+                return true;
+            case ClassComparisonPlan.ENUM_KIND:
+                startedHash = combine(hash, stringHash(((Enum<?>) obj).name()));
+                return true;
+            case ClassComparisonPlan.JAVA_KIND:
+                switch( plan.javaKind ) {
+                case ClassComparisonPlan.EQUALS_JAVA:
+                    startedHash = combine(hash, valueHash(obj));
+                    startedPrecise = isPreciseValue(obj);
+                    return true;
+                case ClassComparisonPlan.ATOMIC_JAVA:
+                    Object value = objClass.getMethod("get", new Class<?>[0]).invoke(obj, (Object []) null);
+                    startedHash = combine(hash, valueHash(value));
+                    startedPrecise = isPreciseValue(value);
+                    return true;
+                case ClassComparisonPlan.ORDERED_JAVA:
+                case ClassComparisonPlan.ATOMIC_ARRAY_JAVA:
+                    kind = ORDERED_FRAME;
+                    break;
+                case ClassComparisonPlan.SET_JAVA:
+                    kind = UNORDERED_FRAME;
+                    break;
+                case ClassComparisonPlan.MAP_JAVA:
+                    kind = MAP_FRAME;
+                    break;
+                default:
+                    if( objClass.getComponentType().isPrimitive() ) {
+                        startedHash = combine(hash, primitiveArrayHash(obj));
+                        return true;
+                    }
+                    kind = ORDERED_FRAME;
+                }
+                break;
+            case ClassComparisonPlan.ARRAY_KIND:
+                if( objClass.getComponentType().isPrimitive() ) {
+                    startedHash = combine(hash, primitiveArrayHash(obj));
+                    return true;
+                }
+                kind = ORDERED_FRAME;
+                break;
+            default:
+                kind = OBJECT_FRAME;
+            }
+
+            if( path != null ) {
+                Long completedHash = completed.get(obj);
+                if( completedHash != null ) {
+                    startedHash = completedHash;
+                    startedPrecise = preciseHashes == null || preciseHashes.containsKey(obj);
+                    return true;
+                }
+                Integer pathDepth = path.get(obj);
+                if( pathDepth != null ) {
+                    // cycle: hashed by the distance to the object that is referred back to
+                    startedHash = combine(hash, combine(CYCLE_HASH, depth - pathDepth));
+                    followedCycle = true;
+                    parent.lowestReferencedDepth = Math.min(parent.lowestReferencedDepth, pathDepth);
+                    return true;
+                }
+            }
+
+            Object [] elements = null;
+            if( kind != OBJECT_FRAME ) {
+                elements = getElements(obj, plan);
+                if( elements == null ) {
+                    startedHash = combine(hash, NULL_HASH);
+                    return true;
+                }
+            }
+            if( path != null ) {
+                path.put(obj, depth);
+            }
+            stack.add(new Frame(obj, depth, kind, hash, plan, elements));
+            return false;
+        }
+
+        /**
+         * @return The elements of the collection or array (for maps: the keys and values), or null. 
+         */
+        private Object [] getElements(Object obj, ClassComparisonPlan plan) throws Exception {
+            if( plan.kind == ClassComparisonPlan.ARRAY_KIND ) {
+                return (Object []) obj;
+            }
+            Class<?> objClass = obj.getClass();
+            switch( plan.javaKind ) {
+            case ClassComparisonPlan.ORDERED_JAVA:
+            case ClassComparisonPlan.SET_JAVA:
+                return (Object []) plan.collectionMethod.invoke(obj, (Object []) null);
+            case ClassComparisonPlan.MAP_JAVA:
+                Set<?> entrySet = (Set<?>) plan.collectionMethod.invoke(obj, (Object []) null);
+                if( entrySet == null ) {
+                    return null;
+                }
+                Object [] keysAndValues = new Object[entrySet.size() * 2];
+                int i = 0;
+                for( Object entry : entrySet ) {
+                    Map.Entry<?, ?> mapEntry = (Map.Entry<?, ?>) entry;
+                    keysAndValues[i++] = mapEntry.getKey();
+                    keysAndValues[i++] = mapEntry.getValue();
+                }
+                return keysAndValues;
+            case ClassComparisonPlan.ATOMIC_ARRAY_JAVA:
+                int length = (Integer) objClass.getMethod("length", new Class<?>[0]).invoke(obj, (Object []) null);
+                Method getMethod = objClass.getMethod("get", new Class<?>[] { int.class });
+                Object [] values = new Object[length];
+                for( int j = 0; j < length; ++j ) {
+                    values[j] = getMethod.invoke(obj, j);
+                }
+                return values;
+            default:
+                return (Object []) obj;
+            }
+        }
+
+        /**
+         * Objects that are compared using {@link Object#equals(Object)} are hashed using {@link Object#hashCode()}, 
+         * unless the {@link Object#hashCode()} implementation is the (non-deterministic) identity hash code.
+         */
+        private long valueHash(Object value) throws Exception {
+            if( value == null ) {
+                return NULL_HASH;
+            }
+            if( value instanceof String ) {
+                return stringHash((String) value);
+            }
+            if( value instanceof Long ) {
+                return (Long) value;
+            }
+            if( value instanceof Double ) {
+                return Double.doubleToLongBits((Double) value);
+            }
+            if( value instanceof Enum<?> ) {
+                // Enum.hashCode() is the identity hash code
+                return stringHash(((Enum<?>) value).name());
+            }
+            if( value instanceof Class<?> ) {
+                return ((Class<?>) value).getName().hashCode();
+            }
+            Class<?> valueClass = value.getClass();
+            Boolean identityHashCode = identityHashCodeClasses.get(valueClass);
+            if( identityHashCode == null ) {
+                identityHashCode = valueClass.getMethod("hashCode", new Class<?>[0]).getDeclaringClass().equals(Object.class);
+                identityHashCodeClasses.put(valueClass, identityHashCode);
+            }
+            if( identityHashCode ) {
+                return valueClass.getName().hashCode();
+            }
+            return value.hashCode();
+        }
+
+        /**
+         * Primitive arrays are hashed with 64 bits, element by element.
+         */
+        private long primitiveArrayHash(Object array) {
+            int length = Array.getLength(array);
+            long hash = length;
+            Class<?> componentType = array.getClass().getComponentType();
+            if( componentType == byte.class ) {
+                byte [] bytes = (byte []) array;
+                for( int i = 0; i < length; ++i ) {
+                    hash = combine(hash, bytes[i]);
+                }
+            }
+            else if( componentType == short.class ) {
+                short [] shorts = (short []) array;
+                for( int i = 0; i < length; ++i ) {
+                    hash = combine(hash, shorts[i]);
+                }
+            }
+            else if( componentType == int.class ) {
+                int [] ints = (int []) array;
+                for( int i = 0; i < length; ++i ) {
+                    hash = combine(hash, ints[i]);
+                }
+            }
+            else if( componentType == long.class ) {
+                long [] longs = (long []) array;
+                for( int i = 0; i < length; ++i ) {
+                    hash = combine(hash, longs[i]);
+                }
+            }
+            else if( componentType == float.class ) {
+                float [] floats = (float []) array;
+                for( int i = 0; i < length; ++i ) {
+                    hash = combine(hash, Float.floatToIntBits(floats[i]));
+                }
+            }
+            else if( componentType == double.class ) {
+                double [] doubles = (double []) array;
+                for( int i = 0; i < length; ++i ) {
+                    hash = combine(hash, Double.doubleToLongBits(doubles[i]));
+                }
+            }
+            else if( componentType == boolean.class ) {
+                boolean [] booleans = (boolean []) array;
+                for( int i = 0; i < length; ++i ) {
+                    hash = combine(hash, booleans[i] ? 1 : 0);
+                }
+            }
+            else {
+                char [] chars = (char []) array;
+                for( int i = 0; i < length; ++i ) {
+                    hash = combine(hash, chars[i]);
+                }
+            }
+            return hash;
+        }
+
+    }
+
+    /**
+     * @return Whether or not {@link HashWalk#valueHash(Object)} identifies the given primitive based value.
+     */
+    private static boolean isPreciseValue(Object value) {
+        return value == null || value instanceof String || value instanceof Integer || value instanceof Long 
+                || value instanceof Boolean || value instanceof Character || value instanceof Double 
+                || value instanceof Float || value instanceof Short || value instanceof Byte || value instanceof Enum<?>;
+    }
+
+    /**
+     * @return The 64-bit FNV-1a hash of the characters of the string.
+     */
+    private static long stringHash(String value) {
+        long hash = 0xCBF29CE484222325L;
+        for( int i = 0; i < value.length(); ++i ) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    private static long combine(long hash, long value) {
+        return (hash * 0x9E3779B97F4A7C15L) + mix(value);
+    }
+
+    private static long mix(long value) {
+        value ^= (value >>> 33);
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= (value >>> 33);
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= (value >>> 33);
+        return value;
+    }
+
+}
@@ -0,0 +1,688 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompareViaReflectionUtilTest {
+
+    private CompareViaReflectionUtil compareUtil;
+
+    @Before
+    public void before() {
+        compareUtil = new CompareViaReflectionUtil();
+    }
+
+    @Test
+    public void testComparisonPlanIsCached() {
+        ClassComparisonPlan plan = compareUtil.getComparisonPlan(Node.class);
+        assertSame(plan, compareUtil.getComparisonPlan(Node.class));
+        assertEquals(ClassComparisonPlan.OBJECT_KIND, plan.kind);
+
+        // Node fields first, then the BaseNode fields; the transient field is left out
+        assertEquals(6, plan.fields.length);
+        assertEquals("id", plan.fields[0].getName());
+        assertEquals(ClassComparisonPlan.PRIMITIVE_FIELD, plan.fieldKinds[0]);
+        assertEquals(ClassComparisonPlan.VALUE_FIELD, plan.fieldKinds[1]);
+        assertEquals(ClassComparisonPlan.ARRAY_FIELD, plan.fieldKinds[2]);
+        assertEquals(ClassComparisonPlan.ENUM_FIELD, plan.fieldKinds[3]);
+        assertEquals(ClassComparisonPlan.RECURSIVE_FIELD, plan.fieldKinds[4]);
+        assertEquals("baseName", plan.fields[5].getName());
+        assertEquals(1, plan.ignoredFieldNames.length);
+
+        assertEquals(ClassComparisonPlan.JAVA_KIND, compareUtil.getComparisonPlan(String.class).kind);
+        assertEquals(ClassComparisonPlan.ENUM_KIND, compareUtil.getComparisonPlan(Color.class).kind);
+    }
+
+    @Test
+    public void testJavaComparisonPlans() {
+        assertEquals(ClassComparisonPlan.EQUALS_JAVA, compareUtil.getComparisonPlan(String.class).javaKind);
+        assertEquals(ClassComparisonPlan.EQUALS_JAVA, compareUtil.getComparisonPlan(Integer.class).javaKind);
+        assertEquals(ClassComparisonPlan.EQUALS_JAVA, compareUtil.getComparisonPlan(Thread.State.class).javaKind);
+        assertEquals(ClassComparisonPlan.ATOMIC_JAVA, compareUtil.getComparisonPlan(AtomicInteger.class).javaKind);
+        assertEquals(ClassComparisonPlan.PRIMITIVE_ARRAY_JAVA, compareUtil.getComparisonPlan(int [].class).javaKind);
+        assertEquals(ClassComparisonPlan.OBJECT_ARRAY_JAVA, compareUtil.getComparisonPlan(Node [].class).javaKind);
+        assertEquals(ClassComparisonPlan.SET_JAVA, compareUtil.getComparisonPlan(HashSet.class).javaKind);
+        assertEquals(ClassComparisonPlan.MAP_JAVA, compareUtil.getComparisonPlan(HashMap.class).javaKind);
+        ClassComparisonPlan listPlan = compareUtil.getComparisonPlan(ArrayList.class);
+        assertEquals(ClassComparisonPlan.ORDERED_JAVA, listPlan.javaKind);
+        assertEquals("toArray", listPlan.collectionMethod.getName());
+
+        assertTrue(compareUtil.compareInstances(new AtomicInteger(3), new AtomicInteger(3)));
+        assertFalse(compareUtil.compareInstances(new AtomicInteger(3), new AtomicInteger(4)));
+        assertFalse(compareUtil.compareInstances(new int [] { 1 }, new int [] { 2 }));
+        assertFalse(compareUtil.compareInstances(Arrays.asList("a", "b"), Arrays.asList("b", "a")));
+        assertTrue(compareUtil.compareInstances(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(Arrays.asList("b", "a"))));
+    }
+
+    @Test
+    public void testCompareObjects() {
+        Node nodeA = new Node(1, "one", Color.RED);
+        Node nodeB = new Node(1, "one", Color.RED);
+        nodeA.cache = "a";
+        nodeB.cache = "b";
+        assertTrue("Transient fields should not be compared", compareUtil.compareInstances(nodeA, nodeB));
+
+        nodeB.bytes[1] = 3;
+        assertFalse("Different arrays", compareUtil.compareInstances(nodeA, nodeB));
+        nodeB.bytes[1] = 2;
+
+        nodeB.color = Color.BLUE;
+        assertFalse("Different enums", compareUtil.compareInstances(nodeA, nodeB));
+        nodeB.color = Color.RED;
+
+        nodeB.baseName = "other";
+        assertFalse("Different super class field", compareUtil.compareInstances(nodeA, nodeB));
+        nodeB.baseName = nodeA.baseName;
+
+        nodeA.next = new Node(2, "two", Color.BLUE);
+        nodeB.next = new Node(2, "two", Color.BLUE);
+        assertTrue(compareUtil.compareInstances(nodeA, nodeB));
+
+        ((Node) nodeB.next).id = 3;
+        assertFalse("Different nested object", compareUtil.compareInstances(nodeA, nodeB));
+    }
+
+    @Test
+    public void testCompareCycles() {
+        Node nodeA = new Node(1, "one", Color.RED);
+        Node nodeB = new Node(1, "one", Color.RED);
+        nodeA.next = nodeA;
+        nodeB.next = nodeB;
+        assertTrue(compareUtil.compareInstances(nodeA, nodeB));
+    }
+
+    @Test
+    public void testSharedObjects() {
+        Node shared = new Node(1, "shared", Color.RED);
+        Object [] arrayA = { shared, shared };
+        Object [] arrayB = { new Node(1, "shared", Color.RED), new Node(1, "shared", Color.RED) };
+        assertTrue("Shared in A, duplicated in B", compareUtil.compareInstances(arrayA, arrayB));
+        assertTrue("Duplicated in A, shared in B", compareUtil.compareInstances(arrayB, arrayA));
+
+        // the second (duplicated) node is compared as well
+        ((Node) arrayB[1]).id = 2;
+        assertFalse("Shared in A, different in B", compareUtil.compareInstances(arrayA, arrayB));
+        assertFalse("Different in A, shared in B", compareUtil.compareInstances(arrayB, arrayA));
+
+        // a cycle of one node in A, a cycle of two (equal) nodes in B
+        Node cycleA = createChain(1, 1);
+        Node cycleB = createChain(1, 2);
+        ((Node) cycleB.next).name = cycleB.name;
+        ((Node) cycleB.next).id = cycleB.id;
+        ((Node) cycleB.next).color = cycleB.color;
+        assertTrue(compareUtil.compareInstances(cycleA, cycleB));
+    }
+
+    @Test
+    public void testClassComparerInvalidatesPlans() {
+        Node nodeA = new Node(1, "one", Color.RED);
+        Node nodeB = new Node(2, "two", Color.BLUE);
+        assertFalse(compareUtil.compareInstances(nodeA, nodeB));
+
+        compareUtil.registerClassComparer(Node.class, new ClassComparer() {
+            @Override
+            public boolean compare(Object objA, Object objB) {
+                return true;
+            }
+        });
+        assertEquals(ClassComparisonPlan.COMPARER_KIND, compareUtil.getComparisonPlan(Node.class).kind);
+        assertTrue(compareUtil.compareInstances(nodeA, nodeB));
+    }
+
+    @Test
+    public void testFieldAccessEngines() {
+        CompareViaReflectionUtil [] compareUtils = {
+                new CompareViaReflectionUtil(FieldAccessEngine.REFLECTION),
+                new CompareViaReflectionUtil(FieldAccessEngine.UNBOXED) };
+
+        for( CompareViaReflectionUtil util : compareUtils ) {
+            Primitives primA = new Primitives();
+            Primitives primB = new Primitives();
+            assertTrue(util.getFieldAccessEngine().name(), util.compareInstances(primA, primB));
+
+            primB.l = 2l;
+            assertFalse(util.getFieldAccessEngine().name(), util.compareInstances(primA, primB));
+            primB.l = primA.l;
+
+            // Same semantics as Double.equals(..)
+            primA.d = Double.NaN;
+            primB.d = Double.NaN;
+            assertTrue(util.getFieldAccessEngine().name(), util.compareInstances(primA, primB));
+            primA.f = 0.0f;
+            primB.f = -0.0f;
+            assertFalse(util.getFieldAccessEngine().name(), util.compareInstances(primA, primB));
+        }
+    }
+
+    @Test
+    public void testSpecializedComparators() {
+        for( FieldAccessEngine engine : FieldAccessEngine.values() ) {
+            compareUtil = new CompareViaReflectionUtil(engine);
+            compareUtil.setSpecializationThreshold(2);
+            for( int i = 0; i < 3; ++i ) {
+                testCompareObjects();
+                testCompareCycles();
+            }
+            assertTrue(compareUtil.getComparisonPlan(Node.class).getSpecializedComparator(2, engine) != null);
+
+            Primitives primA = new Primitives();
+            Primitives primB = new Primitives();
+            for( int i = 0; i < 3; ++i ) {
+                assertTrue(engine.name(), compareUtil.compareInstances(primA, primB));
+            }
+            primB.c = 'd';
+            assertFalse(engine.name(), compareUtil.compareInstances(primA, primB));
+        }
+    }
+
+    @Test
+    public void testSpecializedComparatorsDisabled() {
+        compareUtil.setSpecializationThreshold(-1);
+        testCompareObjects();
+        assertTrue(compareUtil.getComparisonPlan(Node.class).getSpecializedComparator(-1, FieldAccessEngine.REFLECTION) == null);
+    }
+
+    @Test
+    public void testHashedUnorderedMatching() {
+        for( boolean hashed : new boolean [] { false, true } ) {
+            compareUtil = new CompareViaReflectionUtil();
+            compareUtil.setHashedUnorderedMatching(hashed);
+
+            Set<Node> setA = new HashSet<Node>();
+            Set<Node> setB = new HashSet<Node>();
+            HashMap<Node, String> mapA = new HashMap<Node, String>();
+            HashMap<Node, String> mapB = new HashMap<Node, String>();
+            for( int i = 0; i < 200; ++i ) {
+                setA.add(new Node(i, "node-" + i, Color.RED));
+                setB.add(new Node(i, "node-" + i, Color.RED));
+                mapA.put(new Node(i, "key-" + i, Color.BLUE), "value-" + i);
+                mapB.put(new Node(i, "key-" + i, Color.BLUE), "value-" + i);
+            }
+            assertTrue("Equal sets [" + hashed + "]", compareUtil.compareInstances(setA, setB));
+            assertTrue("Equal maps [" + hashed + "]", compareUtil.compareInstances(mapA, mapB));
+
+            Node node = setB.iterator().next();
+            node.name = "other";
+            assertFalse("Unequal sets [" + hashed + "]", compareUtil.compareInstances(setA, setB));
+
+            mapB.put(mapB.keySet().iterator().next(), "other");
+            assertFalse("Unequal maps [" + hashed + "]", compareUtil.compareInstances(mapA, mapB));
+        }
+    }
+
+    @Test
+    public void testHashedUnorderedMatchingMatchesOnce() {
+        compareUtil.setHashedUnorderedMatching(true);
+
+        Node nodeA1 = new Node(1, "one", Color.RED);
+        Node nodeA2 = new Node(2, "two", Color.RED);
+        Node nodeB1 = new Node(1, "one", Color.RED);
+        Node nodeB2 = new Node(1, "one", Color.RED);
+
+        Set<Node> setA = new HashSet<Node>();
+        setA.add(nodeA1);
+        setA.add(nodeA2);
+        Set<Node> setB = new HashSet<Node>();
+        setB.add(nodeB1);
+        setB.add(nodeB2);
+        assertFalse(compareUtil.compareInstances(setA, setB));
+
+        // every element is only compared to the element in its bucket: O(n) instead of O(n^2)
+        Set<Node> largeSetA = new LinkedHashSet<Node>();
+        Set<Node> largeSetB = new LinkedHashSet<Node>();
+        for( int i = 0; i < 1000; ++i ) {
+            largeSetA.add(new Node(i, "node-" + i, Color.RED));
+            largeSetB.add(new Node(999 - i, "node-" + (999 - i), Color.RED));
+        }
+        ComparisonResult result = compareUtil.compare(largeSetA, largeSetB);
+        assertTrue(result.isSame());
+        assertTrue(result.getComparedObjects() + " compared objects", result.getComparedObjects() < 5 * largeSetA.size());
+
+        // elements with cycles of a different shape do not have the same hash
+        compareUtil.setUnorderedMatchingHashDepth(StructuralHasher.UNLIMITED_DEPTH);
+        Node ringA = createChain(1, 1);
+        Node ringB = createChain(1, 1);
+        ringB.next = new Node(1, "node-1", Color.RED);
+        ((Node) ringB.next).next = ringB;
+        assertTrue(compareUtil.compareInstances(ringA, ringB));
+        Set<Node> ringsA = new HashSet<Node>(Arrays.asList(ringA, createChain(2, 1)));
+        Set<Node> ringsB = new HashSet<Node>(Arrays.asList(createChain(2, 1), ringB));
+        assertTrue(compareUtil.compareInstances(ringsA, ringsB));
+    }
+
+    @Test
+    public void testStructuralHash() {
+        Node nodeA = new Node(1, "one", Color.RED);
+        Node nodeB = new Node(1, "one", Color.RED);
+        nodeA.cache = "a";
+        nodeA.next = nodeA;
+        nodeB.next = nodeB;
+        assertEquals(compareUtil.structuralHash(nodeA), compareUtil.structuralHash(nodeB));
+
+        nodeB.bytes[0] = 9;
+        assertTrue(compareUtil.structuralHash(nodeA) != compareUtil.structuralHash(nodeB));
+
+        // shared and duplicated (equal) objects hash the same
+        Node shared = new Node(2, "two", Color.BLUE);
+        Object [] arrayA = { shared, shared };
+        Object [] arrayB = { new Node(2, "two", Color.BLUE), new Node(2, "two", Color.BLUE) };
+        assertEquals(compareUtil.structuralHash(arrayA), compareUtil.structuralHash(arrayB));
+
+        // the order of the elements of a set does not matter
+        Set<String> setA = new LinkedHashSet<String>();
+        Set<String> setB = new LinkedHashSet<String>();
+        for( int i = 0; i < 100; ++i ) {
+            setA.add("elem-" + i);
+            setB.add("elem-" + (99 - i));
+        }
+        assertEquals(compareUtil.structuralHash(setA), compareUtil.structuralHash(setB));
+
+        // the hash is deterministic: no identity hash codes are used
+        Object [] objects = { new Object(), Node.class };
+        assertEquals(compareUtil.structuralHash(objects), compareUtil.structuralHash(new Object [] { new Object(), Node.class }));
+        assertTrue(compareUtil.structuralHash(new Object [] { String.class }) != compareUtil.structuralHash(new Object [] { Integer.class }));
+
+        // equal cycles have the same hash, regardless of where the walk enters them
+        Node ringA = createChain(1, 2);
+        Node ringB = createChain(1, 2);
+        Node ringC = createChain(1, 2);
+        Object [] cyclesA = { ringA, ringA.next };
+        Object [] cyclesB = { ringB, ringC.next };
+        assertTrue(compareUtil.compareInstances(cyclesA, cyclesB));
+        assertEquals(compareUtil.structuralHash(cyclesA), compareUtil.structuralHash(cyclesB));
+
+        // no recursion
+        assertEquals(compareUtil.structuralHash(createChain(0, 200000)), compareUtil.structuralHash(createChain(0, 200000)));
+        StructuralHasher hasher = new StructuralHasher(compareUtil, 4);
+        assertEquals(hasher.hash(cyclesA), hasher.hash(cyclesB));
+    }
+
+    @Test
+    public void testConcurrentComparisons() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for( int i = 0; i < 200; ++i ) {
+                final int id = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        Node nodeA = createChain(id, 50);
+                        Node nodeB = createChain(id, 50);
+                        if( id % 2 == 1 ) {
+                            nodeB.bytes[0] = 9;
+                        }
+                        return compareUtil.compareInstances(nodeA, nodeB);
+                    }
+                }));
+            }
+            for( int i = 0; i < results.size(); ++i ) {
+                assertEquals("Comparison " + i, i % 2 == 0, results.get(i).get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReentrantClassComparer() {
+        compareUtil.registerClassComparer(Primitives.class, new ClassComparer() {
+            @Override
+            public boolean compare(Object objA, Object objB) {
+                // starts a separate comparison (and session)
+                assertTrue(compareUtil.compareInstances(createChain(1, 3), createChain(1, 3)));
+                return compareInstances(((Primitives) objA).i, ((Primitives) objB).i, "i ");
+            }
+        });
+        Node nodeA = createChain(1, 3);
+        Node nodeB = createChain(1, 3);
+        nodeA.next = new Primitives();
+        nodeB.next = new Primitives();
+        assertTrue(compareUtil.compareInstances(nodeA, nodeB));
+
+        ((Primitives) nodeB.next).i = 4;
+        assertFalse(compareUtil.compareInstances(nodeA, nodeB));
+    }
+
+    @Test
+    public void testParallelComparison() throws Exception {
+        // a single thread: the calling thread has to compare the parts that the executor doesn't get to
+        for( int threads : new int [] { 1, 4 } ) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                compareUtil.setParallelExecutor(executor);
+                compareUtil.setParallelSplitThreshold(4);
+
+                Object [] arrayA = new Object[200];
+                Object [] arrayB = new Object[200];
+                for( int i = 0; i < arrayA.length; ++i ) {
+                    arrayA[i] = createChain(i, 5);
+                    arrayB[i] = createChain(i, 5);
+                }
+                // shared (and thus "seen") in A, duplicated in B
+                arrayA[100] = arrayA[10];
+                arrayB[100] = createChain(10, 5);
+                List<Object> listA = new ArrayList<Object>(Arrays.asList(arrayA));
+                List<Object> listB = new ArrayList<Object>(Arrays.asList(arrayB));
+                Set<Object> setA = new HashSet<Object>(listA.subList(0, 20));
+                Set<Object> setB = new HashSet<Object>(listB.subList(0, 20));
+                Object [] graphA = { listA, setA, new Wide() };
+                Object [] graphB = { listB, setB, new Wide() };
+                assertTrue(compareUtil.compareInstances(graphA, graphB));
+
+                ((Node) ((Node) arrayB[150]).next).bytes[1] = 7;
+                assertFalse(compareUtil.compareInstances(graphA, graphB));
+                ((Node) ((Node) arrayB[150]).next).bytes[1] = 2;
+
+                ((Wide) graphB[2]).f7 = "other";
+                assertFalse(compareUtil.compareInstances(graphA, graphB));
+            }
+            finally {
+                compareUtil.setParallelExecutor(null);
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testLazyDebugContextNames() {
+        CompareViaReflectionUtil.DebugContext root = compareUtil.new DebugContext(0, "root", true);
+        CompareViaReflectionUtil.DebugContext field = root.nestedClone(": next > ");
+        CompareViaReflectionUtil.DebugContext element = field.nestedIndexClone(3);
+        assertEquals("root: next > : (3) ", element.getName());
+        assertEquals("root: next > ", field.getName());
+        assertEquals("root: next > : (3) ", element.clone().getName());
+    }
+
+    @Test
+    public void testDeepObjectGraphs() {
+        // deep enough to overflow the thread stack when comparing recursively
+        Node nodeA = createChain(0, 200000);
+        Node nodeB = createChain(0, 200000);
+        assertTrue(compareUtil.compareInstances(nodeA, nodeB));
+
+        Node lastB = nodeB;
+        for( int i = 1; i < 199999; ++i ) {
+            lastB = (Node) lastB.next;
+        }
+        lastB.name = "other";
+        assertFalse(compareUtil.compareInstances(nodeA, nodeB));
+
+        // via lists and arrays
+        List<Object> listA = new ArrayList<Object>();
+        List<Object> listB = new ArrayList<Object>();
+        Object [] headA = { listA };
+        Object [] headB = { listB };
+        for( int i = 0; i < 50000; ++i ) {
+            Node nextA = new Node(i, "node", Color.RED);
+            Node nextB = new Node(i, "node", Color.RED);
+            listA.add(nextA);
+            listB.add(nextB);
+            listA = new ArrayList<Object>();
+            listB = new ArrayList<Object>();
+            nextA.next = new Object [] { listA };
+            nextB.next = new Object [] { listB };
+        }
+        assertTrue(compareUtil.compareInstances(headA, headB));
+        listB.add("end");
+        assertFalse(compareUtil.compareInstances(headA, headB));
+    }
+
+    @Test
+    public void testComparisonResult() {
+        Node nodeA = createChain(1, 3);
+        Node nodeB = createChain(1, 3);
+        ComparisonResult result = compareUtil.compare(nodeA, nodeB);
+        assertTrue(result.isSame());
+        assertEquals(0, result.getDifferences().size());
+        assertTrue(result.getComparedObjects() > 3);
+
+        ((Node) nodeB.next).id = 7;
+        result = compareUtil.compare(nodeA, nodeB);
+        assertFalse(result.isSame());
+        assertEquals(1, result.getDifferences().size());
+        ComparisonResult.Difference difference = result.getDifferences().get(0);
+        assertEquals("next.id", difference.getPath());
+        assertEquals(2, difference.getValueA());
+        assertEquals(7, difference.getValueB());
+
+        // the specialized comparator doesn't know which field differs
+        compareUtil.setSpecializationThreshold(0);
+        difference = compareUtil.compare(nodeA, nodeB).getDifferences().get(0);
+        assertEquals("next.id", difference.getPath());
+        ((Node) nodeB.next).id = 2;
+
+        Object [] arrayA = { nodeA, new HashSet<String>(Arrays.asList("a", "b")) };
+        Object [] arrayB = { nodeB, new HashSet<String>(Arrays.asList("a", "c")) };
+        difference = compareUtil.compare(arrayA, arrayB).getDifferences().get(0);
+        // failed matches within the set are not differences
+        assertEquals("[1]", difference.getPath());
+        assertEquals("no matching element", difference.getDescription());
+
+        arrayB[1] = new HashSet<String>(Arrays.asList("a", "b"));
+        ((Node) nodeB.next).bytes[0] = 3;
+        difference = compareUtil.compare(arrayA, arrayB).getDifferences().get(0);
+        assertEquals("[0].next.bytes", difference.getPath());
+        assertTrue(difference.toString(), difference.toString().startsWith("[0].next.bytes: value"));
+    }
+
+    @Test
+    public void testCollectAllDifferences() throws Exception {
+        Node nodeA = createChain(1, 4);
+        Node nodeB = createChain(1, 4);
+        Node secondB = (Node) nodeB.next;
+        secondB.id = 7;
+        secondB.name = "other";
+        ((Node) secondB.next).bytes[1] = 3;
+        assertEquals(1, compareUtil.compare(nodeA, nodeB).getDifferenceCount());
+
+        final List<ComparisonResult.Difference> sunk = new ArrayList<ComparisonResult.Difference>();
+        ComparisonResult result = compareUtil.compareAll(nodeA, nodeB, new DifferenceSink() {
+            public void addDifference(ComparisonResult.Difference difference) {
+                sunk.add(difference);
+            }
+        });
+        assertFalse(result.isSame());
+        assertEquals(3, result.getDifferenceCount());
+        assertEquals(result.getDifferences(), sunk);
+        Set<String> paths = new HashSet<String>();
+        for( ComparisonResult.Difference difference : sunk ) {
+            paths.add(difference.getPath());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("next.id", "next.name", "next.next.bytes")), paths);
+
+        compareUtil.setMaxCollectedDifferences(2);
+        result = compareUtil.compareAll(nodeA, nodeB);
+        assertEquals(2, result.getDifferenceCount());
+        assertTrue(result.isTruncated());
+        compareUtil.setMaxCollectedDifferences(CompareViaReflectionUtil.DEFAULT_MAX_COLLECTED_DIFFERENCES);
+
+        // the set is reported once, the shared node is compared (and reported) once
+        Node sharedA = new Node(1, "shared", Color.RED);
+        Node sharedB = new Node(2, "shared", Color.RED);
+        Object [] arrayA = { new HashSet<String>(Arrays.asList("a", "b", "c")), sharedA, sharedA, "s" };
+        Object [] arrayB = { new HashSet<String>(Arrays.asList("a", "x", "y")), sharedB, sharedB, "t" };
+        result = compareUtil.compareAll(arrayA, arrayB);
+        assertEquals(result.toString(), 3, result.getDifferenceCount());
+        assertEquals("[0]", result.getDifferences().get(0).getPath());
+        assertEquals("[1].id", result.getDifferences().get(1).getPath());
+        assertEquals("[3]", result.getDifferences().get(2).getPath());
+        assertFalse(result.isTruncated());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            compareUtil.setParallelExecutor(executor);
+            compareUtil.setParallelSplitThreshold(2);
+            Wide wideB = new Wide();
+            wideB.f1 = "x";
+            wideB.f6 = "y";
+            assertEquals(2, compareUtil.compareAll(new Wide(), wideB).getDifferenceCount());
+        }
+        finally {
+            compareUtil.setParallelExecutor(null);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testComparisonMemo() {
+        ComparisonMemo memo = new ComparisonMemo();
+        compareUtil.setComparisonMemo(memo);
+        assertTrue(compareUtil.compareInstances(createList(1, 3), createList(1, 3)));
+        assertEquals(3, memo.size());
+        assertEquals(0, memo.getHits());
+
+        // equal object graphs made of other instances (as unmarshalled snapshots are) are skipped
+        List<Object> listA = new ArrayList<Object>(Arrays.asList(createList(1, 3), "a"));
+        List<Object> listB = new ArrayList<Object>(Arrays.asList(createList(1, 3), "a"));
+        assertTrue(compareUtil.compareInstances(listA, listB));
+        assertEquals(1, memo.getHits());
+
+        // the unchanged subtrees of object graphs that are different are skipped as well (when collecting all differences)
+        Node modified = createList(1, 3);
+        modified.name = "other";
+        ComparisonResult result = compareUtil.compareAll(createList(1, 3), modified);
+        assertEquals(1, result.getDifferenceCount());
+        assertEquals("name", result.getDifferences().get(0).getPath());
+        assertEquals(2, memo.getHits());
+        modified = createList(1, 3);
+        ((Node) ((Node) modified.next).next).name = "other";
+        result = compareUtil.compareAll(createList(1, 3), modified);
+        assertEquals(1, result.getDifferenceCount());
+        assertTrue(result.toString(), result.getDifferences().get(0).getPath().endsWith("next.next.name"));
+
+        // cycles are always compared
+        memo.clear();
+        assertTrue(compareUtil.compareInstances(createChain(1, 3), createChain(1, 3)));
+        assertEquals(0, memo.size());
+
+        // objects that refer to objects compared by a comparer, or to classes, are always compared
+        compareUtil.registerClassComparer(Wide.class, new ClassComparer() {
+            @Override
+            public boolean compare(Object objA, Object objB) {
+                return ((Wide) objA).f0.equals(((Wide) objB).f0);
+            }
+        });
+        assertEquals("Registering a comparer clears the memo", 0, memo.size());
+        Node nodeA = new Node(1, "node", Color.RED);
+        Node nodeB = new Node(1, "node", Color.RED);
+        nodeA.next = new Wide();
+        nodeB.next = new Wide();
+        assertTrue(compareUtil.compareInstances(nodeA, nodeB));
+        ((Wide) nodeB.next).f0 = "other";
+        assertFalse(compareUtil.compareInstances(nodeA, nodeB));
+        nodeA.next = String.class;
+        nodeB.next = String.class;
+        assertTrue(compareUtil.compareInstances(nodeA, nodeB));
+        nodeB.next = Integer.class;
+        assertFalse(compareUtil.compareInstances(nodeA, nodeB));
+        assertEquals(0, memo.size());
+
+        memo = new ComparisonMemo(2);
+        compareUtil.setComparisonMemo(memo);
+        assertTrue(compareUtil.compareInstances(createList(1, 5), createList(1, 5)));
+        assertEquals(2, memo.size());
+
+        // no recursion
+        assertTrue(compareUtil.compareInstances(createList(0, 200000), createList(0, 200000)));
+        assertTrue(compareUtil.compareInstances(createChain(0, 200000), createChain(0, 200000)));
+    }
+
+    /**
+     * @return A list of nodes, of which the last node refers to nothing.
+     */
+    private static Node createList(int id, int length) {
+        Node first = new Node(id, "node-" + id, Color.RED);
+        Node node = first;
+        for( int i = 1; i < length; ++i ) {
+            Node next = new Node(id + i, "node-" + (id + i), Color.BLUE);
+            node.next = next;
+            node = next;
+        }
+        return first;
+    }
+
+    /**
+     * @return A chain of nodes, of which the last node refers back to the first node.
+     */
+    private static Node createChain(int id, int length) {
+        Node first = new Node(id, "node-" + id, Color.RED);
+        Node node = first;
+        for( int i = 1; i < length; ++i ) {
+            Node next = new Node(id + i, "node-" + (id + i), Color.BLUE);
+            node.next = next;
+            node = next;
+        }
+        node.next = first;
+        return first;
+    }
+
+    enum Color {
+        RED, BLUE;
+    }
+
+    static class BaseNode {
+        String baseName = "base";
+    }
+
+    static class Node extends BaseNode {
+        int id;
+        String name;
+        byte [] bytes = { 1, 2 };
+        Color color;
+        Object next;
+        transient String cache;
+
+        Node(int id, String name, Color color) {
+            this.id = id;
+            this.name = name;
+            this.color = color;
+        }
+    }
+
+    static class Wide {
+        Object f0 = "0", f1 = "1", f2 = "2", f3 = "3", f4 = "4", f5 = "5", f6 = "6", f7 = "7";
+    }
+
+    static class Primitives {
+        boolean z = true;
+        byte b = 1;
+        char c = 'c';
+        short s = 2;
+        int i = 3;
+        long l = 4l;
+        float f = 5.0f;
+        double d = 6.0d;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+
+import org.junit.Test;
+
+public class ComparisonMemoTest {
+
+    @Test
+    public void testPairsAreConfirmedByClassAndHash() {
+        ComparisonMemo memo = new ComparisonMemo();
+        memo.putEqual("a", 1L, "b", 1L);
+        assertTrue(memo.isEqual("c", 1L, "d", 1L));
+        assertFalse("Other class", memo.isEqual(new StringBuilder(), 1L, new StringBuilder(), 1L));
+        assertFalse("Other hash", memo.isEqual("c", 1L, "d", 2L));
+        assertFalse("No hash", memo.isEqual("c", 1L, "d", null));
+        assertEquals(1, memo.getHits());
+        assertEquals(3, memo.getMisses());
+
+        // pairs with different hashes or classes can not be equal
+        memo.putEqual("a", 2L, "b", 3L);
+        memo.putEqual("a", 4L, new StringBuilder(), 4L);
+        memo.putEqual("a", null, "b", null);
+        assertEquals(1, memo.size());
+    }
+
+    @Test
+    public void testPairsOfCollectedClassesArePurged() throws Exception {
+        ComparisonMemo memo = new ComparisonMemo();
+        putEqualInstancesOfIsolatedClass(memo);
+        assertEquals(1, memo.size());
+        for( int i = 0; i < 20 && memo.size() > 0; ++i ) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertEquals(0, memo.size());
+    }
+
+    private static void putEqualInstancesOfIsolatedClass(ComparisonMemo memo) throws Exception {
+        Class<?> isolatedClass = new IsolatingClassLoader().defineIsolated(Isolated.class.getName());
+        assertFalse(isolatedClass == Isolated.class);
+        Constructor<?> constructor = isolatedClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        memo.putEqual(constructor.newInstance(), 1L, constructor.newInstance(), 1L);
+    }
+
+    /**
+     * Loads a class in its own class loader, so that it can be garbage collected. 
+     */
+    private static class IsolatingClassLoader extends ClassLoader {
+
+        IsolatingClassLoader() {
+            super(ComparisonMemoTest.class.getClassLoader());
+        }
+
+        Class<?> defineIsolated(String name) throws Exception {
+            InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte [] buffer = new byte[4096];
+                int read;
+                while( (read = in.read(buffer)) > 0 ) {
+                    out.write(buffer, 0, read);
+                }
+                byte [] bytes = out.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+
+    static class Isolated {
+        int value = 1;
+    }
+
+}
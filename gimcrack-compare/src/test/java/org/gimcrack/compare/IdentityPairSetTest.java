@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IdentityPairSetTest {
+
+    @Test
+    public void testAddContainsRemove() {
+        IdentityPairSet set = new IdentityPairSet();
+        Object [] objects = new Object[500];
+        for( int i = 0; i < objects.length; ++i ) {
+            objects[i] = new Object();
+            assertTrue(set.add(objects[i], objects[0]));
+        }
+        assertEquals(500, set.size());
+        assertFalse(set.add(objects[7], objects[0]));
+        for( int i = 0; i < objects.length; i += 2 ) {
+            assertTrue(set.remove(objects[i], objects[0]));
+        }
+        assertFalse(set.remove(objects[0], objects[0]));
+        assertEquals(250, set.size());
+        for( int i = 0; i < objects.length; ++i ) {
+            assertEquals(i % 2 == 1, set.contains(objects[i], objects[0]));
+        }
+    }
+
+    @Test
+    public void testPairsAreIdentityBased() {
+        IdentityPairSet set = new IdentityPairSet();
+        String a = new String("a");
+        String b = new String("b");
+        assertTrue(set.add(a, b));
+        assertFalse("The order of the pair matters", set.contains(b, a));
+        assertFalse("Equal objects are not the same pair", set.contains(new String("a"), b));
+        assertTrue(set.add(a, new String("b")));
+        assertTrue(set.add(a, null));
+        assertTrue(set.contains(a, null));
+        assertEquals(3, set.size());
+    }
+
+    @Test
+    public void testClearAndReuse() {
+        IdentityPairSet set = IdentityPairSet.acquire();
+        Object objA = new Object();
+        Object objB = new Object();
+        set.add(objA, objB);
+        set.release();
+
+        IdentityPairSet reused = IdentityPairSet.acquire();
+        assertSame(set, reused);
+        assertEquals(0, reused.size());
+        assertFalse(reused.contains(objA, objB));
+        assertNotSame("The spare set is only handed out once", reused, IdentityPairSet.acquire());
+        reused.release();
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.compare;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProtobufWireComparerTest {
+
+    // header: version (1) { major (1): 6, minor (2): 0 }, payload (10) { id (2): 42, process id (3): "proc" }
+    private final static byte [] VERSION = { 0x0a, 0x04, 0x08, 0x06, 0x10, 0x00 };
+    private final static byte [] PAYLOAD = { 0x52, 0x08, 0x10, 0x2a, 0x1a, 0x04, 'p', 'r', 'o', 'c' };
+    private final static byte [] HEADER = concat(VERSION, PAYLOAD);
+
+    private ProtobufWireComparer comparer;
+
+    @Before
+    public void before() {
+        comparer = new ProtobufWireComparer();
+    }
+
+    @Test
+    public void testNestedMessages() {
+        assertTrue(comparer.compare(HEADER, concat(VERSION, PAYLOAD)).isSame());
+        assertTrue("Field order does not matter", comparer.compare(HEADER, concat(PAYLOAD, VERSION)).isSame());
+
+        ComparisonResult result = comparer.compare(HEADER, concat(VERSION, otherPayload(3, (byte) 0x2b)));
+        assertFalse(result.isSame());
+        assertEquals(result.toString(), "10.2", result.getDifferences().get(0).getPath());
+        assertEquals(42l, result.getDifferences().get(0).getValueA());
+        assertEquals(43l, result.getDifferences().get(0).getValueB());
+
+        // "proc" and "proX" are not valid messages: compared as bytes
+        result = comparer.compare(HEADER, concat(VERSION, otherPayload(9, (byte) 'X')));
+        assertEquals(result.toString(), "10.3", result.getDifferences().get(0).getPath());
+        assertEquals("proc", new String((byte []) result.getDifferences().get(0).getValueA()));
+
+        result = comparer.compare(HEADER, PAYLOAD);
+        assertEquals(1, result.getDifferenceCount());
+        assertEquals("1", result.getDifferences().get(0).getPath());
+        assertEquals("field is missing in B", result.getDifferences().get(0).getDescription());
+    }
+
+    @Test
+    public void testBytesAndMessageFields() {
+        byte [] otherHeader = concat(VERSION, otherPayload(3, (byte) 0x2b));
+
+        comparer.addBytesField("10");
+        ComparisonResult result = comparer.compare(HEADER, otherHeader);
+        assertEquals(1, result.getDifferenceCount());
+        assertEquals("10", result.getDifferences().get(0).getPath());
+
+        comparer = new ProtobufWireComparer();
+        comparer.setDetectNestedMessages(false);
+        result = comparer.compare(HEADER, otherHeader);
+        assertEquals("10", result.getDifferences().get(0).getPath());
+
+        comparer.addMessageField("10");
+        result = comparer.compare(HEADER, otherHeader);
+        assertEquals("10.2", result.getDifferences().get(0).getPath());
+    }
+
+    @Test
+    public void testRepeatedFields() {
+        // field 5 (varint): 1, 2, 3
+        byte [] repeated = { 0x28, 0x01, 0x28, 0x02, 0x28, 0x03 };
+        assertTrue(comparer.compare(repeated, repeated.clone()).isSame());
+
+        ComparisonResult result = comparer.compare(repeated, Arrays.copyOf(repeated, 4));
+        assertEquals(1, result.getDifferenceCount());
+        assertEquals("5[2]", result.getDifferences().get(0).getPath());
+        assertEquals("field is missing in B", result.getDifferences().get(0).getDescription());
+
+        result = comparer.compare(Arrays.copyOf(repeated, 4), repeated);
+        assertEquals("field is missing in A", result.getDifferences().get(0).getDescription());
+
+        byte [] other = repeated.clone();
+        other[3] = 0x07;
+        result = comparer.compare(repeated, other);
+        assertEquals("5[1]", result.getDifferences().get(0).getPath());
+
+        // repeated fields are compared in order
+        byte [] reordered = { 0x28, 0x02, 0x28, 0x01, 0x28, 0x03 };
+        assertEquals(2, comparer.compare(repeated, reordered).getDifferenceCount());
+
+        // a repeated message field within a message
+        assertEquals("1[1]", comparer.compare(HEADER, concat(HEADER, VERSION)).getDifferences().get(0).getPath());
+    }
+
+    @Test
+    public void testWireTypesAndFixedValues() {
+        // field 1: varint 1, or fixed32 1
+        byte [] varint = { 0x08, 0x01 };
+        byte [] fixed32 = { 0x0d, 0x01, 0x00, 0x00, 0x00 };
+        assertEquals("wire types differ", comparer.compare(varint, fixed32).getDifferences().get(0).getDescription());
+
+        // field 2: fixed64
+        byte [] fixed64 = { 0x11, 1, 2, 3, 4, 5, 6, 7, 8 };
+        assertTrue(comparer.compare(fixed64, fixed64.clone()).isSame());
+        byte [] otherFixed64 = fixed64.clone();
+        otherFixed64[8] = 9;
+        ComparisonResult result = comparer.compare(fixed64, otherFixed64);
+        assertEquals("2", result.getDifferences().get(0).getPath());
+        assertEquals(0x0807060504030201l, result.getDifferences().get(0).getValueA());
+    }
+
+    @Test
+    public void testMalformedInput() {
+        assertTrue(comparer.compare(null, null).isSame());
+        assertEquals("one of the messages is null", comparer.compare(HEADER, null).getDifferences().get(0).getDescription());
+
+        byte [][] malformed = { 
+                { 0x0a, 0x7f },       // length beyond the end of the message
+                { 0x08, (byte) 0x80 }, // truncated varint
+                { 0x0d, 0x01, 0x00 }, // truncated fixed32
+                { 0x00, 0x01 },       // field number 0
+                { 0x0b, 0x0c },       // group
+                { 0x0f, 0x01 },       // invalid wire type
+        };
+        for( int i = 0; i < malformed.length; ++i ) {
+            ComparisonResult result = comparer.compare(HEADER, malformed[i]);
+            assertFalse(result.isSame());
+            assertEquals("[" + i + "]", "not a valid protobuf message", result.getDifferences().get(0).getDescription());
+            assertTrue("Identical data is the same, even if it's not a valid message", 
+                    comparer.compare(malformed[i], malformed[i].clone()).isSame());
+        }
+
+        // a nested field that is not a valid message is compared as bytes
+        byte [] truncatedPayload = { 0x52, 0x02, 0x10, (byte) 0x80 };
+        byte [] otherTruncatedPayload = { 0x52, 0x02, 0x10, (byte) 0x81 };
+        assertEquals("10", comparer.compare(truncatedPayload, otherTruncatedPayload).getDifferences().get(0).getPath());
+    }
+
+    @Test
+    public void testMaxDifferences() {
+        // fields 1 to 5 (varint): 0, or 1
+        byte [] zeros = { 0x08, 0, 0x10, 0, 0x18, 0, 0x20, 0, 0x28, 0 };
+        byte [] ones = { 0x08, 1, 0x10, 1, 0x18, 1, 0x20, 1, 0x28, 1 };
+        assertEquals(5, comparer.compare(zeros, ones).getDifferenceCount());
+
+        comparer.setMaxReportedDifferences(2);
+        ComparisonResult result = comparer.compare(zeros, ones);
+        assertEquals(5, result.getDifferenceCount());
+        assertEquals(2, result.getDifferences().size());
+
+        comparer.setMaxCollectedDifferences(3);
+        result = comparer.compare(zeros, ones);
+        assertEquals(3, result.getDifferenceCount());
+        assertTrue(result.isTruncated());
+    }
+
+    private static byte [] otherPayload(int index, byte value) {
+        byte [] payload = PAYLOAD.clone();
+        payload[index] = value;
+        return payload;
+    }
+
+    private static byte [] concat(byte [] first, byte [] second) {
+        byte [] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.persistence.EntityManager;
+
+/**
+ * A {@link PayloadCodec} that compresses data with the deflate algorithm ({@link Deflater}). 
+ * </p>
+ * A preset dictionary can be given: data that resembles the dictionary (for example, snapshots of the same 
+ * kind of session, when the dictionary consists of parts of existing snapshots) is compressed much better, 
+ * especially small snapshots. Since the dictionary is needed to decode the data, a codec with a dictionary 
+ * has to be registered under a name that identifies that dictionary, and the dictionary may never change.
+ * A dictionary can be built from the payloads that have already been stored with 
+ * {@link #createDictionary(EntityManager, int, int)}: it should then be stored (for example, as a test resource)
+ * instead of being built again.
+ */
+public class DeflatePayloadCodec implements PayloadCodec {
+
+    public final static String NAME = "deflate";
+    /**
+     * The name of the (registered) codec that compresses with {@link Deflater#BEST_SPEED}.
+     */
+    public final static String FAST_NAME = "deflate-fast";
+    
+    /**
+     * The maximum useful size of a dictionary: the size of the deflate window.
+     */
+    public final static int MAX_DICTIONARY_SIZE = 32 * 1024;
+    
+    private final static int BUFFER_SIZE = 8 * 1024;
+
+    private final String name;
+    private final int level;
+    private final byte [] dictionary;
+
+    public DeflatePayloadCodec() {
+        this(NAME, Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /**
+     * @param name The name of this codec.
+     * @param level The compression level (see {@link Deflater#setLevel(int)}): this doesn't influence decoding.
+     * @param dictionary The preset dictionary, or null.
+     */
+    public DeflatePayloadCodec(String name, int level, byte [] dictionary) {
+        this.name = name;
+        this.level = level;
+        this.dictionary = dictionary != null ? dictionary.clone() : null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Builds a dictionary from (a sample of) the payloads that have already been stored (see {@link MarshalledPayload}):
+     * the data of up to the given number of payloads is loaded and decoded.
+     * 
+     * @param maxPayloads The maximum number of payloads used.
+     * @param maxSize The maximum size of the dictionary (at most {@link #MAX_DICTIONARY_SIZE} is useful).
+     * @return The dictionary (see {@link #createDictionary(List, int)}).
+     */
+    public static byte [] createDictionary(EntityManager em, int maxPayloads, int maxSize) {
+        List<?> payloads = em.createQuery("SELECT p FROM MarshalledPayload p ORDER BY p.digest")
+                .setMaxResults(maxPayloads)
+                .getResultList();
+        List<byte []> samples = new ArrayList<byte[]>(payloads.size());
+        for( Object payloadObject : payloads ) { 
+            MarshalledPayload payload = (MarshalledPayload) payloadObject;
+            samples.add(PayloadCodecs.getCodec(payload.codec).decode(payload.data));
+        }
+        em.clear();
+        return createDictionary(samples, maxSize);
+    }
+
+    /**
+     * Builds a dictionary from the given sample data: every sample contributes (at most) an equal share of the
+     * dictionary, taken from the start of the sample, where snapshots of the same kind are most alike. 
+     * 
+     * @param samples The (decoded) sample data.
+     * @param maxSize The maximum size of the dictionary (at most {@link #MAX_DICTIONARY_SIZE} is useful).
+     * @return The dictionary, which is empty if there are no samples.
+     */
+    public static byte [] createDictionary(List<byte []> samples, int maxSize) {
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(maxSize);
+        int remainingSamples = samples.size();
+        for( byte [] sample : samples ) { 
+            int share = (maxSize - dictionary.size()) / remainingSamples--;
+            dictionary.write(sample, 0, Math.min(share, sample.length));
+        }
+        return dictionary.toByteArray();
+    }
+
+    public byte[] encode(byte[] data) {
+        Deflater deflater = new Deflater(level);
+        try { 
+            if( dictionary != null ) { 
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte [] buffer = new byte[BUFFER_SIZE];
+            while( ! deflater.finished() ) { 
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        }
+        finally { 
+            deflater.end();
+        }
+    }
+
+    public byte[] decode(byte[] encodedData) {
+        Inflater inflater = new Inflater();
+        try { 
+            inflater.setInput(encodedData);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(encodedData.length * 4);
+            byte [] buffer = new byte[BUFFER_SIZE];
+            while( ! inflater.finished() ) { 
+                int length = inflater.inflate(buffer);
+                if( length == 0 && ! inflater.finished() ) { 
+                    if( inflater.needsDictionary() && dictionary != null ) { 
+                        try { 
+                            inflater.setDictionary(dictionary);
+                        }
+                        catch( IllegalArgumentException iae ) { 
+                            throw new IllegalStateException("Unable to decode " + name + " data: the data needs another dictionary.", iae);
+                        }
+                    }
+                    else if( inflater.needsInput() || inflater.needsDictionary() ) { 
+                        throw new IllegalStateException("Unable to decode " + name + " data: the data is incomplete or needs a dictionary.");
+                    }
+                }
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        }
+        catch( DataFormatException dfe ) { 
+            throw new IllegalStateException("Unable to decode " + name + " data: " + dfe.getMessage(), dfe);
+        }
+        finally { 
+            inflater.end();
+        }
+    }
+
+}
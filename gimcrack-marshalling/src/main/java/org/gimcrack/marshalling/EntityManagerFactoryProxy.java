@@ -41,6 +41,7 @@ public class EntityManagerFactoryProxy implements InvocationHandler {
     private EntityManager em;
 
     private ObjectSpecificMarshallingActions objectSpecificMarshallingActions;
+    private MarshalledDataWriter writer;
 
     /**
      * This method creates a proxy for either a {@link EntityManagerFactory} or a {@link EntityManager} instance.
@@ -49,9 +50,22 @@ public class EntityManagerFactoryProxy implements InvocationHandler {
      * @return Object a proxy instance of the given object.
      */
     static Object newInstance(Object obj, ObjectSpecificMarshallingActions marshallingActions) {
+        return newInstance(obj, marshallingActions, null);
+    }
+
+    /**
+     * This method creates a proxy for either a {@link EntityManagerFactory} or a {@link EntityManager} instance,
+     * that writes the snapshots of marshalled data in the background.
+     * 
+     * @param obj The original instance for which a proxy will be made.
+     * @param writer The writer that persists the snapshots (see {@link MarshalledDataWriter}), or null
+     * to persist the snapshots in the transaction in which the marshalled objects are persisted.
+     * @return Object a proxy instance of the given object.
+     */
+    static Object newInstance(Object obj, ObjectSpecificMarshallingActions marshallingActions, MarshalledDataWriter writer) {
         if (obj instanceof EntityManagerFactory || obj instanceof EntityManager) {
             return Proxy.newProxyInstance(obj.getClass().getClassLoader(), getAllInterfaces(obj), new EntityManagerFactoryProxy(
-                    obj, marshallingActions));
+                    obj, marshallingActions, writer));
         } else {
             throw new UnsupportedOperationException("This proxy is only for " + EntityManagerFactory.class.getSimpleName()
                     + " and " + EntityManager.class.getSimpleName() + " instances.");
@@ -87,7 +101,7 @@ public class EntityManagerFactoryProxy implements InvocationHandler {
      * 
      * @param obj The object being proxied.
      */
-    private EntityManagerFactoryProxy(Object obj, ObjectSpecificMarshallingActions marshallingActions) {
+    private EntityManagerFactoryProxy(Object obj, ObjectSpecificMarshallingActions marshallingActions, MarshalledDataWriter writer) {
         if (obj instanceof EntityManagerFactory) {
             this.emf = (EntityManagerFactory) obj;
         } else if (obj instanceof EntityManager) {
@@ -97,6 +111,7 @@ public class EntityManagerFactoryProxy implements InvocationHandler {
                     + " and " + EntityManager.class.getSimpleName() + " instances.");
         }
         this.objectSpecificMarshallingActions = marshallingActions;
+        this.writer = writer;
     }
 
     private synchronized void lazyInitializeStateMaps(Object[] args) {
@@ -183,7 +198,7 @@ public class EntityManagerFactoryProxy implements InvocationHandler {
             message = message.substring(0, message.lastIndexOf(",")) + ") not supported!";
             throw new UnsupportedOperationException(message);
         }
-        return newInstance(realEm, objectSpecificMarshallingActions);
+        return newInstance(realEm, objectSpecificMarshallingActions, writer);
     }
 
     /**
@@ -198,7 +213,7 @@ public class EntityManagerFactoryProxy implements InvocationHandler {
         if (byteArray != null) {
             MarshalledData marshalledData = new MarshalledData(testMethodName, toMarshallClassInstance);
             objectSpecificMarshallingActions.initializeMarshalledData(marshalledData, toMarshallClassInstance);
-            em.persist(marshalledData);
+            store(marshalledData);
             logger.trace("-.-: " + marshalledData);
         }
     }
@@ -207,7 +222,7 @@ public class EntityManagerFactoryProxy implements InvocationHandler {
         if (objectSpecificMarshallingActions.updateMarshalledObjectData(updatedObject, testMethodName)) {
             MarshalledData marshalledData = new MarshalledData(testMethodName, updatedObject);
             objectSpecificMarshallingActions.initializeMarshalledData(marshalledData, updatedObject);
-            em.persist(marshalledData);
+            store(marshalledData);
             logger.trace("-!-: " + marshalledData);
         }
     }
@@ -237,9 +252,25 @@ public class EntityManagerFactoryProxy implements InvocationHandler {
         Set<MarshalledData> newMarshalledData = objectSpecificMarshallingActions.updateManagedObjects(testMethodName);
         
         for( MarshalledData marshalledData : newMarshalledData ) { 
-            em.persist(marshalledData);
+            if (writer != null) {
+                writer.writeOnCommit(marshalledData);
+            } else {
+                MarshalledData.persist(em, marshalledData);
+            }
             logger.trace("-!-: " + marshalledData);
         }
     }
 
+    /**
+     * Persists the snapshot, or hands it to the writer if snapshots are written in the background
+     * (once the transaction in which the marshalled object is persisted has been committed).
+     */
+    private void store(MarshalledData marshalledData) {
+        if (writer != null) {
+            writer.writeOnCommit(marshalledData);
+        } else {
+            MarshalledData.persist(em, marshalledData);
+        }
+    }
+
 }
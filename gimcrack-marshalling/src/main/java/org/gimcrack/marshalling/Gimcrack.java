@@ -15,6 +15,7 @@ package org.gimcrack.marshalling;
 
 import org.gimcrack.compare.ClassComparer;
 import org.gimcrack.compare.CompareViaReflectionUtil;
+import org.gimcrack.compare.ComparisonResult;
 import org.gimcrack.marshalling.user.MarshalledObjectSpecificActions;
 
 
@@ -35,9 +36,21 @@ public abstract class Gimcrack {
         return compareUtil.compareInstances(objA, objB);
     }
     
+    public ComparisonResult compare(Object objA, Object objB) { 
+        return compareUtil.compare(objA, objB);
+    }
+    
+    public ComparisonResult compareAll(Object objA, Object objB) { 
+        return compareUtil.compareAll(objA, objB);
+    }
+    
     public boolean compareAtomicPrimitives(Object objA, Object objB) {
         return compareUtil.compareAtomicPrimitives(objA, objB);
     }
+
+    public long structuralHash(Object obj) { 
+        return compareUtil.structuralHash(obj);
+    }
     
 
     public Object unmarshallObject(MarshalledData marshalledData) throws Exception {
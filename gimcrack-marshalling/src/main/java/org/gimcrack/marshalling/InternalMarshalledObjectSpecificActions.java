@@ -19,6 +19,8 @@ import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
+import org.gimcrack.compare.ProtobufWireComparer;
+
 public abstract class InternalMarshalledObjectSpecificActions<MARSHALLED_TYPE, INSTANCE> { 
     
     public abstract Class<MARSHALLED_TYPE> getMarshalledObjectClass();
@@ -29,18 +31,53 @@ public abstract class InternalMarshalledObjectSpecificActions<MARSHALLED_TYPE, I
 
     public abstract Long getMarshalledObjectIndex(MARSHALLED_TYPE toMarshallClassInstance);
 
+    /**
+     * Base and test marshalled data that are byte-identical are not unmarshalled and compared, because they're
+     * known to be equal. This method can be overridden in order to remove the parts of the binary data that don't
+     * influence the unmarshalled object (timestamps, generated ids, etc.), so that more pairs can be skipped: 
+     * the base and test data are then also considered equal if their canonicalized binary data is identical.
+     * </p>
+     * The default implementation returns the given binary data.
+     * 
+     * @param binaryData The (marshalled) binary data: this array should not be modified.
+     * @return The canonicalized binary data
+     */
+    public byte[] canonicalizeBinaryData(byte[] binaryData) { 
+        return binaryData;
+    }
+
+    /**
+     * If the binary data of this type is a protobuf message and the unmarshalled objects don't need to be 
+     * compared semantically, this method can be overridden to return a {@link ProtobufWireComparer}: the base and 
+     * test data are then compared field by field in the wire format, instead of being unmarshalled and compared.
+     * </p>
+     * The default implementation returns null: the data is unmarshalled and the objects are compared.
+     * 
+     * @return The comparer used to compare the (canonicalized) binary data, or null.
+     */
+    public ProtobufWireComparer getWireFormatComparer() { 
+        return null;
+    }
+
     // ensure that Hibernate does not proxy the Map implementation objects
     private ThreadLocal<Map<MARSHALLED_TYPE, byte[]>> managedMarshalledObjectDataMap;
     private ThreadLocal<Map<Long, byte[]>> marshalledObjectInstanceIdDataMap;
+    // the managed objects that have been persisted, merged or found since the last commit
+    private ThreadLocal<Set<MARSHALLED_TYPE>> touchedMarshalledObjects;
+    
+    private volatile boolean fullScanOnCommit = true;
+    private volatile boolean digestChangeDetection = false;
 
     void lazyInitializeMaps() {
         if (managedMarshalledObjectDataMap == null) {
             managedMarshalledObjectDataMap = new ThreadLocal<Map<MARSHALLED_TYPE, byte[]>>();
             marshalledObjectInstanceIdDataMap = new ThreadLocal<Map<Long, byte[]>>();
+            touchedMarshalledObjects = new ThreadLocal<Set<MARSHALLED_TYPE>>();
         }
         if (managedMarshalledObjectDataMap.get() == null) {
             managedMarshalledObjectDataMap.set(new HashMap<MARSHALLED_TYPE, byte[]>());
             marshalledObjectInstanceIdDataMap.set(new HashMap<Long, byte[]>());
+            touchedMarshalledObjects.set(new LinkedHashSet<MARSHALLED_TYPE>());
         }
     }
 
@@ -49,23 +86,93 @@ public abstract class InternalMarshalledObjectSpecificActions<MARSHALLED_TYPE, I
         marshalledData.marshalledObjectId = getMarshalledObjectIndex(marshalledClassInstance);
     }
 
+    /**
+     * By default, all managed objects are checked for changes to their marshalled data when a transaction is committed
+     * (see {@link #updateManagedObjects(String)}). If the marshalled objects are only changed in transactions in which 
+     * they are persisted, merged or found via the proxied entity manager, the check can be limited to the managed 
+     * objects that have been persisted, merged or found since the last commit. Objects that stay managed by an entity 
+     * manager that is used in multiple transactions can be changed without being touched again: their changes are 
+     * missed when only the touched objects are checked. 
+     * 
+     * @param fullScan Whether or not all managed objects are checked for changes when a transaction is committed.
+     */
+    public void setFullScanOnCommit(boolean fullScan) { 
+        this.fullScanOnCommit = fullScan;
+    }
+
+    /**
+     * By default, a copy of the marshalled data of every managed object (and of the most recently saved snapshot of
+     * every object) is kept during the whole test, in order to detect whether the data has changed. With digest change 
+     * detection, only the (SHA-1) digest and the length of the data are kept: this uses a fixed amount of memory per
+     * object, at the cost of computing a digest every time the data is checked. The full data is then only kept by 
+     * the snapshots that still have to be written.
+     * </p>
+     * This should be set before any objects are persisted or found: data retained in one mode is not recognized in the other.
+     * 
+     * @param digestOnly Whether or not only the digests of the marshalled data are kept for change detection.
+     */
+    public void setDigestChangeDetection(boolean digestOnly) { 
+        this.digestChangeDetection = digestOnly;
+    }
+
+    /**
+     * @return The data that is kept in order to detect changes to the given marshalled data: 
+     * a copy of the data, or its digest and length.
+     */
+    private byte[] retainedData(byte[] binaryData) { 
+        if( binaryData == null ) { 
+            return null;
+        }
+        return digestChangeDetection ? fingerprint(binaryData) : binaryData.clone();
+    }
+
+    /**
+     * @return Whether the retained data (see {@link #retainedData(byte[])}) is the same as the given marshalled data.
+     */
+    private boolean isUnchanged(byte[] retainedData, byte[] binaryData) { 
+        if( retainedData == null || binaryData == null ) { 
+            return retainedData == binaryData;
+        }
+        if( digestChangeDetection ) { 
+            return Arrays.equals(retainedData, fingerprint(binaryData));
+        }
+        return Arrays.equals(retainedData, binaryData);
+    }
+
+    /**
+     * @return The SHA-1 digest of the data (see {@link MarshalledPayload#sha1(byte[])}), followed by the length 
+     * of the data (4 bytes).
+     */
+    private static byte[] fingerprint(byte[] binaryData) { 
+        byte [] digest = MarshalledPayload.sha1(binaryData);
+        byte [] fingerprint = Arrays.copyOf(digest, digest.length + 4);
+        int length = binaryData.length;
+        for( int i = 0; i < 4; ++i ) { 
+            fingerprint[digest.length + i] = (byte) (length >>> (24 - 8 * i));
+        }
+        return fingerprint;
+    }
+
     byte[] getAndSaveBinaryData(MARSHALLED_TYPE toMarshallClassInstance) {
         byte[] byteArray = getBinaryData(toMarshallClassInstance);
-        managedMarshalledObjectDataMap.get().put(toMarshallClassInstance, byteArray != null ? byteArray.clone() : null);
+        touchedMarshalledObjects.get().add(toMarshallClassInstance);
+        byte[] retainedData = retainedData(byteArray);
+        managedMarshalledObjectDataMap.get().put(toMarshallClassInstance, retainedData);
 
         Long id = getMarshalledObjectIndex(toMarshallClassInstance);
-        marshalledObjectInstanceIdDataMap.get().put(id, byteArray);
+        marshalledObjectInstanceIdDataMap.get().put(id, retainedData);
 
         return byteArray;
     }
 
     boolean updateMarshalledObjectData(MARSHALLED_TYPE updatedObject, String testMethodName) {
+        touchedMarshalledObjects.get().add(updatedObject);
         Map<MARSHALLED_TYPE, byte[]> updatedObjectsMap = new HashMap<MARSHALLED_TYPE, byte[]>();
         byte [] origMarshalledBytes = managedMarshalledObjectDataMap.get().get(updatedObject); 
 
         byte [] updatedBinaryData = getBinaryData(updatedObject);
-        if( ! Arrays.equals(origMarshalledBytes, updatedBinaryData) ) { 
-            updatedObjectsMap.put(updatedObject, updatedBinaryData );
+        if( ! isUnchanged(origMarshalledBytes, updatedBinaryData) ) { 
+            updatedObjectsMap.put(updatedObject, retainedData(updatedBinaryData));
 
             // Retrieve the most recent marshalled data for this object that was saved in this test method
             byte [] thisMarshalledData = marshalledObjectInstanceIdDataMap.get().get(getMarshalledObjectIndex(updatedObject));
@@ -73,7 +180,7 @@ public abstract class InternalMarshalledObjectSpecificActions<MARSHALLED_TYPE, I
             // ? If there has been no data persisted for this object for this test method (yet), 
             // ? Or if the most recently persisted data is NOT the same as what's now been persisted, 
             // ->  then it's "new" marshalled data, so save it in a MarshalledData object.
-            return (thisMarshalledData == null || ! Arrays.equals(thisMarshalledData, updatedBinaryData));
+            return (thisMarshalledData == null || ! isUnchanged(thisMarshalledData, updatedBinaryData));
         } else { 
             return false;
         }
@@ -81,29 +188,37 @@ public abstract class InternalMarshalledObjectSpecificActions<MARSHALLED_TYPE, I
 
     void internalInitializeMarshalledData(MarshalledData marshalledData, MARSHALLED_TYPE marshalledClassInstance) {
         initializeMarshalledData(marshalledData, marshalledClassInstance);
-        managedMarshalledObjectDataMap.get().put(marshalledClassInstance, marshalledData.byteArray);
+        managedMarshalledObjectDataMap.get().put(marshalledClassInstance, retainedData(marshalledData.byteArray));
     }
 
     void addToManagedObjects(MARSHALLED_TYPE result) {
+        touchedMarshalledObjects.get().add(result);
         byte[] data = managedMarshalledObjectDataMap.get().get(result);
         if (data == null) {
             byte[] byteArray = getBinaryData(result);
-            managedMarshalledObjectDataMap.get().put((MARSHALLED_TYPE) result, byteArray);
+            managedMarshalledObjectDataMap.get().put((MARSHALLED_TYPE) result, retainedData(byteArray));
         }
     }
 
     Set<MarshalledData> updateManagedObjects(String testMethodName) {
         Set<MarshalledData> marshalledDataToSave = new LinkedHashSet<MarshalledData>();
         Map<MARSHALLED_TYPE, byte []> updatedObjectsMap = new HashMap<MARSHALLED_TYPE, byte[]>();
-        for( MARSHALLED_TYPE sessionInfo : managedMarshalledObjectDataMap.get().keySet()) { 
+        Set<MARSHALLED_TYPE> changeCandidates = fullScanOnCommit ? 
+                managedMarshalledObjectDataMap.get().keySet() : touchedMarshalledObjects.get();
+        for( MARSHALLED_TYPE sessionInfo : changeCandidates ) { 
+            if( ! managedMarshalledObjectDataMap.get().containsKey(sessionInfo) ) { 
+                // merged, but not managed
+                continue;
+            }
             byte [] origMarshalledBytes = managedMarshalledObjectDataMap.get().get(sessionInfo); 
 
             byte [] newMarshalledBytes = getBinaryData(sessionInfo);
-            if( Arrays.equals(origMarshalledBytes, newMarshalledBytes) ) { 
+            if( isUnchanged(origMarshalledBytes, newMarshalledBytes) ) { 
                 // If the marshalled data in this object has NOT been changed, skip this object.
                 continue;
             }
-            updatedObjectsMap.put(sessionInfo, newMarshalledBytes);
+            byte [] retainedData = retainedData(newMarshalledBytes);
+            updatedObjectsMap.put(sessionInfo, retainedData);
 
             // Retrieve the most recent marshalled data for this object that was saved in this test method
             Long index = getMarshalledObjectIndex(sessionInfo);
@@ -112,15 +227,20 @@ public abstract class InternalMarshalledObjectSpecificActions<MARSHALLED_TYPE, I
             // ? If there has been no data persisted for this object for this test method (yet), 
             // ? Or if the most recently persisted data is NOT the same as what's now been persisted, 
             // ->  then it's "new" marshalled data, so save it in a MarshalledData object.
-            if( thisMarshalledData == null || ! Arrays.equals(thisMarshalledData, newMarshalledBytes) ) {
-                MarshalledData marshalledData = new MarshalledData(sessionInfo);
-                marshalledObjectInstanceIdDataMap.get().put(index, marshalledData.byteArray);
+            if( thisMarshalledData == null || ! isUnchanged(thisMarshalledData, newMarshalledBytes) ) {
+                // the snapshot keeps the full data until it's written: only the retained data is kept afterwards
+                // (the data has just been serialized: initializeMarshalledData(..) would serialize it again)
+                MarshalledData marshalledData = new MarshalledData(testMethodName, sessionInfo);
+                marshalledData.byteArray = newMarshalledBytes;
+                marshalledData.marshalledObjectId = index;
+                marshalledObjectInstanceIdDataMap.get().put(index, retainedData);
                 marshalledDataToSave.add(marshalledData);
             }
         }
         for( MARSHALLED_TYPE sessionInfo : updatedObjectsMap.keySet() ) { 
             managedMarshalledObjectDataMap.get().put(sessionInfo, updatedObjectsMap.get(sessionInfo)); 
         }
+        touchedMarshalledObjects.get().clear();
         return marshalledDataToSave;
     }
 }
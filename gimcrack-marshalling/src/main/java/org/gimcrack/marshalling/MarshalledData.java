@@ -15,21 +15,37 @@ package org.gimcrack.marshalling;
 
 import static org.gimcrack.marshalling.MarshallingTestUtil.*;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Lob;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Transient;
+import javax.transaction.TransactionManager;
 
 @Entity
-@SequenceGenerator(name="marshalledDataIdSeq", sequenceName="MARSHALLEDDATA_ID_SEQ")
+@SequenceGenerator(name="marshalledDataIdSeq", sequenceName="MARSHALLEDDATA_ID_SEQ", allocationSize=MarshalledData.ID_ALLOCATION_SIZE)
 public class MarshalledData {
 
+    /**
+     * The number of ids allocated per sequence roundtrip.
+     */
+    public final static int ID_ALLOCATION_SIZE = 50;
+    
+    /**
+     * The default number of snapshots persisted per flush: see {@link #persistAll(EntityManager, Collection, int)}.
+     */
+    public final static int DEFAULT_BATCH_SIZE = 50;
+
     @Id
     @GeneratedValue(strategy=GenerationType.AUTO, generator="marshalledDataIdSeq")
     public Integer id;
@@ -46,6 +62,43 @@ public class MarshalledData {
     public String marshalledObjectClassName;
     public Long marshalledObjectId;
     
+    /**
+     * The digests of the binary data, if it has been stored as {@link MarshalledPayload}s: 
+     * {@link #byteArray} and {@link #serializedKnowledgeBase} are then not stored in this row.
+     */
+    public String byteArrayDigest;
+    public String serializedKnowledgeBaseDigest;
+    
+    /**
+     * The name of the {@link PayloadCodec} that encoded the binary data in this row, or null if it's not encoded.
+     */
+    public String payloadCodec;
+    
+    /**
+     * Whether or not the binary data ({@link #byteArray} and {@link #serializedKnowledgeBase}) of this object
+     * is only loaded when it's needed: see {@link MarshallingTestUtil#retrieveMarshallingData(javax.persistence.EntityManagerFactory, String)}.
+     */
+    @Transient
+    public boolean lazyBinaryData = false;
+    
+    /**
+     * The entity manager factory of the database that this object was retrieved from, if its binary data is loaded 
+     * lazily: see {@link MarshallingTestUtil#loadBinaryData(MarshalledData)}.
+     */
+    @Transient
+    EntityManagerFactory sourceEntityManagerFactory;
+
+    /**
+     * The length and digest of the binary data ({@link #byteArray}) and the digest of the serialized knowledge base
+     * ({@link #serializedKnowledgeBase}), if it was retrieved via the {@link MarshalledDataIndex}.
+     */
+    @Transient
+    public Integer binaryDataLength;
+    @Transient
+    public String binaryDataDigest;
+    @Transient
+    public String knowledgeBaseDigest;
+    
     @Transient
     private static HashMap<String, AtomicInteger> testMethodSnapshotNumMap = new HashMap<String, AtomicInteger>();
     
@@ -75,6 +128,20 @@ public class MarshalledData {
         this.marshalledObjectClassName =  marshalledClassInstance.getClass().getName();
     }
     
+    /**
+     * Creates a MarshalledData object without its binary data, which is loaded when it's needed. 
+     * (Used in the query that retrieves the marshalled data without the LOB columns.)
+     */
+    public MarshalledData(Integer id, String testMethodName, Integer snapshotNumber, 
+            String marshalledObjectClassName, Long marshalledObjectId) { 
+        this.id = id;
+        this.testMethodName = testMethodName;
+        this.snapshotNumber = snapshotNumber;
+        this.marshalledObjectClassName = marshalledObjectClassName;
+        this.marshalledObjectId = marshalledObjectId;
+        this.lazyBinaryData = true;
+    }
+    
     public static Integer getCurrentTestMethodSnapshotNumber() { 
        String testMethodName = getTestMethodName();
        if( testMethodSnapshotNumMap.get(testMethodName) != null ) { 
@@ -83,6 +150,144 @@ public class MarshalledData {
        return null;
     }
     
+    /**
+     * Persists the given MarshalledData object, with its binary data in the MarshalledData row. If the persistence unit 
+     * contains the {@link MarshalledDataIndex}, an index entry is persisted as well. The binary data is encoded with the 
+     * default {@link PayloadCodec} (see {@link PayloadCodecs#setDefaultCodec(String)}).
+     */
+    static void persist(EntityManager em, MarshalledData marshalledData) { 
+        persist(em, marshalledData, null, null);
+    }
+    
+    /**
+     * @param txm The transaction manager used to store the binary data as {@link MarshalledPayload}s, or null.
+     * @param storedDigests The digests of the payloads that are known to be stored, or null to store the binary 
+     * data in the MarshalledData row.
+     */
+    private static void persist(EntityManager em, MarshalledData marshalledData, TransactionManager txm, Set<String> storedDigests) { 
+        PayloadCodec codec = PayloadCodecs.getDefaultCodec();
+        if( storedDigests != null ) { 
+            marshalledData.byteArrayDigest = MarshalledPayload.store(em, txm, marshalledData.byteArray, codec, storedDigests);
+            marshalledData.serializedKnowledgeBaseDigest = MarshalledPayload.store(em, txm, marshalledData.serializedKnowledgeBase, codec, storedDigests);
+        }
+        MarshalledDataIndex index = null;
+        if( MarshalledDataIndex.isIndexed(em) ) { 
+            index = new MarshalledDataIndex(marshalledData);
+        }
+        if( marshalledData.byteArrayDigest != null || marshalledData.serializedKnowledgeBaseDigest != null ) { 
+            marshalledData.byteArray = null;
+            marshalledData.serializedKnowledgeBase = null;
+        }
+        else if( codec != PayloadCodecs.IDENTITY ) { 
+            if( marshalledData.byteArray != null ) { 
+                marshalledData.byteArray = codec.encode(marshalledData.byteArray);
+            }
+            if( marshalledData.serializedKnowledgeBase != null ) { 
+                marshalledData.serializedKnowledgeBase = codec.encode(marshalledData.serializedKnowledgeBase);
+            }
+            marshalledData.payloadCodec = PayloadCodecs.getStoredName(codec);
+        }
+        
+        em.persist(marshalledData);
+        if( index != null ) { 
+            index.marshalledDataId = marshalledData.id;
+            em.persist(index);
+        }
+    }
+    
+    /**
+     * Persists the given MarshalledData objects (see {@link #persist(EntityManager, MarshalledData)}), flushing and
+     * clearing the entity manager after every batch of the given size. The inserts of a batch can then be sent to 
+     * the database in one JDBC batch, if the persistence unit is configured to do so (for example, with the 
+     * "hibernate.jdbc.batch_size" and "hibernate.order_inserts" properties), and the persistence context never 
+     * contains more than one batch of snapshots. Since the entity manager is cleared, it should be used for 
+     * the snapshots only.
+     * </p>
+     * The ids are allocated in ranges by the sequence generators (see {@link SequenceGenerator#allocationSize()}),
+     * not per row.
+     */
+    static void persistAll(EntityManager em, Collection<MarshalledData> marshalledDataList, int batchSize) { 
+        persistAll(em, marshalledDataList, batchSize, null);
+    }
+    
+    /**
+     * Persists the given MarshalledData objects in batches (see {@link #persistAll(EntityManager, Collection, int)}). 
+     * If a transaction manager is given and the entity manager belongs to a JTA persistence unit that contains 
+     * {@link MarshalledPayload}, the binary data is stored as (shared) payloads instead of in the MarshalledData rows: 
+     * every new payload is stored in its own transaction, see {@link MarshalledPayload#store(EntityManager, TransactionManager, byte[], PayloadCodec, Set)}.
+     * @param txm The transaction manager that the entity manager takes part in, or null.
+     */
+    static void persistAll(EntityManager em, Collection<MarshalledData> marshalledDataList, int batchSize, TransactionManager txm) { 
+        Set<String> storedDigests = null;
+        // (a payload can only be stored in its own transaction if the persistence unit is a JTA persistence unit)
+        if( txm != null && isPartOfPersistenceUnit(em, MarshalledPayload.class) && isJtaEntityManager(em) ) { 
+            storedDigests = new HashSet<String>();
+        }
+        int persisted = 0;
+        for( MarshalledData marshalledData : marshalledDataList ) { 
+            persist(em, marshalledData, txm, storedDigests);
+            if( ++persisted % batchSize == 0 ) { 
+                em.flush();
+                em.clear();
+            }
+        }
+        if( persisted % batchSize != 0 ) { 
+            em.flush();
+            em.clear();
+        }
+    }
+    
+    /**
+     * Decodes the binary data of the given (detached) MarshalledData object that has just been retrieved, 
+     * and retrieves the binary data that has been stored as {@link MarshalledPayload}s.
+     */
+    static void decodeBinaryData(EntityManager em, MarshalledData marshalledData) { 
+        if( marshalledData.payloadCodec != null ) { 
+            PayloadCodec codec = PayloadCodecs.getCodec(marshalledData.payloadCodec);
+            if( marshalledData.byteArray != null ) { 
+                marshalledData.byteArray = codec.decode(marshalledData.byteArray);
+            }
+            if( marshalledData.serializedKnowledgeBase != null ) { 
+                marshalledData.serializedKnowledgeBase = codec.decode(marshalledData.serializedKnowledgeBase);
+            }
+            // (the data is no longer encoded)
+            marshalledData.payloadCodec = null;
+        }
+        if( marshalledData.byteArray == null ) {
+            marshalledData.byteArray = MarshalledPayload.retrieve(em, marshalledData.byteArrayDigest);
+        }
+        if( marshalledData.serializedKnowledgeBase == null ) {
+            marshalledData.serializedKnowledgeBase = MarshalledPayload.retrieve(em, marshalledData.serializedKnowledgeBaseDigest);
+        }
+    }
+    
+    /**
+     * @return Whether or not the given entity manager takes part in JTA transactions: 
+     * {@link EntityManager#getTransaction()} can only be used with resource-local entity managers.
+     */
+    static boolean isJtaEntityManager(EntityManager em) { 
+        try { 
+            em.getTransaction();
+            return false;
+        }
+        catch( IllegalStateException ise ) { 
+            return true;
+        }
+    }
+    
+    /**
+     * @return Whether or not the given entity class is part of the persistence unit of the given entity manager.
+     */
+    static boolean isPartOfPersistenceUnit(EntityManager em, Class<?> entityClass) { 
+        try { 
+            em.getMetamodel().entity(entityClass);
+            return true;
+        }
+        catch( IllegalArgumentException iae ) { 
+            return false;
+        }
+    }
+    
     public String getTestMethodAndSnapshotNum() { 
        return this.testMethodName + ":" + this.snapshotNumber;
     }
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+
+/**
+ * The metadata of a {@link MarshalledData} snapshot, without the (binary) marshalled data: the test method,
+ * the snapshot number, the marshalled object, the length and digest of the marshalled data and the digest of
+ * the serialized knowledge base.
+ * </p>
+ * An index entry is persisted together with every MarshalledData object (see {@link MarshalledData#persist(EntityManager, MarshalledData)}),
+ * as long as this class is listed in the persistence unit next to MarshalledData. The snapshots of a test
+ * can then be retrieved, sanity checked and compared (if the digests are the same, the marshalled data and
+ * the knowledge base it's unmarshalled with are identical) with one query that doesn't touch the LOB columns of MarshalledData: see
+ * {@link MarshallingTestUtil#retrieveMarshallingData(javax.persistence.EntityManagerFactory, String)}.
+ */
+@Entity
+@SequenceGenerator(name="marshalledDataIndexIdSeq", sequenceName="MARSHALLEDDATAINDEX_ID_SEQ", allocationSize=MarshalledData.ID_ALLOCATION_SIZE)
+public class MarshalledDataIndex {
+
+    @Id
+    @GeneratedValue(strategy=GenerationType.AUTO, generator="marshalledDataIndexIdSeq")
+    public Integer id;
+
+    public Integer marshalledDataId;
+
+    public String testMethodName;
+    public Integer snapshotNumber;
+
+    public String marshalledObjectClassName;
+    public Long marshalledObjectId;
+
+    public Integer binaryDataLength;
+    public String binaryDataDigest;
+    public String knowledgeBaseDigest;
+
+    public MarshalledDataIndex() {
+        // for the ORM/persistence which requires a default constructor to initialize entity classes
+    }
+
+    public MarshalledDataIndex(MarshalledData marshalledData) {
+        this.marshalledDataId = marshalledData.id;
+        this.testMethodName = marshalledData.testMethodName;
+        this.snapshotNumber = marshalledData.snapshotNumber;
+        this.marshalledObjectClassName = marshalledData.marshalledObjectClassName;
+        this.marshalledObjectId = marshalledData.marshalledObjectId;
+        if( marshalledData.byteArray != null ) {
+            this.binaryDataLength = marshalledData.byteArray.length;
+            this.binaryDataDigest = marshalledData.byteArrayDigest != null ?
+                    marshalledData.byteArrayDigest : MarshalledPayload.digest(marshalledData.byteArray);
+        }
+        if( marshalledData.serializedKnowledgeBase != null ) {
+            this.knowledgeBaseDigest = marshalledData.serializedKnowledgeBaseDigest != null ?
+                    marshalledData.serializedKnowledgeBaseDigest : MarshalledPayload.digest(marshalledData.serializedKnowledgeBase);
+        }
+    }
+
+    /**
+     * @return A MarshalledData object without binary data (which is loaded when it's needed),
+     * that contains the length and digest of the binary data and the digest of the knowledge base.
+     */
+    MarshalledData toMarshalledData() {
+        MarshalledData marshalledData = new MarshalledData(marshalledDataId, testMethodName, snapshotNumber,
+                marshalledObjectClassName, marshalledObjectId);
+        marshalledData.binaryDataLength = binaryDataLength;
+        marshalledData.binaryDataDigest = binaryDataDigest;
+        marshalledData.knowledgeBaseDigest = knowledgeBaseDigest;
+        return marshalledData;
+    }
+
+    /**
+     * @return Whether or not this class is part of the persistence unit of the given entity manager.
+     */
+    static boolean isIndexed(EntityManager em) {
+        return MarshalledData.isPartOfPersistenceUnit(em, MarshalledDataIndex.class);
+    }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bitronix.tm.TransactionManagerServices;
+
+/**
+ * Persists {@link MarshalledData} snapshots in the background ("write-behind"), so that capturing a snapshot 
+ * (see {@link EntityManagerFactoryProxy}) only costs copying the marshalled data instead of an extra insert in the 
+ * transaction of the system under test.
+ * </p>
+ * Snapshots are queued (at most the given number: capturing a snapshot blocks when the queue is full) and written in 
+ * batches by a single thread, each batch in its own transaction and with its own entity manager. The entity manager 
+ * factory given to the writer should be the real (not the proxied) entity manager factory of the marshalling database.
+ * </p>
+ * Snapshots that are captured in a (JTA) transaction are only queued when that transaction has been committed, 
+ * and are dropped when it's rolled back (see {@link #writeOnCommit(MarshalledData)}), just like the snapshots that are 
+ * persisted in the transaction itself when no writer is used.
+ * </p>
+ * {@link #flush()} has to be called before the marshalled data is retrieved (for example, at the end of a test), 
+ * and {@link #close()} when no more snapshots will be written. A failure to write a batch is reported by the next 
+ * call to either method.
+ */
+public class MarshalledDataWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(MarshalledDataWriter.class);
+    
+    public final static int DEFAULT_BATCH_SIZE = 50;
+    public final static int DEFAULT_MAX_QUEUED_SNAPSHOTS = 1000;
+    
+    private final EntityManagerFactory emf;
+    private final int batchSize;
+    private final BlockingQueue<MarshalledData> queue;
+    private final Thread writerThread;
+    
+    private final Map<Transaction, PendingSnapshots> pendingSnapshotsMap = new ConcurrentHashMap<Transaction, PendingSnapshots>();
+    
+    private final Object lock = new Object();
+    // guarded by lock
+    private long queuedSnapshots = 0;
+    private long writtenSnapshots = 0;
+    private Throwable failure = null;
+    private boolean closed = false;
+    
+    public MarshalledDataWriter(EntityManagerFactory emf) { 
+        this(emf, DEFAULT_BATCH_SIZE, DEFAULT_MAX_QUEUED_SNAPSHOTS);
+    }
+    
+    /**
+     * @param emf The (real) entity manager factory of the marshalling database.
+     * @param batchSize The maximum number of snapshots persisted in one transaction.
+     * @param maxQueuedSnapshots The maximum number of snapshots waiting to be written.
+     */
+    public MarshalledDataWriter(EntityManagerFactory emf, int batchSize, int maxQueuedSnapshots) { 
+        this.emf = emf;
+        this.batchSize = Math.max(1, batchSize);
+        this.queue = new ArrayBlockingQueue<MarshalledData>(Math.max(1, maxQueuedSnapshots));
+        this.writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeQueuedSnapshots();
+            }
+        }, "gimcrack-marshalled-data-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+    
+    /**
+     * Queues the given snapshot: the marshalled data is copied, so that later changes to the marshalled 
+     * object don't change the snapshot.
+     */
+    void write(MarshalledData marshalledData) { 
+        copyBinaryData(marshalledData);
+        enqueue(marshalledData);
+    }
+    
+    /**
+     * Queues the given snapshot once the current transaction has been committed: the snapshot is dropped if the 
+     * transaction is rolled back. The marshalled data is copied now, so that changes to the marshalled object 
+     * made before the transaction completes don't change the snapshot. Without an active transaction, the 
+     * snapshot is queued immediately (see {@link #write(MarshalledData)}).
+     */
+    void writeOnCommit(MarshalledData marshalledData) { 
+        Transaction transaction = null;
+        int status = Status.STATUS_NO_TRANSACTION;
+        try { 
+            transaction = TransactionManagerServices.getTransactionManager().getTransaction();
+            if( transaction != null ) { 
+                status = transaction.getStatus();
+            }
+        }
+        catch( Exception e ) { 
+            fail("Unable to retrieve the transaction of marshalled data [" + marshalledData.getTestMethodAndSnapshotNum() + "]: [" 
+                    + e.getClass().getSimpleName() + ": " + e.getMessage() + "]");
+        }
+        if( status == Status.STATUS_MARKED_ROLLBACK ) { 
+            logger.trace("-x-: " + marshalledData);
+            return;
+        }
+        if( transaction == null || status != Status.STATUS_ACTIVE ) { 
+            write(marshalledData);
+            return;
+        }
+        
+        copyBinaryData(marshalledData);
+        // (a transaction is only used by one thread at a time)
+        PendingSnapshots pendingSnapshots = pendingSnapshotsMap.get(transaction);
+        if( pendingSnapshots == null ) { 
+            pendingSnapshots = new PendingSnapshots(transaction);
+            try { 
+                transaction.registerSynchronization(pendingSnapshots);
+            }
+            catch( Exception e ) { 
+                fail("Unable to register marshalled data [" + marshalledData.getTestMethodAndSnapshotNum() + "] with the transaction: [" 
+                        + e.getClass().getSimpleName() + ": " + e.getMessage() + "]");
+            }
+            pendingSnapshotsMap.put(transaction, pendingSnapshots);
+        }
+        pendingSnapshots.add(marshalledData);
+    }
+    
+    private static void copyBinaryData(MarshalledData marshalledData) { 
+        if( marshalledData.byteArray != null ) { 
+            marshalledData.byteArray = marshalledData.byteArray.clone();
+        }
+    }
+    
+    private void enqueue(MarshalledData marshalledData) { 
+        synchronized( lock ) { 
+            if( closed ) { 
+                throw new IllegalStateException(MarshalledDataWriter.class.getSimpleName() + " has been closed.");
+            }
+            ++queuedSnapshots;
+        }
+        try { 
+            queue.put(marshalledData);
+        }
+        catch( InterruptedException ie ) { 
+            Thread.currentThread().interrupt();
+            synchronized( lock ) { 
+                --queuedSnapshots;
+                lock.notifyAll();
+            }
+            fail("Interrupted while queueing marshalled data [" + marshalledData.getTestMethodAndSnapshotNum() + "]");
+        }
+        logger.trace("-~-: " + marshalledData);
+    }
+    
+    /**
+     * The snapshots captured in a transaction, which are queued when the transaction has been committed.
+     */
+    private class PendingSnapshots implements Synchronization { 
+        
+        private final Transaction transaction;
+        private final List<MarshalledData> snapshots = Collections.synchronizedList(new ArrayList<MarshalledData>());
+        
+        PendingSnapshots(Transaction transaction) { 
+            this.transaction = transaction;
+        }
+        
+        void add(MarshalledData marshalledData) { 
+            snapshots.add(marshalledData);
+        }
+        
+        public void beforeCompletion() {
+            // no-op
+        }
+        
+        public void afterCompletion(int status) {
+            pendingSnapshotsMap.remove(transaction);
+            if( status != Status.STATUS_COMMITTED ) { 
+                logger.trace("Dropping " + snapshots.size() + " marshalled snapshots of a transaction that was not committed.");
+                return;
+            }
+            synchronized( snapshots ) { 
+                for( MarshalledData marshalledData : snapshots ) { 
+                    try { 
+                        enqueue(marshalledData);
+                    }
+                    catch( Throwable t ) { 
+                        // (exceptions thrown here are not reported by the transaction manager)
+                        logger.error(t.getClass().getSimpleName() + " thrown when queueing marshalled snapshots", t);
+                        synchronized( lock ) { 
+                            if( failure == null ) { 
+                                failure = t;
+                            }
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+    }
+    
+    private void writeQueuedSnapshots() { 
+        List<MarshalledData> batch = new ArrayList<MarshalledData>(batchSize);
+        while( true ) { 
+            MarshalledData first;
+            try { 
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            }
+            catch( InterruptedException ie ) { 
+                first = null;
+            }
+            if( first == null ) { 
+                synchronized( lock ) { 
+                    // (snapshots can't be queued after the writer has been closed)
+                    if( closed && writtenSnapshots == queuedSnapshots ) { 
+                        return;
+                    }
+                }
+                continue;
+            }
+            
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            try { 
+                writeBatch(batch);
+            }
+            catch( Throwable t ) { 
+                logger.error(t.getClass().getSimpleName() + " thrown when writing " + batch.size() + " marshalled snapshots", t);
+                synchronized( lock ) { 
+                    if( failure == null ) { 
+                        failure = t;
+                    }
+                }
+            }
+            finally { 
+                synchronized( lock ) { 
+                    writtenSnapshots += batch.size();
+                    lock.notifyAll();
+                }
+                batch.clear();
+            }
+        }
+    }
+    
+    private void writeBatch(List<MarshalledData> batch) throws Exception { 
+        TransactionManager txm = TransactionManagerServices.getTransactionManager();
+        txm.begin();
+        EntityManager em = null;
+        boolean committed = false;
+        try { 
+            em = emf.createEntityManager();
+            MarshalledData.persistAll(em, batch, batchSize, txm);
+            txm.commit();
+            committed = true;
+        }
+        finally { 
+            if( em != null ) { 
+                em.clear();
+                em.close();
+            }
+            if( ! committed ) { 
+                try { 
+                    txm.rollback();
+                }
+                catch( Exception e ) { 
+                    logger.warn(e.getClass().getSimpleName() + " thrown when rolling back marshalled snapshots: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits until all queued snapshots have been written: snapshots that are waiting for their transaction to be 
+     * committed have not been queued yet.
+     */
+    public void flush() { 
+        synchronized( lock ) { 
+            while( writtenSnapshots < queuedSnapshots ) { 
+                try { 
+                    lock.wait();
+                }
+                catch( InterruptedException ie ) { 
+                    Thread.currentThread().interrupt();
+                    fail("Interrupted while waiting for marshalled data to be written.");
+                }
+            }
+            if( failure != null ) { 
+                Throwable t = failure;
+                failure = null;
+                fail("Unable to write marshalled data: [" + t.getClass().getSimpleName() + ": " + t.getMessage() + "]");
+            }
+        }
+    }
+    
+    /**
+     * Writes all queued snapshots and stops the writer thread.
+     */
+    public void close() { 
+        synchronized( lock ) { 
+            closed = true;
+        }
+        try { 
+            writerThread.join();
+        }
+        catch( InterruptedException ie ) { 
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import java.security.MessageDigest;
+import java.util.Set;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary data (the marshalled data or the serialized knowledge base of a {@link MarshalledData} snapshot), stored
+ * once for all snapshots that contain the same data: payloads are identified by the (SHA-1) digest of their data.
+ * </p>
+ * If this class is listed in the (JTA) persistence unit next to MarshalledData, the binary data of the snapshots 
+ * that are persisted when a transaction is committed (see {@link UserTransactionProxy} and {@link MarshalledDataWriter})
+ * is stored as payloads, and the MarshalledData row only contains the digests of its binary data 
+ * (see {@link MarshalledData#byteArrayDigest}). Since most snapshots of a test (and especially the knowledge bases 
+ * stored with them) are identical, this means that most of the binary data is only written (and read) once.
+ * The snapshots that are persisted with the entity manager of the application (when a marshalled object is persisted) 
+ * contain their binary data, as do all snapshots when the persistence unit is not a JTA persistence unit: 
+ * see {@link MarshalledData#persistAll(EntityManager, java.util.Collection, int, TransactionManager)}.
+ */
+@Entity
+public class MarshalledPayload {
+
+    private static final Logger logger = LoggerFactory.getLogger(MarshalledPayload.class);
+
+    @Id
+    public String digest;
+
+    @Lob
+    public byte[] data;
+
+    /**
+     * The name of the {@link PayloadCodec} that encoded the data, or null if the data is not encoded.
+     */
+    public String codec;
+
+    public MarshalledPayload() {
+        // for the ORM/persistence which requires a default constructor to initialize entity classes
+    }
+
+    public MarshalledPayload(String digest, byte [] data) {
+        this.digest = digest;
+        this.data = data;
+    }
+
+    /**
+     * Stores the given data, encoded with the given codec, unless a payload with the same digest has already been stored.
+     * </p>
+     * The digests of the payloads that have been stored (or checked) are added to the given set, so that every payload 
+     * is only checked once per batch of snapshots.
+     * </p>
+     * A new payload is stored (and committed) in its own transaction: the current transaction is suspended in the 
+     * meantime. Since payloads are shared, a concurrent writer can store the same payload at the same time, in which 
+     * case one of the inserts fails on the (primary) key: that writer then uses the payload stored by the other writer 
+     * instead of failing the transaction of its snapshots. A payload stays stored if the transaction of its snapshot 
+     * is rolled back, which is harmless.
+     *
+     * @param em An entity manager of a JTA persistence unit that contains this class.
+     * @param txm The transaction manager that the entity manager takes part in.
+     * @param storedDigests The digests of the payloads that are known to be stored.
+     * @return The digest of the (unencoded) data, or null if the data is null.
+     */
+    static String store(EntityManager em, TransactionManager txm, byte [] data, PayloadCodec codec, Set<String> storedDigests) {
+        if( data == null ) {
+            return null;
+        }
+        String digest = digest(data);
+        if( storedDigests.add(digest) && ! isStored(em, digest) ) {
+            MarshalledPayload payload = new MarshalledPayload(digest, codec.encode(data));
+            payload.codec = PayloadCodecs.getStoredName(codec);
+            storeInOwnTransaction(txm, em.getEntityManagerFactory(), payload);
+        }
+        return digest;
+    }
+
+    /**
+     * @return Whether or not a payload with the given digest has been stored: the (LOB) data of the payload is not loaded.
+     */
+    static boolean isStored(EntityManager em, String digest) {
+        Number count = (Number) em.createQuery("SELECT COUNT(p) FROM MarshalledPayload p WHERE p.digest = :digest")
+                .setParameter("digest", digest)
+                .getSingleResult();
+        return count.longValue() > 0;
+    }
+
+    private static void storeInOwnTransaction(TransactionManager txm, EntityManagerFactory emf, MarshalledPayload payload) {
+        Transaction suspended;
+        try {
+            suspended = txm.suspend();
+        }
+        catch( Exception e ) {
+            throw new IllegalStateException("Unable to suspend the transaction to store payload " + payload.digest + ": " + e.getMessage(), e);
+        }
+        try {
+            Exception failure = storeAndCommit(txm, emf, payload);
+            if( failure != null ) {
+                // the payload may have been stored by a concurrent writer
+                boolean stored = false;
+                try {
+                    txm.begin();
+                    EntityManager em = emf.createEntityManager();
+                    try {
+                        stored = isStored(em, payload.digest);
+                    }
+                    finally {
+                        em.close();
+                        txm.commit();
+                    }
+                }
+                catch( Exception e ) {
+                    logger.warn(e.getClass().getSimpleName() + " thrown when checking payload " + payload.digest + ": " + e.getMessage());
+                }
+                if( ! stored ) {
+                    throw new IllegalStateException("Unable to store payload " + payload.digest + ": " + failure.getMessage(), failure);
+                }
+                logger.debug("Payload {} has been stored by a concurrent writer.", payload.digest);
+            }
+        }
+        finally {
+            if( suspended != null ) {
+                try {
+                    txm.resume(suspended);
+                }
+                catch( Exception e ) {
+                    throw new IllegalStateException("Unable to resume the transaction after storing payload " + payload.digest + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The exception thrown when storing the payload, or null if it has been stored and committed.
+     */
+    private static Exception storeAndCommit(TransactionManager txm, EntityManagerFactory emf, MarshalledPayload payload) {
+        boolean committed = false;
+        try {
+            txm.begin();
+            EntityManager em = emf.createEntityManager();
+            try {
+                em.persist(payload);
+                em.flush();
+            }
+            finally {
+                em.close();
+            }
+            txm.commit();
+            committed = true;
+            return null;
+        }
+        catch( Exception e ) {
+            return e;
+        }
+        finally {
+            if( ! committed ) {
+                try {
+                    if( txm.getStatus() != Status.STATUS_NO_TRANSACTION ) {
+                        txm.rollback();
+                    }
+                }
+                catch( Exception e ) {
+                    logger.warn(e.getClass().getSimpleName() + " thrown when rolling back payload " + payload.digest + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The (decoded) data of the payload with the given digest, or null if the digest is null.
+     */
+    static byte [] retrieve(EntityManager em, String digest) {
+        if( digest == null ) {
+            return null;
+        }
+        MarshalledPayload payload = em.find(MarshalledPayload.class, digest);
+        if( payload == null ) {
+            throw new IllegalStateException("No payload stored for digest " + digest);
+        }
+        return PayloadCodecs.getCodec(payload.codec).decode(payload.data);
+    }
+
+    /**
+     * @return The (hexadecimal) SHA-1 digest of the given data.
+     */
+    static String digest(byte [] data) {
+        byte [] digest = sha1(data);
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for( int i = 0; i < digest.length; ++i ) {
+            hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return The SHA-1 digest of the given data.
+     */
+    static byte [] sha1(byte [] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        }
+        catch( Exception e ) {
+            throw new IllegalStateException("Unable to create a SHA-1 digest: " + e.getMessage(), e);
+        }
+    }
+
+}
@@ -22,18 +22,31 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.transaction.Status;
 import javax.transaction.TransactionManager;
 
 import junit.framework.TestCase;
 
 import org.gimcrack.compare.CompareViaReflectionUtil;
+import org.gimcrack.compare.ComparisonMemo;
+import org.gimcrack.compare.ComparisonResult;
+import org.gimcrack.marshalling.user.MarshalledObjectSpecificActions;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -45,10 +58,20 @@ import bitronix.tm.TransactionManagerServices;
 public class MarshallingTestUtil {
 
     private final static Logger logger = LoggerFactory.getLogger(MarshallingTestUtil.class);
+    
+    public final static int DEFAULT_MAX_QUEUED_SNAPSHOTS = 16;
+    public final static int DEFAULT_RETRIEVAL_PAGE_SIZE = 100;
+    
+    private static volatile int retrievalPageSize = DEFAULT_RETRIEVAL_PAGE_SIZE;
   
     private ObjectSpecificMarshallingActions objectSpecificMarshallingActions = new ObjectSpecificMarshallingActions();
     private EntityManagerFactory emf; 
     
+    private int unmarshallingThreads = 0;
+    private int comparisonThreads = 0;
+    private int maxQueuedSnapshots = DEFAULT_MAX_QUEUED_SNAPSHOTS;
+    private int comparisonMemoSize = ComparisonMemo.DEFAULT_MAX_ENTRIES;
+    
     private static MessageDigest algorithm = null;
     static { 
        if( algorithm == null ) { 
@@ -90,27 +113,47 @@ public class MarshallingTestUtil {
         }
         
         // Retrieve the test data
-        List<MarshalledData> testDataList = retrieveMarshallingData(emf);
+        List<MarshalledData> testDataList = retrieveMarshallingData(emf, testClass.getName());
         assertNotNull("Not marshalled data found for " + testClass.getSimpleName(), 
                 testDataList != null && ! testDataList.isEmpty() );
     
         String [] baseDbVersions = getListOfBaseDbVers(testClass);
     
-        for( int v = 0; v < baseDbVersions.length; ++v ) { 
-            logger.trace("Loading marshalled data from base DB version: [" + baseDbVersions[v] + "]");
-            // Retrieve the base data
-            List<MarshalledData> baseDataList =  null;
-            try { 
-                baseDataList = retrieveMarshallingData(emf);
-            }
-            finally {
+        ComparisonMemo previousMemo = useComparisonMemo(compareUtil);
+        try { 
+            for( int v = 0; v < baseDbVersions.length; ++v ) { 
+                logger.trace("Loading marshalled data from base DB version: [" + baseDbVersions[v] + "]");
+                // Retrieve the base data
+                List<MarshalledData> baseDataList =  null;
+                try { 
+                    baseDataList = retrieveMarshallingData(emf, testClass.getName());
+                }
+                finally {
                 
-            }
-            assertTrue("No base marshalled data found", baseDataList != null && ! baseDataList.isEmpty() );
+                }
+                assertTrue("No base marshalled data found", baseDataList != null && ! baseDataList.isEmpty() );
     
-            // Compare!
-            compareTestAndBaseMarshallingData(compareUtil, testClass, testDataList, baseDataList, baseDbVersions[v]);
+                // Compare!
+                compareTestAndBaseMarshallingData(compareUtil, testClass, testDataList, baseDataList, baseDbVersions[v]);
+            }
+        }
+        finally { 
+            compareUtil.setComparisonMemo(previousMemo);
+        }
+    }
+
+    /**
+     * The snapshots of a test, and the base versions that they are compared to, mostly contain the same objects: 
+     * unless the given util already has one, a {@link ComparisonMemo} is set while the snapshots are compared, 
+     * so that the subtrees that have been found to be equal are skipped in the following snapshots and base versions.
+     * @return The memo that the util had before, which has to be set again afterwards.
+     */
+    ComparisonMemo useComparisonMemo(CompareViaReflectionUtil compareUtil) { 
+        ComparisonMemo previousMemo = compareUtil.getComparisonMemo();
+        if( previousMemo == null && comparisonMemoSize > 0 ) { 
+            compareUtil.setComparisonMemo(new ComparisonMemo(comparisonMemoSize));
         }
+        return previousMemo;
     }
     
     private boolean isTestMarshalling() { 
@@ -123,7 +166,7 @@ public class MarshallingTestUtil {
 
     private void checkMarshalledSnapshots() { 
         logger.trace( "Checking MarshalledData objects saved in base db." );
-        List<MarshalledData> baseDataList = retrieveMarshallingData(emf);
+        List<MarshalledData> baseDataList = retrieveMarshallingData(emf, null);
         
         assertNotNull("Could not rerieve list of MarshalledData from base db.", baseDataList);
         assertTrue("List of MarshalledData from base db is empty.", ! baseDataList.isEmpty() );
@@ -131,11 +174,15 @@ public class MarshallingTestUtil {
         for( MarshalledData marshalledData : baseDataList ) { 
             try { 
                 logger.debug( "Unmarshalling snapshot: " + marshalledData.getTestMethodAndSnapshotNum() );
+                loadBinaryData(marshalledData);
                 objectSpecificMarshallingActions.unmarshallObject(marshalledData);
             } catch( Exception e ) { 
                 logger.error( e.getClass().getSimpleName() + " thrown while unmarshalling [" 
                         + marshalledData.getTestMethodAndSnapshotNum() + "] data stored in base database", e );
             }
+            finally { 
+                unloadBinaryData(marshalledData);
+            }
             
         }
         logger.trace( "MarshalledData objects saved in base db:" );
@@ -144,6 +191,10 @@ public class MarshallingTestUtil {
         }
     }
     
+    /**
+     * Retrieves all marshalled data, including the binary data: see 
+     * {@link #retrieveMarshallingData(EntityManagerFactory, String)} in order to retrieve large databases.
+     */
     @SuppressWarnings("unchecked")
     public static List<MarshalledData> retrieveMarshallingData(EntityManagerFactory emf) { 
         ArrayList<MarshalledData> marshalledDataList = new ArrayList<MarshalledData>();
@@ -164,6 +215,11 @@ public class MarshallingTestUtil {
         try { 
             em = emf.createEntityManager();
             mdList = em.createQuery("SELECT m FROM MarshalledData m").getResultList();
+            // (detach the MarshalledData objects before setting the binary data that was stored as payloads)
+            em.clear();
+            for( Object resultObject : mdList ) { 
+                MarshalledData.decodeBinaryData(em, (MarshalledData) resultObject);
+            }
         } finally { 
             if( em != null ) { 
                 em.clear();
@@ -190,12 +246,221 @@ public class MarshallingTestUtil {
         return marshalledDataList;
     }
 
+    /**
+     * Retrieves the marshalled data of the test methods whose name starts with the given prefix, without the binary 
+     * data: the LOB columns are only loaded when a snapshot is compared (see {@link #loadBinaryData(MarshalledData)}).
+     * The rows are retrieved in pages (see {@link #setRetrievalPageSize(int)}), each with its own (cleared) entity manager, 
+     * so that the persistence context never contains more than one page of rows.
+     * 
+     * </p>
+     * If the persistence unit contains the {@link MarshalledDataIndex} (and the index is not empty), the rows are retrieved
+     * from the index, so that the returned objects also contain the digest of their binary data. 
+     * 
+     * @param emf The entity manager factory of the marshalling database.
+     * @param testMethodNamePrefix The prefix of the test method names (for example, the name of the test class), or null 
+     * for all marshalled data. (Since "_" is a wildcard in a LIKE expression, this might retrieve too many rows, but never too few.)
+     */
+    public static List<MarshalledData> retrieveMarshallingData(EntityManagerFactory emf, String testMethodNamePrefix) { 
+        ArrayList<MarshalledData> marshalledDataList = new ArrayList<MarshalledData>();
+        
+        TransactionManager txm = null;
+        boolean newTransaction = false;
+        try { 
+            txm = TransactionManagerServices.getTransactionManager();
+            newTransaction = beginTransactionIfNecessary(txm);
+        }
+        catch( Exception e ) { 
+            logger.warn("Unable to retrieve marshalled snapshots from marshalling database.");
+            e.printStackTrace();
+            return marshalledDataList;
+        }
+        
+        // Use the index if there is one: it contains the digests of the binary data
+        EntityManager em = emf.createEntityManager();
+        boolean indexed = MarshalledDataIndex.isIndexed(em);
+        em.close();
+        if( indexed ) { 
+            retrieveMarshallingDataPages(emf, "SELECT i FROM MarshalledDataIndex i ", "i", testMethodNamePrefix, marshalledDataList);
+        }
+        if( marshalledDataList.isEmpty() ) { 
+            retrieveMarshallingDataPages(emf, "SELECT new " + MarshalledData.class.getName() 
+                    + "(m.id, m.testMethodName, m.snapshotNumber, m.marshalledObjectClassName, m.marshalledObjectId) "
+                    + "FROM MarshalledData m ", "m", testMethodNamePrefix, marshalledDataList);
+        }
+        
+        if( newTransaction ) { 
+            try {
+                txm.commit();
+            } catch (Exception e) {
+                logger.warn(e.getClass().getSimpleName() + " thrown when retrieving marshalled snapshots.");
+                e.printStackTrace();
+            } 
+        }
+        
+        return marshalledDataList;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static void retrieveMarshallingDataPages(EntityManagerFactory emf, String select, String alias, 
+            String testMethodNamePrefix, List<MarshalledData> marshalledDataList) { 
+        // Keyset paging: every page starts after the last id of the previous page, so that the database 
+        // doesn't have to skip the rows of the previous pages (as it would with an offset)
+        String prefixCondition = testMethodNamePrefix != null ? alias + ".testMethodName LIKE :prefix " : null;
+        String firstPageQueryString = select 
+                + (prefixCondition != null ? "WHERE " + prefixCondition : "") 
+                + "ORDER BY " + alias + ".id";
+        String nextPageQueryString = select 
+                + "WHERE " + (prefixCondition != null ? prefixCondition + "AND " : "") + alias + ".id > :lastId "
+                + "ORDER BY " + alias + ".id";
+        
+        int pageSize = Math.max(1, retrievalPageSize);
+        Integer lastId = null;
+        while( true ) { 
+            List<Object> mdList = null;
+            EntityManager em = null;
+            try { 
+                em = emf.createEntityManager();
+                Query query = em.createQuery(lastId == null ? firstPageQueryString : nextPageQueryString);
+                if( testMethodNamePrefix != null ) { 
+                    query.setParameter("prefix", testMethodNamePrefix + "%");
+                }
+                if( lastId != null ) { 
+                    query.setParameter("lastId", lastId);
+                }
+                mdList = query.setMaxResults(pageSize).getResultList();
+            } finally { 
+                if( em != null ) { 
+                    em.clear();
+                    em.close();
+                }
+            }
+            
+            for( Object resultObject : mdList ) { 
+                MarshalledData marshalledData;
+                if( resultObject instanceof MarshalledDataIndex ) { 
+                    MarshalledDataIndex index = (MarshalledDataIndex) resultObject;
+                    marshalledData = index.toMarshalledData();
+                    lastId = index.id;
+                }
+                else { 
+                    marshalledData = (MarshalledData) resultObject;
+                    lastId = marshalledData.id;
+                }
+                if( (marshalledData.testMethodName == null || marshalledData.testMethodName.trim().length() == 0) || marshalledData.snapshotNumber == null ) {
+                    fail("MarshalledData object does not contain the proper identification information.");
+                }
+                // (the binary data is loaded from the same database)
+                marshalledData.sourceEntityManagerFactory = emf;
+                marshalledDataList.add(marshalledData);
+                logger.trace("> " + marshalledData);
+            }
+            if( mdList.size() < pageSize ) { 
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Loads the binary data of marshalled data that was retrieved without it 
+     * (see {@link #retrieveMarshallingData(EntityManagerFactory, String)}), from the database that it was retrieved from.
+     */
+    public static void loadBinaryData(MarshalledData marshalledData) { 
+        loadBinaryData(null, marshalledData);
+    }
+    
+    /**
+     * Loads the binary data of marshalled data that was retrieved without it 
+     * (see {@link #retrieveMarshallingData(EntityManagerFactory, String)}).
+     * @param emf The entity manager factory of the database that the marshalled data was retrieved from, which is only
+     * used if the marshalled data does not know where it was retrieved from.
+     */
+    public static void loadBinaryData(EntityManagerFactory emf, MarshalledData marshalledData) { 
+        if( ! marshalledData.lazyBinaryData || marshalledData.byteArray != null || marshalledData.id == null ) { 
+            return;
+        }
+        if( marshalledData.sourceEntityManagerFactory != null ) { 
+            emf = marshalledData.sourceEntityManagerFactory;
+        }
+        if( emf == null ) { 
+            fail("Unable to load the binary data of [" + marshalledData.getTestMethodAndSnapshotNum() 
+                    + "]: the database that it was retrieved from is unknown.");
+        }
+        
+        TransactionManager txm = TransactionManagerServices.getTransactionManager();
+        boolean newTransaction = false;
+        EntityManager em = null;
+        try { 
+            newTransaction = beginTransactionIfNecessary(txm);
+            em = emf.createEntityManager();
+            Object [] binaryData = (Object []) em.createQuery(
+                    "SELECT m.byteArray, m.serializedKnowledgeBase, m.byteArrayDigest, m.serializedKnowledgeBaseDigest, m.payloadCodec "
+                    + "FROM MarshalledData m WHERE m.id = :id")
+                    .setParameter("id", marshalledData.id)
+                    .getSingleResult();
+            marshalledData.byteArray = (byte []) binaryData[0];
+            marshalledData.serializedKnowledgeBase = (byte []) binaryData[1];
+            marshalledData.byteArrayDigest = (String) binaryData[2];
+            marshalledData.serializedKnowledgeBaseDigest = (String) binaryData[3];
+            marshalledData.payloadCodec = (String) binaryData[4];
+            MarshalledData.decodeBinaryData(em, marshalledData);
+        }
+        catch( Exception e ) { 
+            fail("Unable to load the binary data of [" + marshalledData.getTestMethodAndSnapshotNum() + "]: [" 
+                    + e.getClass().getSimpleName() + ": " + e.getMessage() + "]");
+        }
+        finally { 
+            if( em != null ) { 
+                em.clear();
+                em.close();
+            }
+            if( newTransaction ) { 
+                try {
+                    txm.commit();
+                } catch (Exception e) {
+                    logger.warn(e.getClass().getSimpleName() + " thrown when loading marshalled snapshot data.");
+                    e.printStackTrace();
+                } 
+            }
+        }
+    }
+    
+    /**
+     * Releases the binary data of marshalled data that was loaded lazily, so that it can be garbage collected: 
+     * it will be loaded again when it's needed.
+     */
+    static void unloadBinaryData(MarshalledData marshalledData) { 
+        if( marshalledData != null && marshalledData.lazyBinaryData ) { 
+            marshalledData.byteArray = null;
+            marshalledData.serializedKnowledgeBase = null;
+        }
+    }
+    
+    /**
+     * @return True if a transaction was started, false if the current thread is already associated with a transaction.
+     */
+    private static boolean beginTransactionIfNecessary(TransactionManager txm) throws Exception { 
+        if( txm.getStatus() != Status.STATUS_NO_TRANSACTION ) { 
+            return false;
+        }
+        txm.begin();
+        return true;
+    }
+    
+    /**
+     * @param pageSize The number of rows retrieved per query by {@link #retrieveMarshallingData(EntityManagerFactory, String)}.
+     */
+    public static void setRetrievalPageSize(int pageSize) { 
+        retrievalPageSize = pageSize;
+    }
+
     /**
      * We do the following in this method: <ul>
      * <li>First, we organize the data in order to do a sanity check on the data
      *   <ul><li>see {@link#sanityCheckMarshalledData(Class, HashMap, HashMap)}</li></ul></li>
      * <li>Then, for every test method <i>snapshot</i> that has passed the sanity check:
-     *   <ol><li>Retrieve the marshalled data that was created during the <i>base</i> run</li>
+     *   <ol><li>Skip the snapshot if the base and test marshalled data are identical 
+     *     (see {@link ObjectSpecificMarshallingActions#isBinaryDataEqual(MarshalledData, MarshalledData)})</li>
+     *   <li>Retrieve the marshalled data that was created during the <i>base</i> run</li>
      *   <li>Unmarshall the base marshalled data</li>
      *   <li>Retrieve the marshalled data that was created during the <i>test</i> run</li>
      *   <li>Unmarshall the test marshalled data</li>
@@ -234,47 +499,24 @@ public class MarshallingTestUtil {
             }
          }
 
-        List<String> errors = new ArrayList<String>();
-        for( String testMethodVer : testMarshalledDataSnapshotMap.keySet() ) { 
-            logger.trace("Comparing marshalled info for " + testMethodVer);
-            Object baseObject = null;
-            // Base 
-            MarshalledData baseMarshalledData = baseMarshalledDataSnapshotMap.get(testMethodVer);
-            try { 
-                baseObject = objectSpecificMarshallingActions.unmarshallObject(baseMarshalledData);
-            }
-            catch( Exception e) {
-                String shortTestMethod = testMethodVer.substring(0, testMethodVer.indexOf(':')); 
-                shortTestMethod = shortTestMethod.substring( 
-                        shortTestMethod.substring(0, shortTestMethod.lastIndexOf('.')
-                        ).lastIndexOf('.')+1 );
-                
-                String shortTestMethodVer = shortTestMethod + testMethodVer.substring(testMethodVer.indexOf(':'));
-                logger.error( "[" + e.getClass().getSimpleName() + ": " + e.getMessage() + "] "
-                		+ "when unmarshalling [" + shortTestMethodVer + "] in " + baseDbVersion ); 
-                continue;
-            }
-           
-            Object testObject = null;
-            // Test
-            MarshalledData testMarshalledData = testMarshalledDataSnapshotMap.get(testMethodVer);
-            try { 
-                testObject = objectSpecificMarshallingActions.unmarshallObject(testMarshalledData);
-            }
-            catch( Exception e) {
-                fail("Unable to unmarshall " + baseDbVersion + " data: [" + e.getClass().getSimpleName() + ": " + e.getMessage() + "]");
-            }
-            
-            assertNotNull("Unmarshalled test data resulted in null object!", testObject);
-            assertNotNull("Unmarshalled base data resulted in null object!", baseObject);
-            
-            if( ! compareUtil.compareInstances(baseObject, testObject) ) { 
-                String errorMsg =  "Unmarshalled " + baseObject.getClass().getSimpleName() 
-                    + " object from " + baseDbVersion + " data is not equal to test unmarshalled object [" 
-                    + baseMarshalledData.getTestMethodAndSnapshotNum() + "]";
-                errors.add(errorMsg);
+        List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        AtomicInteger identicalSnapshots = new AtomicInteger(0);
+        if( unmarshallingThreads > 0 && comparisonThreads > 0 ) { 
+            compareSnapshotsInPipeline(compareUtil, testMarshalledDataSnapshotMap, baseMarshalledDataSnapshotMap, 
+                    baseDbVersion, errors, identicalSnapshots);
+        }
+        else { 
+            for( String testMethodVer : testMarshalledDataSnapshotMap.keySet() ) { 
+                UnmarshalledSnapshots snapshots = unmarshallSnapshots(testMethodVer, 
+                        baseMarshalledDataSnapshotMap.get(testMethodVer), testMarshalledDataSnapshotMap.get(testMethodVer), 
+                        baseDbVersion, errors, identicalSnapshots);
+                if( snapshots != null ) { 
+                    compareSnapshots(compareUtil, snapshots, baseDbVersion, errors);
+                }
             }
         }
+        logger.debug(identicalSnapshots.get() + " of " + testMarshalledDataSnapshotMap.size() 
+                + " snapshots were identical to the marshalled data in " + baseDbVersion);
         
         if( errors.size() > 0 ) { 
             int i = errors.size()-1;
@@ -287,6 +529,256 @@ public class MarshallingTestUtil {
         
     }
 
+    /**
+     * Retrieves the base and test objects of a snapshot: the base and test marshalled data is unmarshalled, unless 
+     * it's identical or it can be compared in the wire format, in which case the comparison is done here.
+     * 
+     * @return The unmarshalled base and test objects, or null if there's nothing (more) to compare.
+     */
+    private UnmarshalledSnapshots unmarshallSnapshots(String testMethodVer, MarshalledData baseMarshalledData, MarshalledData testMarshalledData,
+            String baseDbVersion, List<String> errors, AtomicInteger identicalSnapshots) { 
+        logger.trace("Comparing marshalled info for " + testMethodVer);
+        
+        // Identical digests (from the index): no need to load the binary data
+        if( baseMarshalledData != null && haveIdenticalDigests(baseMarshalledData, testMarshalledData) ) { 
+            logger.trace("Marshalled data for " + testMethodVer + " has the same digest in " + baseDbVersion);
+            identicalSnapshots.incrementAndGet();
+            return null;
+        }
+        
+        try { 
+            if( baseMarshalledData != null ) { 
+                loadBinaryData(baseMarshalledData);
+            }
+            loadBinaryData(testMarshalledData);
+            return doUnmarshallSnapshots(testMethodVer, baseMarshalledData, testMarshalledData, 
+                    baseDbVersion, errors, identicalSnapshots);
+        }
+        finally { 
+            // the unmarshalled objects are kept until they've been compared, the binary data is no longer needed
+            unloadBinaryData(baseMarshalledData);
+            unloadBinaryData(testMarshalledData);
+        }
+    }
+    
+    /**
+     * @return Whether or not the digests of the marshalled data and of the serialized knowledge base (retrieved via the 
+     * {@link MarshalledDataIndex}) show that the given marshalled data is identical, in which case it doesn't have 
+     * to be loaded.
+     */
+    static boolean haveIdenticalDigests(MarshalledData baseMarshalledData, MarshalledData testMarshalledData) { 
+        if( baseMarshalledData.binaryDataDigest == null 
+                || ! baseMarshalledData.binaryDataDigest.equals(testMarshalledData.binaryDataDigest) 
+                || ! baseMarshalledData.binaryDataLength.equals(testMarshalledData.binaryDataLength)
+                || ! baseMarshalledData.marshalledObjectClassName.equals(testMarshalledData.marshalledObjectClassName) ) { 
+            return false;
+        }
+        if( baseMarshalledData.knowledgeBaseDigest == null ) { 
+            return testMarshalledData.knowledgeBaseDigest == null;
+        }
+        return baseMarshalledData.knowledgeBaseDigest.equals(testMarshalledData.knowledgeBaseDigest);
+    }
+    
+    private UnmarshalledSnapshots doUnmarshallSnapshots(String testMethodVer, MarshalledData baseMarshalledData, MarshalledData testMarshalledData,
+            String baseDbVersion, List<String> errors, AtomicInteger identicalSnapshots) { 
+        // Identical binary data unmarshalls to equal objects: skip unmarshalling and comparing them
+        if( baseMarshalledData != null 
+                && objectSpecificMarshallingActions.isBinaryDataEqual(baseMarshalledData, testMarshalledData) ) { 
+            logger.trace("Marshalled data for " + testMethodVer + " is identical in " + baseDbVersion);
+            identicalSnapshots.incrementAndGet();
+            return null;
+        }
+        
+        // Protobuf data that does not need to be compared semantically: compare it in the wire format
+        if( baseMarshalledData != null ) { 
+            ComparisonResult wireFormatResult = objectSpecificMarshallingActions.compareWireFormat(baseMarshalledData, testMarshalledData);
+            if( wireFormatResult != null ) { 
+                if( ! wireFormatResult.isSame() ) { 
+                    errors.add("Marshalled " + baseMarshalledData.marshalledObjectClassName + " data from " + baseDbVersion 
+                            + " is not equal to test marshalled data [" + testMethodVer + "]: " + wireFormatResult);
+                }
+                return null;
+            }
+        }
+        
+        Object baseObject = null;
+        // Base 
+        try { 
+            baseObject = objectSpecificMarshallingActions.unmarshallObject(baseMarshalledData);
+        }
+        catch( Exception e) {
+            String shortTestMethod = testMethodVer.substring(0, testMethodVer.indexOf(':')); 
+            shortTestMethod = shortTestMethod.substring( 
+                    shortTestMethod.substring(0, shortTestMethod.lastIndexOf('.')
+                    ).lastIndexOf('.')+1 );
+            
+            String shortTestMethodVer = shortTestMethod + testMethodVer.substring(testMethodVer.indexOf(':'));
+            logger.error( "[" + e.getClass().getSimpleName() + ": " + e.getMessage() + "] "
+            		+ "when unmarshalling [" + shortTestMethodVer + "] in " + baseDbVersion ); 
+            return null;
+        }
+       
+        Object testObject = null;
+        // Test
+        try { 
+            testObject = objectSpecificMarshallingActions.unmarshallObject(testMarshalledData);
+        }
+        catch( Exception e) {
+            fail("Unable to unmarshall " + baseDbVersion + " data: [" + e.getClass().getSimpleName() + ": " + e.getMessage() + "]");
+        }
+        
+        assertNotNull("Unmarshalled test data resulted in null object!", testObject);
+        assertNotNull("Unmarshalled base data resulted in null object!", baseObject);
+        
+        return new UnmarshalledSnapshots(baseMarshalledData, baseObject, testObject);
+    }
+    
+    private void compareSnapshots(CompareViaReflectionUtil compareUtil, UnmarshalledSnapshots snapshots, 
+            String baseDbVersion, List<String> errors) { 
+        ComparisonResult result = compareUtil.compareAll(snapshots.baseObject, snapshots.testObject);
+        if( ! result.isSame() ) { 
+            String errorMsg =  "Unmarshalled " + snapshots.baseObject.getClass().getSimpleName() 
+                + " object from " + baseDbVersion + " data is not equal to test unmarshalled object [" 
+                + snapshots.baseMarshalledData.getTestMethodAndSnapshotNum() + "]: " + result;
+            errors.add(errorMsg);
+        }
+    }
+    
+    /**
+     * Unmarshalls the snapshots in the unmarshalling threads, and compares the unmarshalled objects in the comparison 
+     * threads: see {@link #setPipelineThreads(int, int)}. Snapshots are unmarshalled while the previously unmarshalled 
+     * snapshots are being compared, but never more than {@link #setMaxQueuedSnapshots(int)} snapshots are unmarshalled
+     * (and kept in memory) before they've been compared.
+     * </p>
+     * The first failure (in any thread) stops the pipeline and is rethrown in this thread.
+     */
+    void compareSnapshotsInPipeline(final CompareViaReflectionUtil compareUtil, 
+            final Map<String, MarshalledData> testMarshalledDataSnapshotMap, final Map<String, MarshalledData> baseMarshalledDataSnapshotMap, 
+            final String baseDbVersion, final List<String> errors, final AtomicInteger identicalSnapshots) { 
+        ExecutorService unmarshallingExecutor = Executors.newFixedThreadPool(unmarshallingThreads);
+        final ExecutorService comparisonExecutor = Executors.newFixedThreadPool(comparisonThreads);
+        final Semaphore queuedSnapshots = new Semaphore(Math.max(1, maxQueuedSnapshots));
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        
+        try { 
+            for( final String testMethodVer : testMarshalledDataSnapshotMap.keySet() ) { 
+                queuedSnapshots.acquire();
+                if( failure.get() != null ) { 
+                    break;
+                }
+                unmarshallingExecutor.execute(new Runnable() {
+                    public void run() {
+                        boolean queued = false;
+                        try { 
+                            if( failure.get() != null ) { 
+                                return;
+                            }
+                            final UnmarshalledSnapshots snapshots = unmarshallSnapshots(testMethodVer, 
+                                    baseMarshalledDataSnapshotMap.get(testMethodVer), testMarshalledDataSnapshotMap.get(testMethodVer), 
+                                    baseDbVersion, errors, identicalSnapshots);
+                            if( snapshots != null ) { 
+                                comparisonExecutor.execute(new Runnable() {
+                                    public void run() {
+                                        try { 
+                                            if( failure.get() == null ) { 
+                                                compareSnapshots(compareUtil, snapshots, baseDbVersion, errors);
+                                            }
+                                        }
+                                        catch( Throwable t ) { 
+                                            failure.compareAndSet(null, t);
+                                        }
+                                        finally { 
+                                            queuedSnapshots.release();
+                                        }
+                                    }
+                                });
+                                queued = true;
+                            }
+                        }
+                        catch( Throwable t ) { 
+                            failure.compareAndSet(null, t);
+                        }
+                        finally { 
+                            if( ! queued ) { 
+                                queuedSnapshots.release();
+                            }
+                        }
+                    }
+                });
+            }
+            
+            // all comparisons have been handed to the comparison executor once the unmarshalling executor is done
+            unmarshallingExecutor.shutdown();
+            unmarshallingExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            comparisonExecutor.shutdown();
+            comparisonExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch( InterruptedException ie ) { 
+            Thread.currentThread().interrupt();
+            fail("Interrupted while comparing marshalled data from " + baseDbVersion);
+        }
+        finally { 
+            unmarshallingExecutor.shutdownNow();
+            comparisonExecutor.shutdownNow();
+        }
+        
+        Throwable t = failure.get();
+        if( t instanceof RuntimeException ) { 
+            throw (RuntimeException) t;
+        }
+        else if( t instanceof Error ) { 
+            throw (Error) t;
+        }
+        else if( t != null ) { 
+            throw new RuntimeException(t);
+        }
+    }
+    
+    void registerAction(MarshalledObjectSpecificActions marshalledObjectSpecificActions) { 
+        objectSpecificMarshallingActions.registerAction(marshalledObjectSpecificActions);
+    }
+    
+    /**
+     * @param unmarshallingThreads The number of threads that unmarshall the base and test data of snapshots.
+     * @param comparisonThreads The number of threads that compare the unmarshalled objects.
+     * If either is 0 (the default), the snapshots are unmarshalled and compared one after another, in the 
+     * calling thread: the {@link MarshalledObjectSpecificActions} have to be able to unmarshall data in 
+     * other (and multiple) threads in order to use a pipeline.
+     */
+    public void setPipelineThreads(int unmarshallingThreads, int comparisonThreads) { 
+        this.unmarshallingThreads = unmarshallingThreads;
+        this.comparisonThreads = comparisonThreads;
+    }
+    
+    /**
+     * @param maxQueuedSnapshots The maximum number of snapshots that are being unmarshalled or waiting to be 
+     * compared, which limits the number of unmarshalled objects kept in memory when a pipeline is used.
+     */
+    public void setMaxQueuedSnapshots(int maxQueuedSnapshots) { 
+        this.maxQueuedSnapshots = maxQueuedSnapshots;
+    }
+    
+    /**
+     * @param comparisonMemoSize The maximum number of pairs remembered by the {@link ComparisonMemo} used while 
+     * comparing the snapshots of a test (see {@link ComparisonMemo#ComparisonMemo(int)}), or 0 to not use a memo.
+     */
+    public void setComparisonMemoSize(int comparisonMemoSize) { 
+        this.comparisonMemoSize = comparisonMemoSize;
+    }
+    
+    private static class UnmarshalledSnapshots { 
+        
+        private final MarshalledData baseMarshalledData;
+        private final Object baseObject;
+        private final Object testObject;
+        
+        UnmarshalledSnapshots(MarshalledData baseMarshalledData, Object baseObject, Object testObject) { 
+            this.baseMarshalledData = baseMarshalledData;
+            this.baseObject = baseObject;
+            this.testObject = testObject;
+        }
+    }
+
     /**
      * This class extracts the following data structure: 
      * - For every test method in the given test class: 
@@ -13,11 +13,14 @@
  */
 package org.gimcrack.marshalling;
 
+import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.gimcrack.compare.ComparisonResult;
+import org.gimcrack.compare.ProtobufWireComparer;
 import org.gimcrack.marshalling.user.MarshalledObjectSpecificActions;
 
 @SuppressWarnings({"rawtypes", "unchecked"})
@@ -42,6 +45,58 @@ public class ObjectSpecificMarshallingActions {
         return specificAction.unmarshallObject(marshalledData);
     }
 
+    /**
+     * @return Whether or not the binary data of the given marshalled data is identical, either as is or after
+     * it's been canonicalized (see {@link InternalMarshalledObjectSpecificActions#canonicalizeBinaryData(byte[])}),
+     * in which case the unmarshalled objects are equal as well. The serialized knowledge bases (which are used 
+     * to unmarshall the data) have to be identical as well.
+     */
+    boolean isBinaryDataEqual(MarshalledData baseMarshalledData, MarshalledData testMarshalledData) {
+        if( baseMarshalledData.byteArray == null || testMarshalledData.byteArray == null ) { 
+            return false;
+        }
+        if( baseMarshalledData.marshalledObjectClassName == null 
+                || ! baseMarshalledData.marshalledObjectClassName.equals(testMarshalledData.marshalledObjectClassName) ) { 
+            return false;
+        }
+        if( ! Arrays.equals(baseMarshalledData.serializedKnowledgeBase, testMarshalledData.serializedKnowledgeBase) ) { 
+            return false;
+        }
+        if( Arrays.equals(baseMarshalledData.byteArray, testMarshalledData.byteArray) ) { 
+            return true;
+        }
+        MarshalledObjectSpecificActions specificAction = objectSpecificMarshallingActionMap.get(baseMarshalledData.marshalledObjectClassName);
+        if( specificAction == null ) { 
+            // unmarshalling will fail (and report) this
+            return false;
+        }
+        byte [] baseBinaryData = specificAction.canonicalizeBinaryData(baseMarshalledData.byteArray);
+        byte [] testBinaryData = specificAction.canonicalizeBinaryData(testMarshalledData.byteArray);
+        return Arrays.equals(baseBinaryData, testBinaryData);
+    }
+
+    /**
+     * @return The result of comparing the binary data of the given marshalled data in the protobuf wire format, or 
+     * null if the data has to be unmarshalled and compared 
+     * (see {@link InternalMarshalledObjectSpecificActions#getWireFormatComparer()}), which is also the case when 
+     * the serialized knowledge bases are not identical. 
+     */
+    ComparisonResult compareWireFormat(MarshalledData baseMarshalledData, MarshalledData testMarshalledData) {
+        MarshalledObjectSpecificActions specificAction = objectSpecificMarshallingActionMap.get(baseMarshalledData.marshalledObjectClassName);
+        if( specificAction == null 
+                || ! baseMarshalledData.marshalledObjectClassName.equals(testMarshalledData.marshalledObjectClassName) 
+                || ! Arrays.equals(baseMarshalledData.serializedKnowledgeBase, testMarshalledData.serializedKnowledgeBase) ) { 
+            return null;
+        }
+        ProtobufWireComparer wireFormatComparer = specificAction.getWireFormatComparer();
+        if( wireFormatComparer == null ) { 
+            return null;
+        }
+        return wireFormatComparer.compare(
+                specificAction.canonicalizeBinaryData(baseMarshalledData.byteArray), 
+                specificAction.canonicalizeBinaryData(testMarshalledData.byteArray));
+    }
+
     void initializeMarshalledData(MarshalledData marshalledData, Object marshalledClassInstance) {
         MarshalledObjectSpecificActions initializationAction = getSpecificActions(marshalledData.marshalledObjectClassName);
         ((InternalMarshalledObjectSpecificActions) initializationAction).internalInitializeMarshalledData(marshalledData, marshalledClassInstance);
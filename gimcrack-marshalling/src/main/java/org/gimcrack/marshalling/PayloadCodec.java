@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+/**
+ * Encodes (for example, compresses) the binary data of {@link MarshalledData} snapshots before it's stored, and
+ * decodes it when it's retrieved. The name of the codec is stored with the data, so that data can always be decoded
+ * with the codec that encoded it, regardless of the codec that is used when new data is stored.
+ * </p>
+ * Codecs are registered and selected via {@link PayloadCodecs}.
+ */
+public interface PayloadCodec {
+
+    /**
+     * @return The (unique) name of this codec, which is stored with the encoded data.
+     */
+    String getName();
+
+    byte [] encode(byte [] data);
+
+    byte [] decode(byte [] encodedData);
+
+}
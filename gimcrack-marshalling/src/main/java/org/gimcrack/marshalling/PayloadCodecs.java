@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * The registry of {@link PayloadCodec}s, and the codec with which new binary data is stored.
+ * </p>
+ * By default, binary data is stored as is (the "identity" codec). Use {@link #setDefaultCodec(String)} 
+ * with {@link DeflatePayloadCodec#NAME} (or the name of a registered codec) in order to compress the data 
+ * of new snapshots: data that has already been stored is still decoded with the codec that encoded it.
+ */
+public class PayloadCodecs {
+
+    public final static PayloadCodec IDENTITY = new PayloadCodec() {
+        
+        public String getName() {
+            return "identity";
+        }
+        
+        public byte[] encode(byte[] data) {
+            return data;
+        }
+        
+        public byte[] decode(byte[] encodedData) {
+            return encodedData;
+        }
+    };
+
+    private final static Map<String, PayloadCodec> codecs = new ConcurrentHashMap<String, PayloadCodec>();
+    private static volatile PayloadCodec defaultCodec = IDENTITY;
+
+    static { 
+        register(IDENTITY);
+        register(new DeflatePayloadCodec());
+        register(new DeflatePayloadCodec(DeflatePayloadCodec.FAST_NAME, Deflater.BEST_SPEED, null));
+    }
+
+    private PayloadCodecs() {
+        // static methods only
+    }
+
+    public static void register(PayloadCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * @param name The name of the codec, or null for the identity codec (data stored without a codec).
+     * @return The codec with the given name.
+     * @throws IllegalArgumentException If no codec has been registered with the given name.
+     */
+    public static PayloadCodec getCodec(String name) {
+        if( name == null ) { 
+            return IDENTITY;
+        }
+        PayloadCodec codec = codecs.get(name);
+        if( codec == null ) { 
+            throw new IllegalArgumentException("Payload codec \"" + name + "\" has not been registered!");
+        }
+        return codec;
+    }
+
+    /**
+     * @param name The name of the (registered) codec with which new binary data is stored.
+     */
+    public static void setDefaultCodec(String name) {
+        defaultCodec = getCodec(name);
+    }
+
+    public static PayloadCodec getDefaultCodec() {
+        return defaultCodec;
+    }
+
+    /**
+     * @return The name of the codec as stored with encoded data: null for the identity codec.
+     */
+    static String getStoredName(PayloadCodec codec) {
+        return codec == IDENTITY ? null : codec.getName();
+    }
+
+}
@@ -28,6 +28,7 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.transaction.Status;
 import javax.transaction.Synchronization;
+import javax.transaction.TransactionManager;
 import javax.transaction.UserTransaction;
 
 import org.slf4j.Logger;
@@ -43,6 +44,8 @@ public class UserTransactionProxy implements InvocationHandler {
     private final UserTransaction ut;
     private final EntityManagerFactory emf;
     private final ObjectSpecificMarshallingActions objectSpecificMarshallingActions;
+    private final MarshalledDataWriter writer;
+    private final int batchSize;
     
     /**
      * This method creates a proxy for either a {@link EntityManagerFactory} or a {@link EntityManager} instance. 
@@ -50,11 +53,30 @@ public class UserTransactionProxy implements InvocationHandler {
      * @return Object a proxy instance of the given object.
      */
     public static Object newInstance( EntityManagerFactory emf, ObjectSpecificMarshallingActions specificActions) {
+        return newInstance(emf, specificActions, null);
+    }
+    
+    /**
+     * @param writer The writer that persists the snapshots in the background once the transaction has been committed 
+     * (see {@link MarshalledDataWriter}), or null to persist them in the transaction that is committed.
+     */
+    public static Object newInstance( EntityManagerFactory emf, ObjectSpecificMarshallingActions specificActions, MarshalledDataWriter writer) {
+        return newInstance(emf, specificActions, writer, MarshalledData.DEFAULT_BATCH_SIZE);
+    }
+    
+    /**
+     * @param writer The writer that persists the snapshots in the background once the transaction has been committed 
+     * (see {@link MarshalledDataWriter}), or null to persist them in the transaction that is committed.
+     * @param batchSize The number of snapshots persisted per flush when a transaction is committed without a writer: 
+     * see {@link MarshalledData#persistAll(EntityManager, java.util.Collection, int)}.
+     */
+    public static Object newInstance( EntityManagerFactory emf, ObjectSpecificMarshallingActions specificActions, MarshalledDataWriter writer, 
+            int batchSize) {
         UserTransaction ut = findUserTransaction();
         return Proxy.newProxyInstance(
                 ut.getClass().getClassLoader(), 
                 getAllInterfaces(ut),
-                new UserTransactionProxy(ut, emf, specificActions));
+                new UserTransactionProxy(ut, emf, specificActions, writer, batchSize));
     }
     
     public static final String DEFAULT_USER_TRANSACTION_NAME = "java:comp/UserTransaction";
@@ -76,10 +98,13 @@ public class UserTransactionProxy implements InvocationHandler {
      * It saves the @{link {@link EntityManager} or {@link EntityManagerFactory} for use later. 
      * @param obj The object being proxied.
      */
-    private UserTransactionProxy(UserTransaction ut, EntityManagerFactory emf, ObjectSpecificMarshallingActions specificActions) { 
+    private UserTransactionProxy(UserTransaction ut, EntityManagerFactory emf, ObjectSpecificMarshallingActions specificActions, 
+            MarshalledDataWriter writer, int batchSize) { 
         this.ut = ut;
         this.emf = emf;
         this.objectSpecificMarshallingActions = specificActions;
+        this.writer = writer;
+        this.batchSize = Math.max(1, batchSize);
     }
     
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
@@ -103,11 +128,18 @@ public class UserTransactionProxy implements InvocationHandler {
             }
             
             String testMethodName = MarshallingTestUtil.getTestMethodName();
-            if( testMethodName != null ) { 
+            if( testMethodName != null && writer != null ) { 
+                // (the snapshots are only written if the commit below succeeds)
+                for( MarshalledData marshalledData : objectSpecificMarshallingActions.updateManagedObjects(testMethodName) ) { 
+                    writer.writeOnCommit(marshalledData);
+                }
+            }
+            else if( testMethodName != null ) { 
                 EntityManager em = emf.createEntityManager();
                 Set<MarshalledData> newMarshalledData = objectSpecificMarshallingActions.updateManagedObjects(testMethodName);
-                for( MarshalledData marshalledData : newMarshalledData ) { 
-                    em.persist(marshalledData);
+                if( ! newMarshalledData.isEmpty() ) { 
+                    // (the binary data is stored as payloads using the transaction manager that is proxied)
+                    MarshalledData.persistAll(em, newMarshalledData, batchSize, (TransactionManager) ut);
                 }
                 em.close();
             }
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.gimcrack.marshalling.user.MarshalledObjectSpecificActions;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ManagedObjectChangeDetectionTest {
+
+    private static class MarshalledHolder { 
+        private final long id;
+        private byte [] data;
+        
+        MarshalledHolder(long id, byte... data) { 
+            this.id = id;
+            this.data = data;
+        }
+    }
+    
+    private static class MarshalledHolderSpecific extends MarshalledObjectSpecificActions<MarshalledHolder, MarshalledHolder> {
+
+        private int serializations = 0;
+        
+        @Override
+        public Class<MarshalledHolder> getMarshalledObjectClass() {
+            return MarshalledHolder.class;
+        }
+
+        @Override
+        public byte[] getBinaryData(MarshalledHolder toMarshallClassInstance) {
+            ++serializations;
+            // the (serialized) data is a new array every time 
+            return toMarshallClassInstance.data.clone();
+        }
+
+        @Override
+        public Long getMarshalledObjectIndex(MarshalledHolder toMarshallClassInstance) {
+            return toMarshallClassInstance.id;
+        }
+
+        @Override
+        public MarshalledHolder unmarshallObject(MarshalledData marshalledData) throws Exception {
+            return new MarshalledHolder(marshalledData.marshalledObjectId, marshalledData.byteArray);
+        }
+    }
+    
+    private MarshalledHolderSpecific specific;
+    // (the package-private methods are not accessible via the subclass)
+    private InternalMarshalledObjectSpecificActions<MarshalledHolder, MarshalledHolder> actions;
+    
+    @Before
+    public void before() { 
+        specific = new MarshalledHolderSpecific();
+        actions = specific;
+        actions.lazyInitializeMaps();
+    }
+    
+    @Test
+    public void testChangeAcrossTransactionsIsDetected() { 
+        MarshalledHolder holder = new MarshalledHolder(1, (byte) 1);
+        
+        // first transaction: the object is found (and stays managed)
+        actions.addToManagedObjects(holder);
+        assertTrue("Unchanged", actions.updateManagedObjects("testMethod").isEmpty());
+        
+        // second transaction: the managed object is changed without going through the entity manager
+        holder.data = new byte [] { 2 };
+        int serializations = specific.serializations;
+        Set<MarshalledData> snapshots = actions.updateManagedObjects("testMethod");
+        assertEquals("Serialized once for the check and the snapshot", serializations + 1, specific.serializations);
+        assertEquals(1, snapshots.size());
+        MarshalledData snapshot = snapshots.iterator().next();
+        assertArrayEquals(new byte [] { 2 }, snapshot.byteArray);
+        assertEquals(Long.valueOf(1), snapshot.marshalledObjectId);
+        assertEquals("testMethod", snapshot.testMethodName);
+        
+        // third transaction: nothing changed
+        assertTrue("Unchanged", actions.updateManagedObjects("testMethod").isEmpty());
+    }
+    
+    @Test
+    public void testTouchedOnlyChangeDetection() { 
+        actions.setFullScanOnCommit(false);
+        MarshalledHolder holder = new MarshalledHolder(1, (byte) 1);
+        
+        actions.addToManagedObjects(holder);
+        assertTrue("Unchanged", actions.updateManagedObjects("testMethod").isEmpty());
+        
+        // not touched since the last commit: not checked
+        holder.data = new byte [] { 2 };
+        assertTrue("Not touched", actions.updateManagedObjects("testMethod").isEmpty());
+        
+        // touched again
+        actions.addToManagedObjects(holder);
+        assertEquals(1, actions.updateManagedObjects("testMethod").size());
+    }
+    
+    @Test
+    public void testDigestChangeDetection() { 
+        actions.setDigestChangeDetection(true);
+        MarshalledHolder holder = new MarshalledHolder(1, (byte) 1, (byte) 2);
+        
+        byte [] persistedData = actions.getAndSaveBinaryData(holder);
+        assertArrayEquals(new byte [] { 1, 2 }, persistedData);
+        assertTrue("Unchanged", actions.updateManagedObjects("testMethod").isEmpty());
+        
+        holder.data = new byte [] { 1, 3 };
+        Set<MarshalledData> snapshots = actions.updateManagedObjects("testMethod");
+        assertEquals(1, snapshots.size());
+        assertArrayEquals(new byte [] { 1, 3 }, snapshots.iterator().next().byteArray);
+        
+        // changed back to the data of an earlier snapshot: this is a new snapshot
+        holder.data = new byte [] { 1, 2 };
+        assertEquals(1, actions.updateManagedObjects("testMethod").size());
+        assertTrue("Unchanged", actions.updateManagedObjects("testMethod").isEmpty());
+        
+        // merged, with the data of the last snapshot
+        assertFalse(actions.updateMarshalledObjectData(holder, "testMethod"));
+        holder.data = new byte [] { 1, 2, 3 };
+        assertTrue(actions.updateMarshalledObjectData(holder, "testMethod"));
+    }
+    
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.gimcrack.marshalling.MarshallingTestUtil.haveIdenticalDigests;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MarshalledDataIndexTest {
+
+    private static MarshalledData createIndexedMarshalledData(byte [] byteArray, byte [] serializedKnowledgeBase) { 
+        MarshalledData marshalledData = new MarshalledData(1, "testMethod", 0, String.class.getName(), 1l);
+        marshalledData.byteArray = byteArray;
+        marshalledData.serializedKnowledgeBase = serializedKnowledgeBase;
+        return new MarshalledDataIndex(marshalledData).toMarshalledData();
+    }
+    
+    @Test
+    public void testIndexEntry() { 
+        MarshalledData marshalledData = new MarshalledData(3, "testMethod", 2, String.class.getName(), 7l);
+        marshalledData.byteArray = new byte [] { 1, 2, 3 };
+        marshalledData.serializedKnowledgeBase = new byte [] { 4, 5 };
+        
+        MarshalledData indexed = new MarshalledDataIndex(marshalledData).toMarshalledData();
+        assertEquals(marshalledData.id, indexed.id);
+        assertEquals(marshalledData.testMethodName, indexed.testMethodName);
+        assertEquals(marshalledData.snapshotNumber, indexed.snapshotNumber);
+        assertEquals(marshalledData.marshalledObjectClassName, indexed.marshalledObjectClassName);
+        assertEquals(marshalledData.marshalledObjectId, indexed.marshalledObjectId);
+        assertTrue("Binary data should be loaded lazily", indexed.lazyBinaryData);
+        assertNull(indexed.byteArray);
+        assertEquals(Integer.valueOf(3), indexed.binaryDataLength);
+        assertEquals(MarshalledPayload.digest(marshalledData.byteArray), indexed.binaryDataDigest);
+        assertEquals(MarshalledPayload.digest(marshalledData.serializedKnowledgeBase), indexed.knowledgeBaseDigest);
+        
+        // the digests of the stored payloads are reused
+        marshalledData.byteArrayDigest = "byteArrayDigest";
+        marshalledData.serializedKnowledgeBaseDigest = "knowledgeBaseDigest";
+        MarshalledDataIndex index = new MarshalledDataIndex(marshalledData);
+        assertEquals("byteArrayDigest", index.binaryDataDigest);
+        assertEquals("knowledgeBaseDigest", index.knowledgeBaseDigest);
+    }
+    
+    @Test
+    public void testIdenticalDigests() { 
+        byte [] data = { 1, 2, 3 };
+        MarshalledData base = createIndexedMarshalledData(data, new byte [] { 4, 5 });
+        
+        assertTrue("Identical", haveIdenticalDigests(base, createIndexedMarshalledData(data.clone(), new byte [] { 4, 5 })));
+        assertFalse("Different data", haveIdenticalDigests(base, createIndexedMarshalledData(new byte [] { 1, 2, 4 }, new byte [] { 4, 5 })));
+        assertFalse("Different knowledge base", haveIdenticalDigests(base, createIndexedMarshalledData(data.clone(), new byte [] { 4, 6 })));
+        assertFalse("Missing knowledge base", haveIdenticalDigests(base, createIndexedMarshalledData(data.clone(), null)));
+        
+        MarshalledData noKnowledgeBase = createIndexedMarshalledData(data, null);
+        assertFalse("Missing knowledge base", haveIdenticalDigests(noKnowledgeBase, base));
+        assertTrue("No knowledge bases", haveIdenticalDigests(noKnowledgeBase, createIndexedMarshalledData(data.clone(), null)));
+        
+        // not retrieved via the index
+        MarshalledData notIndexed = new MarshalledData(1, "testMethod", 0, String.class.getName(), 1l);
+        assertFalse("No digest", haveIdenticalDigests(notIndexed, notIndexed));
+    }
+    
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import bitronix.tm.TransactionManagerServices;
+
+public class MarshalledDataRetrievalTest {
+
+    @After
+    public void after() { 
+        MarshallingTestUtil.setRetrievalPageSize(MarshallingTestUtil.DEFAULT_RETRIEVAL_PAGE_SIZE);
+        TransactionManagerServices.getTransactionManager().shutdown();
+    }
+    
+    private static void persistIndex(EntityManager em, int id, String testMethodName, int snapshotNumber) { 
+        MarshalledData marshalledData = new MarshalledData(id * 10, testMethodName, snapshotNumber, String.class.getName(), 1l);
+        marshalledData.byteArray = new byte [] { (byte) id };
+        MarshalledDataIndex index = new MarshalledDataIndex(marshalledData);
+        index.id = id;
+        em.persist(index);
+    }
+    
+    @Test
+    public void testIndexIsRetrievedInKeysetPages() { 
+        RecordingEntityManagerFactory recorder = new RecordingEntityManagerFactory(MarshalledData.class, MarshalledDataIndex.class);
+        EntityManager em = recorder.getEntityManagerFactory().createEntityManager();
+        // (persisted out of order)
+        persistIndex(em, 5, "org.gimcrack.TestA.testOne", 3);
+        persistIndex(em, 1, "org.gimcrack.TestA.testOne", 0);
+        persistIndex(em, 2, "org.gimcrack.TestB.testTwo", 0);
+        persistIndex(em, 3, "org.gimcrack.TestA.testOne", 1);
+        persistIndex(em, 4, "org.gimcrack.TestA.testOne", 2);
+        persistIndex(em, 6, "org.gimcrack.TestA.testThree", 0);
+        
+        MarshallingTestUtil.setRetrievalPageSize(2);
+        List<MarshalledData> marshalledDataList 
+            = MarshallingTestUtil.retrieveMarshallingData(recorder.getEntityManagerFactory(), "org.gimcrack.TestA");
+        
+        List<Integer> ids = new ArrayList<Integer>();
+        for( MarshalledData marshalledData : marshalledDataList ) { 
+            ids.add(marshalledData.id);
+            assertTrue("Lazily loaded binary data", marshalledData.lazyBinaryData);
+            assertEquals(MarshalledPayload.digest(new byte [] { (byte) (marshalledData.id / 10) }), marshalledData.binaryDataDigest);
+        }
+        assertEquals("[10, 30, 40, 50, 60]", ids.toString());
+        
+        // 3 pages: the first without, and the others with the last id of the previous page
+        List<String> queries = new ArrayList<String>();
+        for( String call : recorder.getCalls() ) { 
+            if( call.startsWith("query:") ) { 
+                queries.add(call);
+            }
+        }
+        assertEquals(queries.toString(), 3, queries.size());
+        assertFalse(queries.get(0), queries.get(0).contains(":lastId"));
+        assertTrue(queries.get(1), queries.get(1).contains("i.id > :lastId"));
+        assertTrue(queries.get(2), queries.get(2).contains("i.id > :lastId"));
+    }
+    
+    private static void persistMarshalledData(EntityManager em, int id, String testMethodName, int snapshotNumber, byte data) { 
+        MarshalledData marshalledData = new MarshalledData(id, testMethodName, snapshotNumber, String.class.getName(), 1l);
+        marshalledData.byteArray = new byte [] { data };
+        marshalledData.lazyBinaryData = false;
+        em.persist(marshalledData);
+    }
+    
+    private static List<String> getQueries(RecordingEntityManagerFactory recorder) { 
+        List<String> queries = new ArrayList<String>();
+        for( String call : recorder.getCalls() ) { 
+            if( call.startsWith("query:") ) { 
+                queries.add(call);
+            }
+        }
+        return queries;
+    }
+    
+    @Test
+    public void testUnindexedDataIsLoadedFromItsOwnDatabase() { 
+        // without an index: the marshalled data is retrieved without its binary data
+        RecordingEntityManagerFactory baseRecorder = new RecordingEntityManagerFactory(MarshalledData.class);
+        EntityManager em = baseRecorder.getEntityManagerFactory().createEntityManager();
+        persistMarshalledData(em, 3, "org.gimcrack.TestA.testOne", 1, (byte) 3);
+        persistMarshalledData(em, 1, "org.gimcrack.TestA.testOne", 0, (byte) 1);
+        persistMarshalledData(em, 2, "org.gimcrack.TestB.testTwo", 0, (byte) 2);
+        // another database, with different data for the same ids
+        RecordingEntityManagerFactory testRecorder = new RecordingEntityManagerFactory(MarshalledData.class);
+        em = testRecorder.getEntityManagerFactory().createEntityManager();
+        persistMarshalledData(em, 1, "org.gimcrack.TestA.testOne", 0, (byte) 11);
+        persistMarshalledData(em, 3, "org.gimcrack.TestA.testOne", 1, (byte) 13);
+        
+        MarshallingTestUtil.setRetrievalPageSize(1);
+        List<MarshalledData> marshalledDataList 
+            = MarshallingTestUtil.retrieveMarshallingData(baseRecorder.getEntityManagerFactory(), "org.gimcrack.TestA");
+        
+        List<Integer> ids = new ArrayList<Integer>();
+        for( MarshalledData marshalledData : marshalledDataList ) { 
+            ids.add(marshalledData.id);
+            assertTrue("Lazily loaded binary data", marshalledData.lazyBinaryData);
+            assertNull(marshalledData.byteArray);
+            assertSame(baseRecorder.getEntityManagerFactory(), marshalledData.sourceEntityManagerFactory);
+        }
+        assertEquals("[1, 3]", ids.toString());
+        
+        // 3 pages (the last one empty): the first without, and the others with the last id of the previous page
+        List<String> queries = getQueries(baseRecorder);
+        assertEquals(queries.toString(), 3, queries.size());
+        for( String query : queries ) { 
+            assertTrue(query, query.startsWith("query:SELECT new " + MarshalledData.class.getName() + "(m.id, "));
+        }
+        assertFalse(queries.get(0), queries.get(0).contains(":lastId"));
+        assertTrue(queries.get(1), queries.get(1).contains("m.id > :lastId"));
+        assertTrue(queries.get(2), queries.get(2).contains("m.id > :lastId"));
+        
+        // the binary data is loaded from the database the marshalled data was retrieved from
+        MarshallingTestUtil.loadBinaryData(marshalledDataList.get(0));
+        assertArrayEquals(new byte [] { 1 }, marshalledDataList.get(0).byteArray);
+        MarshallingTestUtil.loadBinaryData(testRecorder.getEntityManagerFactory(), marshalledDataList.get(1));
+        assertArrayEquals(new byte [] { 3 }, marshalledDataList.get(1).byteArray);
+        
+        queries = getQueries(baseRecorder);
+        assertEquals(queries.toString(), 5, queries.size());
+        assertTrue(queries.get(3), queries.get(3).startsWith("query:SELECT m.byteArray, m.serializedKnowledgeBase, "));
+        assertTrue(queries.get(4), queries.get(4).startsWith("query:SELECT m.byteArray, m.serializedKnowledgeBase, "));
+        assertTrue(getQueries(testRecorder).toString(), getQueries(testRecorder).isEmpty());
+    }
+    
+}
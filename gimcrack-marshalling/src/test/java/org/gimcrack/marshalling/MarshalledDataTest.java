@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import bitronix.tm.TransactionManagerServices;
+
+public class MarshalledDataTest {
+
+    @After
+    public void after() { 
+        PayloadCodecs.setDefaultCodec(null);
+        TransactionManagerServices.getTransactionManager().shutdown();
+    }
+    
+    private static MarshalledData createMarshalledData(int snapshotNumber, byte... data) { 
+        MarshalledData marshalledData = new MarshalledData(null, "testMethod", snapshotNumber, String.class.getName(), 1l);
+        marshalledData.lazyBinaryData = false;
+        marshalledData.byteArray = data;
+        marshalledData.serializedKnowledgeBase = new byte [] { 9, 9, 9 };
+        return marshalledData;
+    }
+    
+    @Test
+    public void testPersistAllInBatches() { 
+        RecordingEntityManagerFactory recorder = new RecordingEntityManagerFactory(MarshalledData.class);
+        EntityManager em = recorder.getEntityManagerFactory().createEntityManager();
+        
+        List<MarshalledData> marshalledDataList = new ArrayList<MarshalledData>();
+        for( int i = 0; i < 5; ++i ) { 
+            marshalledDataList.add(createMarshalledData(i, (byte) i));
+        }
+        MarshalledData.persistAll(em, marshalledDataList, 2);
+        
+        assertEquals(Arrays.asList(
+                "persist:MarshalledData", "persist:MarshalledData", "flush", "clear", 
+                "persist:MarshalledData", "persist:MarshalledData", "flush", "clear", 
+                "persist:MarshalledData", "flush", "clear"), 
+                recorder.getCalls());
+        assertEquals(marshalledDataList, recorder.getPersisted());
+        
+        // a full last batch is not flushed twice
+        recorder = new RecordingEntityManagerFactory(MarshalledData.class);
+        MarshalledData.persistAll(recorder.getEntityManagerFactory().createEntityManager(), marshalledDataList.subList(0, 2), 2);
+        assertEquals(Arrays.asList("persist:MarshalledData", "persist:MarshalledData", "flush", "clear"), recorder.getCalls());
+    }
+    
+    @Test
+    public void testPersistWithCodec() { 
+        RecordingEntityManagerFactory recorder = new RecordingEntityManagerFactory(MarshalledData.class, MarshalledDataIndex.class);
+        EntityManager em = recorder.getEntityManagerFactory().createEntityManager();
+        PayloadCodecs.setDefaultCodec(DeflatePayloadCodec.NAME);
+        
+        byte [] data = new byte [1000];
+        Arrays.fill(data, (byte) 7);
+        MarshalledData marshalledData = createMarshalledData(0, data.clone());
+        marshalledData.id = 3;
+        MarshalledData.persist(em, marshalledData);
+        
+        assertEquals(DeflatePayloadCodec.NAME, marshalledData.payloadCodec);
+        assertFalse("Encoded", Arrays.equals(data, marshalledData.byteArray));
+        MarshalledDataIndex index = (MarshalledDataIndex) recorder.getPersisted().get(1);
+        assertEquals(Integer.valueOf(3), index.marshalledDataId);
+        assertEquals("Digest of the unencoded data", MarshalledPayload.digest(data), index.binaryDataDigest);
+        
+        MarshalledData.decodeBinaryData(em, marshalledData);
+        assertArrayEquals(data, marshalledData.byteArray);
+        assertArrayEquals(new byte [] { 9, 9, 9 }, marshalledData.serializedKnowledgeBase);
+        assertNull(marshalledData.payloadCodec);
+    }
+    
+    @Test
+    public void testPersistAsPayloads() { 
+        RecordingEntityManagerFactory recorder = new RecordingEntityManagerFactory(MarshalledData.class, MarshalledPayload.class);
+        EntityManager em = recorder.getEntityManagerFactory().createEntityManager();
+        
+        MarshalledData first = createMarshalledData(0, (byte) 1, (byte) 2);
+        MarshalledData second = createMarshalledData(1, (byte) 1, (byte) 2);
+        MarshalledData.persistAll(em, Arrays.asList(first, second), 10, TransactionManagerServices.getTransactionManager());
+        
+        // the data and the (shared) knowledge base are stored (and checked) once
+        assertEquals(Arrays.asList("persist:MarshalledPayload", "persist:MarshalledPayload", 
+                "persist:MarshalledData", "persist:MarshalledData", "flush", "clear"), 
+                filterCalls(recorder.getCalls()));
+        assertEquals(2, Collections.frequency(recorder.getCalls(), "count"));
+        assertNull(first.byteArray);
+        assertNull(first.serializedKnowledgeBase);
+        assertEquals(first.byteArrayDigest, second.byteArrayDigest);
+        
+        MarshalledData.decodeBinaryData(em, second);
+        assertArrayEquals(new byte [] { 1, 2 }, second.byteArray);
+        assertArrayEquals(new byte [] { 9, 9, 9 }, second.serializedKnowledgeBase);
+    }
+    
+    @Test
+    public void testPayloadsAreOnlyStoredOnCommit() { 
+        RecordingEntityManagerFactory recorder = new RecordingEntityManagerFactory(MarshalledData.class, MarshalledPayload.class);
+        EntityManager em = recorder.getEntityManagerFactory().createEntityManager();
+        
+        // snapshots persisted with the entity manager of the application
+        MarshalledData marshalledData = createMarshalledData(0, (byte) 1, (byte) 2);
+        MarshalledData.persist(em, marshalledData);
+        assertEquals(Arrays.asList("persist:MarshalledData"), recorder.getCalls());
+        assertArrayEquals(new byte [] { 1, 2 }, marshalledData.byteArray);
+        assertNull(marshalledData.byteArrayDigest);
+        
+        // snapshots persisted on commit without a transaction manager
+        recorder = new RecordingEntityManagerFactory(MarshalledData.class, MarshalledPayload.class);
+        em = recorder.getEntityManagerFactory().createEntityManager();
+        MarshalledData.persistAll(em, Arrays.asList(createMarshalledData(0, (byte) 1)), 10);
+        assertEquals(Arrays.asList("persist:MarshalledData", "flush", "clear"), recorder.getCalls());
+        
+        // snapshots persisted on commit in a resource-local persistence unit
+        recorder = new RecordingEntityManagerFactory(MarshalledData.class, MarshalledPayload.class);
+        recorder.setResourceLocal(true);
+        em = recorder.getEntityManagerFactory().createEntityManager();
+        marshalledData = createMarshalledData(0, (byte) 1);
+        MarshalledData.persistAll(em, Arrays.asList(marshalledData), 10, TransactionManagerServices.getTransactionManager());
+        assertEquals(Arrays.asList("persist:MarshalledData", "flush", "clear"), recorder.getCalls());
+        assertArrayEquals(new byte [] { 1 }, marshalledData.byteArray);
+    }
+    
+    /**
+     * @return The given calls, without the calls of the entity managers that stored the payloads.
+     */
+    private static List<String> filterCalls(List<String> calls) { 
+        List<String> filteredCalls = new ArrayList<String>();
+        for( int i = 0; i < calls.size(); ++i ) { 
+            String call = calls.get(i);
+            if( call.equals("count") || call.equals("close") ) { 
+                continue;
+            }
+            if( call.equals("persist:MarshalledPayload") ) { 
+                // followed by the flush of the payload
+                ++i;
+            }
+            filteredCalls.add(call);
+        }
+        return filteredCalls;
+    }
+    
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import bitronix.tm.TransactionManagerServices;
+
+public class MarshalledDataWriterTest {
+
+    private RecordingEntityManagerFactory recorder;
+    private MarshalledDataWriter writer;
+    
+    @Before
+    public void before() { 
+        recorder = new RecordingEntityManagerFactory(MarshalledData.class);
+        writer = new MarshalledDataWriter(recorder.getEntityManagerFactory(), 2, 10);
+    }
+    
+    @After
+    public void after() { 
+        try { 
+            writer.close();
+        }
+        finally { 
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+    
+    private static MarshalledData createMarshalledData(int snapshotNumber) { 
+        MarshalledData marshalledData = new MarshalledData(null, "testMethod", snapshotNumber, String.class.getName(), 1l);
+        marshalledData.byteArray = new byte [] { (byte) snapshotNumber };
+        return marshalledData;
+    }
+    
+    @Test
+    public void testFlushWritesQueuedSnapshots() { 
+        byte [] data = { 1, 2, 3 };
+        MarshalledData marshalledData = createMarshalledData(0);
+        marshalledData.byteArray = data;
+        writer.write(marshalledData);
+        for( int i = 1; i < 5; ++i ) { 
+            writer.write(createMarshalledData(i));
+        }
+        // the snapshot is a copy
+        data[0] = 0;
+        
+        writer.flush();
+        List<Object> persisted = recorder.getPersisted();
+        assertEquals(5, persisted.size());
+        for( int i = 0; i < 5; ++i ) { 
+            assertEquals(Integer.valueOf(i), ((MarshalledData) persisted.get(i)).snapshotNumber);
+        }
+        assertNotSame(data, ((MarshalledData) persisted.get(0)).byteArray);
+        assertEquals(1, ((MarshalledData) persisted.get(0)).byteArray[0]);
+    }
+    
+    @Test
+    public void testCloseWritesQueuedSnapshots() { 
+        for( int i = 0; i < 5; ++i ) { 
+            writer.write(createMarshalledData(i));
+        }
+        writer.close();
+        assertEquals(5, recorder.getPersisted().size());
+        
+        try { 
+            writer.write(createMarshalledData(5));
+            fail("The writer has been closed.");
+        }
+        catch( IllegalStateException ise ) { 
+            // expected
+        }
+    }
+    
+    @Test
+    public void testFailureIsReportedByFlush() { 
+        recorder.setPersistFailure(new IllegalStateException("Database unavailable"));
+        writer.write(createMarshalledData(0));
+        try { 
+            writer.flush();
+            fail("The failure to write the snapshot should have been reported.");
+        }
+        catch( AssertionError ae ) { 
+            assertTrue(ae.getMessage(), ae.getMessage().contains("Database unavailable"));
+        }
+        
+        // the failure is only reported once
+        recorder.setPersistFailure(null);
+        writer.write(createMarshalledData(1));
+        writer.flush();
+        assertEquals(1, recorder.getPersisted().size());
+    }
+    
+    @Test
+    public void testSnapshotsAreWrittenWhenCommitted() throws Exception { 
+        TransactionManager txm = TransactionManagerServices.getTransactionManager();
+        txm.begin();
+        writer.writeOnCommit(createMarshalledData(0));
+        writer.writeOnCommit(createMarshalledData(1));
+        writer.flush();
+        assertEquals("Written before the commit", 0, recorder.getPersisted().size());
+        txm.commit();
+        
+        writer.flush();
+        assertEquals(2, recorder.getPersisted().size());
+    }
+    
+    @Test
+    public void testSnapshotsAreDroppedWhenRolledBack() throws Exception { 
+        TransactionManager txm = TransactionManagerServices.getTransactionManager();
+        txm.begin();
+        writer.writeOnCommit(createMarshalledData(0));
+        txm.rollback();
+        
+        txm.begin();
+        writer.writeOnCommit(createMarshalledData(1));
+        txm.commit();
+        
+        writer.flush();
+        List<Object> persisted = recorder.getPersisted();
+        assertEquals(1, persisted.size());
+        assertEquals(Integer.valueOf(1), ((MarshalledData) persisted.get(0)).snapshotNumber);
+        
+        // without a transaction, the snapshot is written right away
+        writer.writeOnCommit(createMarshalledData(2));
+        writer.flush();
+        assertEquals(2, recorder.getPersisted().size());
+    }
+    
+}
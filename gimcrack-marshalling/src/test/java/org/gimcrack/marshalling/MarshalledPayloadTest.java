@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import bitronix.tm.TransactionManagerServices;
+
+public class MarshalledPayloadTest {
+
+    private final Set<String> storedDigests = new HashSet<String>();
+    
+    @After
+    public void after() { 
+        TransactionManagerServices.getTransactionManager().shutdown();
+    }
+    
+    private String store(EntityManager em, byte [] data, PayloadCodec codec) { 
+        return MarshalledPayload.store(em, TransactionManagerServices.getTransactionManager(), data, codec, storedDigests);
+    }
+    
+    @Test
+    public void testPayloadsAreStoredOnce() { 
+        RecordingEntityManagerFactory recorder = new RecordingEntityManagerFactory(MarshalledPayload.class);
+        EntityManager em = recorder.getEntityManagerFactory().createEntityManager();
+        
+        byte [] data = { 1, 2, 3 };
+        String digest = store(em, data, PayloadCodecs.IDENTITY);
+        assertEquals(MarshalledPayload.digest(data), digest);
+        assertEquals(digest, store(em, data.clone(), PayloadCodecs.IDENTITY));
+        assertEquals(1, recorder.countPayloads(digest));
+        assertTrue("Stored", MarshalledPayload.isStored(em, digest));
+        assertTrue(storedDigests.contains(digest));
+        
+        // a payload stored by another batch is only checked
+        storedDigests.clear();
+        assertEquals(digest, store(em, data.clone(), PayloadCodecs.IDENTITY));
+        assertEquals(1, recorder.countPayloads(digest));
+        
+        String otherDigest = store(em, new byte [] { 1, 2 }, PayloadCodecs.IDENTITY);
+        assertFalse(digest.equals(otherDigest));
+        assertEquals(1, recorder.countPayloads(otherDigest));
+        assertEquals(2, recorder.getPersisted().size());
+        
+        assertNull(store(em, null, PayloadCodecs.IDENTITY));
+    }
+    
+    @Test
+    public void testPayloadStoredByConcurrentWriter() { 
+        // the payload is inserted by a concurrent writer, so that this insert fails
+        RecordingEntityManagerFactory recorder = new RecordingEntityManagerFactory(MarshalledPayload.class) { 
+            protected void persist(Object entity) {
+                super.persist(entity);
+                throw new PersistenceException("Unique index or primary key violation");
+            }
+        };
+        EntityManager em = recorder.getEntityManagerFactory().createEntityManager();
+        
+        byte [] data = { 1, 2, 3 };
+        assertEquals(MarshalledPayload.digest(data), store(em, data, PayloadCodecs.IDENTITY));
+    }
+    
+    @Test
+    public void testPayloadThatCanNotBeStored() { 
+        RecordingEntityManagerFactory recorder = new RecordingEntityManagerFactory(MarshalledPayload.class);
+        recorder.setPersistFailure(new PersistenceException("Database unavailable"));
+        EntityManager em = recorder.getEntityManagerFactory().createEntityManager();
+        
+        try { 
+            store(em, new byte [] { 1, 2, 3 }, PayloadCodecs.IDENTITY);
+            fail("The payload has not been stored.");
+        }
+        catch( IllegalStateException ise ) { 
+            assertTrue(ise.getMessage(), ise.getMessage().contains("Database unavailable"));
+        }
+    }
+    
+    @Test
+    public void testTransactionIsResumed() throws Exception { 
+        RecordingEntityManagerFactory recorder = new RecordingEntityManagerFactory(MarshalledPayload.class);
+        EntityManager em = recorder.getEntityManagerFactory().createEntityManager();
+        
+        TransactionManager txm = TransactionManagerServices.getTransactionManager();
+        txm.begin();
+        Transaction transaction = txm.getTransaction();
+        try { 
+            store(em, new byte [] { 1, 2, 3 }, PayloadCodecs.IDENTITY);
+            assertSame(transaction, txm.getTransaction());
+        }
+        finally { 
+            txm.rollback();
+        }
+        // the payload has been committed in its own transaction
+        assertEquals(1, recorder.getPersisted().size());
+    }
+    
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ObjectSpecificMarshallingActionsTest {
+
+    private static MarshalledData createMarshalledData(byte [] byteArray, byte [] serializedKnowledgeBase) { 
+        MarshalledData marshalledData = new MarshalledData(1, "testMethod", 0, String.class.getName(), 1l);
+        marshalledData.byteArray = byteArray;
+        marshalledData.serializedKnowledgeBase = serializedKnowledgeBase;
+        return marshalledData;
+    }
+    
+    @Test
+    public void testBinaryDataEqualRequiresIdenticalKnowledgeBases() { 
+        ObjectSpecificMarshallingActions actions = new ObjectSpecificMarshallingActions();
+        byte [] data = { 1, 2, 3 };
+        
+        MarshalledData base = createMarshalledData(data, new byte [] { 4, 5 });
+        assertTrue("Identical data", actions.isBinaryDataEqual(base, createMarshalledData(data.clone(), new byte [] { 4, 5 })));
+        assertFalse("Different knowledge base", actions.isBinaryDataEqual(base, createMarshalledData(data.clone(), new byte [] { 4, 6 })));
+        assertFalse("Missing knowledge base", actions.isBinaryDataEqual(base, createMarshalledData(data.clone(), null)));
+        
+        MarshalledData noKnowledgeBase = createMarshalledData(data, null);
+        assertTrue("No knowledge bases", actions.isBinaryDataEqual(noKnowledgeBase, createMarshalledData(data.clone(), null)));
+        assertFalse("Different data", actions.isBinaryDataEqual(noKnowledgeBase, createMarshalledData(new byte [] { 1, 2 }, null)));
+        
+        MarshalledData otherClass = createMarshalledData(data.clone(), null);
+        otherClass.marshalledObjectClassName = Integer.class.getName();
+        assertFalse("Different class", actions.isBinaryDataEqual(noKnowledgeBase, otherClass));
+    }
+    
+    @Test
+    public void testWireFormatIsNotComparedWithoutActions() { 
+        ObjectSpecificMarshallingActions actions = new ObjectSpecificMarshallingActions();
+        byte [] data = { 1, 2, 3 };
+        assertNull(actions.compareWireFormat(createMarshalledData(data, null), createMarshalledData(data, null)));
+    }
+    
+}
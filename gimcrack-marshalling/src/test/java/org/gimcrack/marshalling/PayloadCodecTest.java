@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class PayloadCodecTest {
+
+    /**
+     * @return Data that looks like a snapshot: a common header followed by (compressible) variable data.
+     */
+    private static byte [] createSnapshotData(int seed) { 
+        StringBuilder data = new StringBuilder("org.drools.core.marshalling.impl.ProtobufMessages$KnowledgeSession:");
+        Random random = new Random(seed);
+        for( int i = 0; i < 50; ++i ) { 
+            data.append("fact-").append(random.nextInt(1000)).append(';');
+        }
+        return data.toString().getBytes();
+    }
+    
+    private static void assertDecodingFails(PayloadCodec codec, byte [] encodedData) { 
+        try { 
+            codec.decode(encodedData);
+            fail("Decoding should fail");
+        }
+        catch( IllegalStateException ise ) { 
+            // expected
+        }
+    }
+    
+    @Test
+    public void testRoundTrip() { 
+        byte [] data = createSnapshotData(0);
+        for( String name : new String [] { "identity", DeflatePayloadCodec.NAME, DeflatePayloadCodec.FAST_NAME } ) { 
+            PayloadCodec codec = PayloadCodecs.getCodec(name);
+            assertEquals(name, codec.getName());
+            assertArrayEquals(name, data, codec.decode(codec.encode(data)));
+            assertArrayEquals(name, new byte [0], codec.decode(codec.encode(new byte [0])));
+        }
+        
+        PayloadCodec deflate = PayloadCodecs.getCodec(DeflatePayloadCodec.NAME);
+        assertTrue("Compressed", deflate.encode(data).length < data.length);
+        
+        // random data (which doesn't compress) that is larger than the buffers used
+        byte [] randomData = new byte [100 * 1024];
+        new Random(1).nextBytes(randomData);
+        assertArrayEquals(randomData, deflate.decode(deflate.encode(randomData)));
+    }
+    
+    @Test
+    public void testDictionary() { 
+        List<byte []> samples = new ArrayList<byte[]>();
+        for( int i = 0; i < 4; ++i ) { 
+            samples.add(createSnapshotData(i));
+        }
+        byte [] dictionary = DeflatePayloadCodec.createDictionary(samples, DeflatePayloadCodec.MAX_DICTIONARY_SIZE);
+        
+        PayloadCodec codec = new DeflatePayloadCodec("deflate-test-dictionary", Deflater.BEST_COMPRESSION, dictionary);
+        PayloadCodec withoutDictionary = new DeflatePayloadCodec("deflate-test", Deflater.BEST_COMPRESSION, null);
+        byte [] data = createSnapshotData(5);
+        byte [] encodedData = codec.encode(data);
+        assertArrayEquals(data, codec.decode(encodedData));
+        assertTrue("Better compression with the dictionary", encodedData.length < withoutDictionary.encode(data).length);
+        
+        // the dictionary is needed to decode the data
+        assertDecodingFails(withoutDictionary, encodedData);
+        PayloadCodec otherDictionary = new DeflatePayloadCodec("deflate-test-other", Deflater.BEST_COMPRESSION, new byte [] { 1, 2, 3 });
+        assertDecodingFails(otherDictionary, encodedData);
+    }
+    
+    @Test
+    public void testCreateDictionary() { 
+        byte [] first = new byte [10];
+        Arrays.fill(first, (byte) 1);
+        byte [] second = new byte [2];
+        Arrays.fill(second, (byte) 2);
+        byte [] third = new byte [10];
+        Arrays.fill(third, (byte) 3);
+        
+        // every sample gets an equal share: the share of a short sample is left to the others
+        byte [] dictionary = DeflatePayloadCodec.createDictionary(Arrays.asList(first, second, third), 12);
+        assertArrayEquals(new byte [] { 1, 1, 1, 1, 2, 2, 3, 3, 3, 3, 3, 3 }, dictionary);
+        
+        assertEquals(0, DeflatePayloadCodec.createDictionary(new ArrayList<byte[]>(), 12).length);
+    }
+    
+    @Test
+    public void testInvalidInput() { 
+        PayloadCodec deflate = PayloadCodecs.getCodec(DeflatePayloadCodec.NAME);
+        byte [] encodedData = deflate.encode(createSnapshotData(0));
+        
+        assertDecodingFails(deflate, Arrays.copyOf(encodedData, encodedData.length / 2));
+        assertDecodingFails(deflate, new byte [0]);
+        assertDecodingFails(deflate, "not deflated".getBytes());
+    }
+    
+    @Test
+    public void testRegistry() { 
+        assertSame(PayloadCodecs.IDENTITY, PayloadCodecs.getCodec(null));
+        try { 
+            PayloadCodecs.getCodec("unknown");
+            fail("The codec has not been registered");
+        }
+        catch( IllegalArgumentException iae ) { 
+            assertTrue(iae.getMessage(), iae.getMessage().contains("unknown"));
+        }
+        try { 
+            PayloadCodecs.setDefaultCodec("unknown");
+            fail("The codec has not been registered");
+        }
+        catch( IllegalArgumentException iae ) { 
+            // expected
+        }
+        assertSame(PayloadCodecs.IDENTITY, PayloadCodecs.getDefaultCodec());
+        
+        PayloadCodec codec = new DeflatePayloadCodec("deflate-test-registry", Deflater.BEST_SPEED, null);
+        PayloadCodecs.register(codec);
+        assertSame(codec, PayloadCodecs.getCodec("deflate-test-registry"));
+        assertEquals("deflate-test-registry", PayloadCodecs.getStoredName(codec));
+        assertEquals(null, PayloadCodecs.getStoredName(PayloadCodecs.IDENTITY));
+    }
+    
+}
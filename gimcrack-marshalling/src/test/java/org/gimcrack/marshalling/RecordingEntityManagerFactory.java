@@ -0,0 +1,289 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.NoResultException;
+import javax.persistence.Query;
+import javax.persistence.metamodel.Metamodel;
+
+/**
+ * An {@link EntityManagerFactory} (and {@link EntityManager}) that records the calls made to it instead of 
+ * persisting anything: only persist(), flush(), clear(), close(), getMetamodel(), getTransaction(), finding and 
+ * counting the stored {@link MarshalledPayload}s, the (keyset paged) queries of the {@link MarshalledDataIndex} and 
+ * of the {@link MarshalledData} without its binary data, and the query of the binary data of a {@link MarshalledData} 
+ * row are supported. The entity managers are JTA entity managers, unless the factory is made resource-local.
+ */
+public class RecordingEntityManagerFactory implements InvocationHandler {
+
+    private final Set<Class<?>> entityClasses;
+    private final EntityManagerFactory entityManagerFactory;
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Object> persisted = Collections.synchronizedList(new ArrayList<Object>());
+    private volatile RuntimeException persistFailure = null;
+    private volatile boolean resourceLocal = false;
+    
+    /**
+     * @param entityClasses The entity classes in the persistence unit.
+     */
+    public RecordingEntityManagerFactory(Class<?>... entityClasses) { 
+        this.entityClasses = new HashSet<Class<?>>(Arrays.asList(entityClasses));
+        this.entityManagerFactory = (EntityManagerFactory) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                new Class [] { EntityManagerFactory.class }, this);
+    }
+    
+    public EntityManagerFactory getEntityManagerFactory() { 
+        return entityManagerFactory;
+    }
+    
+    /**
+     * @return The calls made to the entity managers, for example "persist:MarshalledData", "flush" or "clear".
+     */
+    public List<String> getCalls() {
+        synchronized( calls ) { 
+            return new ArrayList<String>(calls);
+        }
+    }
+    
+    public List<Object> getPersisted() {
+        synchronized( persisted ) { 
+            return new ArrayList<Object>(persisted);
+        }
+    }
+    
+    /**
+     * @param failure The exception thrown by persist(), or null if it should succeed.
+     */
+    public void setPersistFailure(RuntimeException failure) { 
+        this.persistFailure = failure;
+    }
+    
+    /**
+     * @param resourceLocal Whether the entity managers are resource-local (true) or JTA (false, the default) entity managers.
+     */
+    public void setResourceLocal(boolean resourceLocal) { 
+        this.resourceLocal = resourceLocal;
+    }
+    
+    /**
+     * Records the given entity as persisted: this can be overridden to simulate failures.
+     */
+    protected void persist(Object entity) { 
+        if( persistFailure != null ) { 
+            throw persistFailure;
+        }
+        calls.add("persist:" + entity.getClass().getSimpleName());
+        persisted.add(entity);
+    }
+    
+    /**
+     * @return The number of persisted payloads with the given digest.
+     */
+    public int countPayloads(String digest) { 
+        int count = 0;
+        for( Object entity : getPersisted() ) { 
+            if( entity instanceof MarshalledPayload && ((MarshalledPayload) entity).digest.equals(digest) ) { 
+                ++count;
+            }
+        }
+        return count;
+    }
+    
+    private List<MarshalledDataIndex> queryIndex(String prefix, Integer lastId, int maxResults) { 
+        List<MarshalledDataIndex> result = new ArrayList<MarshalledDataIndex>();
+        for( Object entity : getPersisted() ) { 
+            if( entity instanceof MarshalledDataIndex ) { 
+                MarshalledDataIndex index = (MarshalledDataIndex) entity;
+                if( (prefix == null || index.testMethodName.startsWith(prefix)) && (lastId == null || index.id > lastId) ) { 
+                    result.add(index);
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<MarshalledDataIndex>() {
+            public int compare(MarshalledDataIndex a, MarshalledDataIndex b) {
+                return a.id.compareTo(b.id);
+            }
+        });
+        return result.subList(0, Math.min(maxResults, result.size()));
+    }
+    
+    /**
+     * @return The persisted marshalled data, without the binary data (as the "SELECT new MarshalledData(..)" query does).
+     */
+    private List<MarshalledData> queryMarshalledData(String prefix, Integer lastId, int maxResults) { 
+        List<MarshalledData> result = new ArrayList<MarshalledData>();
+        for( Object entity : getPersisted() ) { 
+            if( entity instanceof MarshalledData ) { 
+                MarshalledData marshalledData = (MarshalledData) entity;
+                if( (prefix == null || marshalledData.testMethodName.startsWith(prefix)) && (lastId == null || marshalledData.id > lastId) ) { 
+                    result.add(new MarshalledData(marshalledData.id, marshalledData.testMethodName, marshalledData.snapshotNumber, 
+                            marshalledData.marshalledObjectClassName, marshalledData.marshalledObjectId));
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<MarshalledData>() {
+            public int compare(MarshalledData a, MarshalledData b) {
+                return a.id.compareTo(b.id);
+            }
+        });
+        return result.subList(0, Math.min(maxResults, result.size()));
+    }
+    
+    /**
+     * @return The binary data columns of the persisted marshalled data with the given id.
+     */
+    private Object [] queryBinaryData(Integer id) { 
+        for( Object entity : getPersisted() ) { 
+            if( entity instanceof MarshalledData && id.equals(((MarshalledData) entity).id) ) { 
+                MarshalledData marshalledData = (MarshalledData) entity;
+                return new Object [] { marshalledData.byteArray, marshalledData.serializedKnowledgeBase, 
+                        marshalledData.byteArrayDigest, marshalledData.serializedKnowledgeBaseDigest, marshalledData.payloadCodec };
+            }
+        }
+        throw new NoResultException("No MarshalledData with id " + id);
+    }
+    
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String methodName = method.getName();
+        if( "createEntityManager".equals(methodName) ) { 
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class [] { EntityManager.class }, this);
+        }
+        else if( "getEntityManagerFactory".equals(methodName) ) { 
+            return getEntityManagerFactory();
+        }
+        else if( "createQuery".equals(methodName) && ((String) args[0]).contains("COUNT(p) FROM MarshalledPayload") ) { 
+            calls.add("count");
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class [] { Query.class }, new InvocationHandler() {
+                private String digest;
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if( "setParameter".equals(method.getName()) ) { 
+                        digest = (String) args[1];
+                        return proxy;
+                    }
+                    else if( "getSingleResult".equals(method.getName()) ) { 
+                        return Long.valueOf(countPayloads(digest));
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+        else if( "getMetamodel".equals(methodName) ) { 
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class [] { Metamodel.class }, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if( "entity".equals(method.getName()) && ! entityClasses.contains(args[0]) ) { 
+                        throw new IllegalArgumentException("Not an entity: " + args[0]);
+                    }
+                    return null;
+                }
+            });
+        }
+        else if( "createQuery".equals(methodName) && (((String) args[0]).startsWith("SELECT i FROM MarshalledDataIndex i ") 
+                || ((String) args[0]).startsWith("SELECT new " + MarshalledData.class.getName() + "(")) ) { 
+            final String queryString = (String) args[0];
+            final String alias = queryString.startsWith("SELECT i ") ? "i" : "m";
+            calls.add("query:" + queryString);
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class [] { Query.class }, new InvocationHandler() {
+                private String prefix = null;
+                private Integer lastId = null;
+                private int maxResults = Integer.MAX_VALUE;
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if( "setParameter".equals(method.getName()) ) { 
+                        if( "prefix".equals(args[0]) && queryString.contains(":prefix") ) { 
+                            prefix = ((String) args[1]).replace("%", "");
+                        }
+                        else if( "lastId".equals(args[0]) && queryString.contains(alias + ".id > :lastId") ) { 
+                            lastId = (Integer) args[1];
+                        }
+                        else { 
+                            throw new IllegalArgumentException("Unknown parameter " + args[0] + " in " + queryString);
+                        }
+                        return proxy;
+                    }
+                    else if( "setMaxResults".equals(method.getName()) ) { 
+                        maxResults = (Integer) args[0];
+                        return proxy;
+                    }
+                    else if( "getResultList".equals(method.getName()) ) { 
+                        if( "i".equals(alias) ) { 
+                            return queryIndex(prefix, lastId, maxResults);
+                        }
+                        return queryMarshalledData(prefix, lastId, maxResults);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+        else if( "createQuery".equals(methodName) && ((String) args[0]).startsWith("SELECT m.byteArray, ") 
+                && ((String) args[0]).endsWith("FROM MarshalledData m WHERE m.id = :id") ) { 
+            calls.add("query:" + args[0]);
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class [] { Query.class }, new InvocationHandler() {
+                private Integer id;
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if( "setParameter".equals(method.getName()) && "id".equals(args[0]) ) { 
+                        id = (Integer) args[1];
+                        return proxy;
+                    }
+                    else if( "getSingleResult".equals(method.getName()) ) { 
+                        return queryBinaryData(id);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+        else if( "find".equals(methodName) && MarshalledPayload.class.equals(args[0]) ) { 
+            for( Object entity : getPersisted() ) { 
+                if( entity instanceof MarshalledPayload && ((MarshalledPayload) entity).digest.equals(args[1]) ) { 
+                    return entity;
+                }
+            }
+            return null;
+        }
+        else if( "persist".equals(methodName) ) { 
+            persist(args[0]);
+            return null;
+        }
+        else if( "flush".equals(methodName) || "clear".equals(methodName) || "close".equals(methodName) ) { 
+            calls.add(methodName);
+            return null;
+        }
+        else if( "isOpen".equals(methodName) ) { 
+            return true;
+        }
+        else if( "getTransaction".equals(methodName) ) { 
+            if( ! resourceLocal ) { 
+                throw new IllegalStateException("getTransaction() can not be used with a JTA entity manager");
+            }
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class [] { EntityTransaction.class }, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+        throw new UnsupportedOperationException(methodName);
+    }
+
+}
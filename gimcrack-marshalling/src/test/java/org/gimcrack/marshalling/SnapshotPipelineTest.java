@@ -0,0 +1,209 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gimcrack.marshalling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gimcrack.compare.ComparisonMemo;
+import org.gimcrack.compare.ComparisonResult;
+import org.gimcrack.compare.CompareViaReflectionUtil;
+import org.gimcrack.marshalling.user.MarshalledObjectSpecificActions;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotPipelineTest {
+
+    private static final String FAILING_DATA = "fail";
+    
+    private static class StringSpecific extends MarshalledObjectSpecificActions<String, String> {
+
+        @Override
+        public Class<String> getMarshalledObjectClass() {
+            return String.class;
+        }
+
+        @Override
+        public byte[] getBinaryData(String toMarshallClassInstance) {
+            return toMarshallClassInstance.getBytes();
+        }
+
+        @Override
+        public Long getMarshalledObjectIndex(String toMarshallClassInstance) {
+            return 1l;
+        }
+
+        @Override
+        public String unmarshallObject(MarshalledData marshalledData) throws Exception {
+            String unmarshalled = new String(marshalledData.byteArray);
+            if( FAILING_DATA.equals(unmarshalled) ) { 
+                throw new IllegalStateException("Unable to unmarshall " + unmarshalled);
+            }
+            return unmarshalled;
+        }
+    }
+    
+    /**
+     * Unmarshalls "a,b|c" into [[a, b], c].
+     */
+    private static class ListSpecific extends MarshalledObjectSpecificActions<List<Object>, List<Object>> {
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        @Override
+        public Class<List<Object>> getMarshalledObjectClass() {
+            return (Class) List.class;
+        }
+
+        @Override
+        public byte[] getBinaryData(List<Object> toMarshallClassInstance) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Long getMarshalledObjectIndex(List<Object> toMarshallClassInstance) {
+            return 1l;
+        }
+
+        @Override
+        public List<Object> unmarshallObject(MarshalledData marshalledData) throws Exception {
+            String [] parts = new String(marshalledData.byteArray).split("\\|");
+            List<Object> unmarshalled = new ArrayList<Object>();
+            unmarshalled.add(new ArrayList<String>(Arrays.asList(parts[0].split(","))));
+            unmarshalled.add(parts[1]);
+            return unmarshalled;
+        }
+    }
+
+    private MarshallingTestUtil marshallingTestUtil;
+    private Map<String, MarshalledData> baseSnapshots;
+    private Map<String, MarshalledData> testSnapshots;
+    private List<String> errors;
+    private AtomicInteger identicalSnapshots;
+    
+    @Before
+    public void before() { 
+        marshallingTestUtil = new MarshallingTestUtil();
+        marshallingTestUtil.registerAction(new StringSpecific());
+        marshallingTestUtil.setPipelineThreads(2, 2);
+        marshallingTestUtil.setMaxQueuedSnapshots(2);
+        baseSnapshots = new HashMap<String, MarshalledData>();
+        testSnapshots = new HashMap<String, MarshalledData>();
+        errors = Collections.synchronizedList(new ArrayList<String>());
+        identicalSnapshots = new AtomicInteger(0);
+    }
+    
+    private static MarshalledData createMarshalledData(int snapshotNumber, String data) { 
+        MarshalledData marshalledData = new MarshalledData();
+        marshalledData.testMethodName = "org.gimcrack.PipelineTest.testMethod";
+        marshalledData.snapshotNumber = snapshotNumber;
+        // (the actions are registered under their class name)
+        marshalledData.marshalledObjectClassName = (data.contains("|") ? ListSpecific.class : StringSpecific.class).getName();
+        marshalledData.byteArray = data.getBytes();
+        return marshalledData;
+    }
+    
+    private void addSnapshot(int snapshotNumber, String baseData, String testData) { 
+        MarshalledData base = createMarshalledData(snapshotNumber, baseData);
+        baseSnapshots.put(base.getTestMethodAndSnapshotNum(), base);
+        MarshalledData test = createMarshalledData(snapshotNumber, testData);
+        testSnapshots.put(test.getTestMethodAndSnapshotNum(), test);
+    }
+    
+    private void compareSnapshots(CompareViaReflectionUtil compareUtil) { 
+        marshallingTestUtil.compareSnapshotsInPipeline(compareUtil, testSnapshots, baseSnapshots, "base", errors, identicalSnapshots);
+    }
+    
+    @Test
+    public void testDifferencesAreCollected() { 
+        for( int i = 0; i < 10; ++i ) { 
+            addSnapshot(i, "data-" + i, i % 2 == 0 ? "data-" + i : "changed-" + i);
+        }
+        compareSnapshots(new CompareViaReflectionUtil());
+        assertEquals(5, identicalSnapshots.get());
+        assertEquals(errors.toString(), 5, errors.size());
+    }
+    
+    @Test
+    public void testEqualSubtreesAreOnlyComparedOnce() { 
+        marshallingTestUtil.registerAction(new ListSpecific());
+        for( int i = 0; i < 10; ++i ) { 
+            addSnapshot(i, "a,b,c|" + i, "a,b,c|changed-" + i);
+        }
+        CompareViaReflectionUtil compareUtil = new CompareViaReflectionUtil();
+        assertNull(marshallingTestUtil.useComparisonMemo(compareUtil));
+        ComparisonMemo memo = compareUtil.getComparisonMemo();
+        compareSnapshots(compareUtil);
+        assertEquals(errors.toString(), 10, errors.size());
+        // [a, b, c] is compared once in every comparison thread, at most
+        assertTrue("Hits: " + memo.getHits(), memo.getHits() >= 8);
+
+        // a memo that has already been set is used
+        assertSame(memo, marshallingTestUtil.useComparisonMemo(compareUtil));
+        assertSame(memo, compareUtil.getComparisonMemo());
+        compareUtil.setComparisonMemo(null);
+        marshallingTestUtil.setComparisonMemoSize(0);
+        assertNull(marshallingTestUtil.useComparisonMemo(compareUtil));
+        assertNull(compareUtil.getComparisonMemo());
+    }
+    
+    @Test
+    public void testUnmarshallingFailureIsRethrown() { 
+        for( int i = 0; i < 10; ++i ) { 
+            addSnapshot(i, "data-" + i, i == 3 ? FAILING_DATA : "changed-" + i);
+        }
+        try { 
+            compareSnapshots(new CompareViaReflectionUtil());
+            fail("The failure to unmarshall the test data should have been rethrown.");
+        }
+        catch( AssertionError ae ) { 
+            assertTrue(ae.getMessage(), ae.getMessage().contains("Unable to unmarshall"));
+        }
+    }
+    
+    @Test
+    public void testComparisonFailureIsRethrown() { 
+        for( int i = 0; i < 10; ++i ) { 
+            addSnapshot(i, "data-" + i, "changed-" + i);
+        }
+        final AtomicInteger comparisons = new AtomicInteger(0);
+        CompareViaReflectionUtil failingCompareUtil = new CompareViaReflectionUtil() { 
+            @Override
+            public ComparisonResult compareAll(Object objA, Object objB) {
+                comparisons.incrementAndGet();
+                throw new IllegalStateException("Comparison failed");
+            }
+        };
+        try { 
+            compareSnapshots(failingCompareUtil);
+            fail("The failed comparison should have been rethrown.");
+        }
+        catch( IllegalStateException ise ) { 
+            assertEquals("Comparison failed", ise.getMessage());
+        }
+        // the pipeline stops after the first failure 
+        assertTrue("Comparisons: " + comparisons.get(), comparisons.get() < 10);
+    }
+    
+}
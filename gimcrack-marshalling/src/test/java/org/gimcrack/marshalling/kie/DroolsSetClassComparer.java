@@ -81,7 +81,7 @@ public class DroolsSetClassComparer extends ClassComparer {
                 }
                 
                 if( compareInstances(subObjA, subObjB, "<entry> ") ) { 
-                    logger.trace(context.getName());
+                    logger.trace(getContext().getName());
                     elementIsSame = true;
                     break;
                 }